@@ -0,0 +1,97 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.File;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Login set up shared by the benchmarks: GitHub is answered by {@link StubGitHubRequestFactory} and TeamCity
+ * is replaced by {@link InMemoryTeamCityCore}.
+ */
+public abstract class AbstractAuthenticationBenchmark {
+    static final String CALLBACK_URI = "/oauth/github/accessToken.html";
+
+    GitHubOAuth gitHubOAuth;
+    private GitHubHttpConnectionPool connectionPool;
+    private GitHubLoginAuditJournal auditJournal;
+    private GitHubLoginExecutor loginExecutor;
+    private GitHubProfileFetcher profileFetcher;
+    private GitHubTokenWriter tokenWriter;
+    LoginViaGitHubOAuthPageExtension pageExtension;
+    private MockHttpSession session;
+    MockHttpServletRequest redirectRequest;
+    MockHttpServletResponse redirectResponse;
+    private String state;
+    private long codes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TestInternalProperties.init();
+        // all benchmark requests come from one address, the limits are raised so only the admission overhead is measured
+        System.setProperty("teamcity.gitHubAuth.admission.callback.perIp.rate", "1000000000");
+        System.setProperty("teamcity.gitHubAuth.admission.callback.global.rate", "1000000000");
+        InMemoryTeamCityCore teamCityCore = new InMemoryTeamCityCore(false);
+        addUsers(teamCityCore);
+
+        GitHubOAuthClient gitHubClient = new GitHubOAuthClient(new RestTemplate(new StubGitHubRequestFactory()), new GitHubCircuitBreakers(), new GitHubRateLimits());
+        loginExecutor = new GitHubLoginExecutor();
+        profileFetcher = new GitHubProfileFetcher(gitHubClient);
+        tokenWriter = new GitHubTokenWriter(teamCityCore);
+        connectionPool = new GitHubHttpConnectionPool();
+        auditJournal = new GitHubLoginAuditJournal(new File(System.getProperty("java.io.tmpdir"), "gitHubAuthBenchmark-" + GitHubLoginAuditJournal.FILE_NAME));
+        gitHubOAuth = new GitHubOAuth(new GitHubClients(gitHubClient, connectionPool), teamCityCore, new GitHubOAuthStateManager(), loginExecutor, profileFetcher,
+                new GitHubLoginMetrics(), tokenWriter, new GitHubCallbackSingleFlight(), new GitHubMembershipCache(gitHubClient), auditJournal, new GitHubLoginAdmission());
+
+        PluginDescriptor pluginDescriptor = mock(PluginDescriptor.class);
+        when(pluginDescriptor.getPluginResourcesPath(anyString())).thenReturn("/plugins/teamcity-github-auth/loginViaGitHub.jsp");
+        pageExtension = new LoginViaGitHubOAuthPageExtension(mock(PagePlaces.class, RETURNS_DEEP_STUBS), pluginDescriptor, gitHubOAuth);
+
+        session = new MockHttpSession();
+        redirectRequest = new MockHttpServletRequest();
+        redirectRequest.setSession(session);
+        redirectResponse = new MockHttpServletResponse();
+        String redirect = gitHubOAuth.getUserRedirect(redirectRequest, redirectResponse);
+        state = UriComponentsBuilder.fromUriString(redirect).build().getQueryParams().getFirst("state");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        loginExecutor.shutdown();
+        profileFetcher.shutdown();
+        tokenWriter.shutdown();
+        connectionPool.close();
+        auditJournal.shutdown();
+    }
+
+    /**
+     * Adds the TeamCity users existing before the benchmark, there are none by default.
+     */
+    void addUsers(InMemoryTeamCityCore teamCityCore) {
+    }
+
+    /**
+     * Every callback carries a new code, otherwise it is answered by {@link GitHubCallbackSingleFlight} without a login.
+     */
+    MockHttpServletRequest callbackRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", CALLBACK_URI);
+        request.setSession(session);
+        request.addParameter("code", "e0b1bbcb2ab06dcbc2e8" + codes++);
+        request.addParameter("state", state);
+        return request;
+    }
+}
@@ -0,0 +1,47 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.controllers.interceptors.auth.HttpAuthenticationResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.emptyMap;
+
+/**
+ * Benchmarks of the login hot path with GitHub answered by {@link StubGitHubRequestFactory} and TeamCity
+ * replaced by {@link InMemoryTeamCityCore}, for returning and new users. Run with {@code ./gradlew jmh}, the GC profiler
+ * reports allocation rates. The steps which don't depend on the user are measured by {@link RequestHandlingBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticationBenchmark extends AbstractAuthenticationBenchmark {
+    @Param({"returning", "new"})
+    public String user;
+
+    @Override
+    void addUsers(InMemoryTeamCityCore teamCityCore) {
+        if ("returning".equals(user)) {
+            teamCityCore.addUser("1");
+        }
+    }
+
+    @Benchmark
+    public HttpAuthenticationResult processAuthenticationRequest() throws IOException {
+        return gitHubOAuth.processAuthenticationRequest(callbackRequest(), new MockHttpServletResponse(), emptyMap());
+    }
+}
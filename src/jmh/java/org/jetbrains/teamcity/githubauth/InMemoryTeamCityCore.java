@@ -0,0 +1,117 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.controllers.interceptors.auth.HttpAuthenticationScheme;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.ServerSettings;
+import jetbrains.buildServer.serverSide.auth.LoginConfiguration;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager;
+import jetbrains.buildServer.serverSide.oauth.OAuthTokensStorage;
+import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants;
+import jetbrains.buildServer.users.PropertyKey;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserModel;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Collections.singletonList;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * {@link TeamCityCoreFacade} backed by plain maps. TeamCity services are stub-only mocks touched during construction only,
+ * so the benchmarks measure the plugin code rather than the mocking framework.
+ */
+class InMemoryTeamCityCore extends TeamCityCoreFacade {
+    static final String CLIENT_ID = "321";
+    static final String CLIENT_SECRET = "123";
+    static final String ROOT_URL = "http://teamcity.example.com";
+
+    @NotNull
+    private final GitHubConnections connections;
+    @NotNull
+    private final Map<String, SUser> usersByGitHubId = new ConcurrentHashMap<>();
+    @NotNull
+    private final SUser createdUser;
+    private final boolean rememberCreatedUsers;
+
+    /**
+     * @param rememberCreatedUsers if false every login is handled as a login of a new user
+     */
+    @SuppressWarnings("unchecked")
+    InMemoryTeamCityCore(boolean rememberCreatedUsers) {
+        super(stub(UserModel.class), stub(LoginConfiguration.class), stub(ServerSettings.class), stub(ProjectManager.class),
+                stub(OAuthConnectionsManager.class), stub(OAuthTokensStorage.class), stub(GitHubUserIndex.class),
+                stub(EventDispatcher.class), stub(EventDispatcher.class));
+        this.rememberCreatedUsers = rememberCreatedUsers;
+
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(GitHubConstants.CLIENT_ID_PARAM, CLIENT_ID);
+        parameters.put(GitHubConstants.CLIENT_SECRET_PARAM, CLIENT_SECRET);
+        SProjectFeatureDescriptor feature = stub(SProjectFeatureDescriptor.class);
+        when(feature.getParameters()).thenReturn(parameters);
+        when(feature.getId()).thenReturn("PROJECT_EXT_1");
+        connections = new GitHubConnections(singletonList(new OAuthConnectionDescriptor(stub(SProject.class), feature, stub(ExtensionHolder.class))));
+
+        createdUser = stub(SUser.class);
+        when(createdUser.getUsername()).thenReturn("octocat");
+        when(createdUser.describe(anyBoolean())).thenReturn("octocat");
+    }
+
+    void addUser(@NotNull String gitHubUserId) {
+        usersByGitHubId.put(gitHubUserId, createdUser);
+    }
+
+    @Nullable
+    @Override
+    SUser findUserByGitHubId(String gitHubUserId) {
+        return usersByGitHubId.get(gitHubUserId);
+    }
+
+    @Override
+    SUser createUser(String username, @Nullable String email, boolean emailVerified, @Nullable String name, Map<PropertyKey, String> properties) {
+        if (rememberCreatedUsers) {
+            usersByGitHubId.put(properties.get(GitHubOAuth.GITHUB_USER_ID_PROPERTY_KEY), createdUser);
+        }
+        return createdUser;
+    }
+
+    @Override
+    void registerAuthModule(HttpAuthenticationScheme scheme) {
+    }
+
+    @Override
+    boolean isAuthModuleConfigured(Class<? extends HttpAuthenticationScheme> schemeType) {
+        return true;
+    }
+
+    @Override
+    String getRootUrl() {
+        return ROOT_URL;
+    }
+
+    @NotNull
+    @Override
+    GitHubConnections getRootProjectGitHubConnections() {
+        return connections;
+    }
+
+    @Override
+    void rememberToken(OAuthConnectionDescriptor connection, SUser user, String githubLogin, String token, String scope) {
+    }
+
+    @NotNull
+    private static <T> T stub(@NotNull Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+}
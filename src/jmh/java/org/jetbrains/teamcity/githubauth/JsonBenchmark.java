@@ -0,0 +1,71 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Deserialization of GitHub responses by the streaming {@link GitHubJsonMessageConverter} the plugin uses
+ * and, for comparison, by the default JSON converter of {@link RestTemplate}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"streaming", "default"})
+    public String converterType;
+
+    private HttpMessageConverter<Object> converter;
+    private byte[] tokenJson;
+    private byte[] userJson;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        List<HttpMessageConverter<?>> candidates = "streaming".equals(converterType)
+                ? singletonList(new GitHubJsonMessageConverter())
+                : new RestTemplate().getMessageConverters();
+        for (HttpMessageConverter<?> candidate : candidates) {
+            if (candidate.canRead(GitHubUser.class, MediaType.APPLICATION_JSON)) {
+                converter = (HttpMessageConverter<Object>) candidate;
+                break;
+            }
+        }
+        if (converter == null) {
+            throw new IllegalStateException("No JSON message converter found");
+        }
+        tokenJson = StubGitHubRequestFactory.TOKEN_JSON.getBytes(StandardCharsets.UTF_8);
+        userJson = StubGitHubRequestFactory.USER_JSON.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object readTokenResponse() throws IOException {
+        return converter.read(GitHubTokenResponse.class, StubGitHubRequestFactory.jsonResponse(tokenJson));
+    }
+
+    @Benchmark
+    public Object readUser() throws IOException {
+        return converter.read(GitHubUser.class, StubGitHubRequestFactory.jsonResponse(userJson));
+    }
+}
@@ -0,0 +1,43 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.controllers.interceptors.auth.HttpAuthenticationResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the login steps which don't depend on the user: callback validation, the redirect to GitHub and the
+ * login page extension check, with the setup of {@link AbstractAuthenticationBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHandlingBenchmark extends AbstractAuthenticationBenchmark {
+    @Benchmark
+    public HttpAuthenticationResult validateRequest() throws IOException {
+        return gitHubOAuth.validateRequest(callbackRequest(), new MockHttpServletResponse());
+    }
+
+    @Benchmark
+    public String getUserRedirect() {
+        return gitHubOAuth.getUserRedirect(redirectRequest, redirectResponse);
+    }
+
+    @Benchmark
+    public boolean pageExtensionIsAvailable() {
+        return pageExtension.isAvailable(redirectRequest);
+    }
+}
@@ -0,0 +1,64 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers GitHub requests with canned JSON bodies selected by the request path, without any network or
+ * request recording, so it can serve millions of benchmark invocations.
+ */
+final class StubGitHubRequestFactory implements ClientHttpRequestFactory {
+    static final String TOKEN_JSON = "{\"access_token\":\"e72e16c7e42f292c6912e7710c838347ae178b4a\",\"scope\":\"user,public_repo,repo,repo:status,write:repo_hook\",\"token_type\":\"bearer\"}";
+    static final String USER_JSON = "{\"login\":\"octocat\",\"id\":1,\"avatar_url\":\"https://github.com/images/error/octocat_happy.gif\"," +
+            "\"gravatar_id\":\"\",\"url\":\"https://api.github.com/users/octocat\",\"html_url\":\"https://github.com/octocat\"," +
+            "\"type\":\"User\",\"site_admin\":false,\"name\":\"monalisa octocat\",\"company\":\"GitHub\",\"blog\":\"https://github.com/blog\"," +
+            "\"location\":\"San Francisco\",\"email\":\"octocat@github.com\",\"hireable\":false,\"bio\":\"There once was...\"," +
+            "\"public_repos\":2,\"public_gists\":1,\"followers\":20,\"following\":0,\"created_at\":\"2008-01-14T04:33:35Z\"," +
+            "\"updated_at\":\"2008-01-14T04:33:35Z\"}";
+    static final String EMAILS_JSON = "[{\"email\":\"octocat@github.com\",\"verified\":true,\"primary\":true,\"visibility\":\"public\"}]";
+    static final String ORGANIZATIONS_JSON = "[{\"login\":\"github\",\"id\":1,\"url\":\"https://api.github.com/orgs/github\"}]";
+
+    @NotNull
+    private final Map<String, byte[]> responses = new HashMap<>();
+
+    StubGitHubRequestFactory() {
+        respond("/login/oauth/access_token", TOKEN_JSON);
+        respond("/user", USER_JSON);
+        respond("/user/emails", EMAILS_JSON);
+        respond("/user/orgs", ORGANIZATIONS_JSON);
+    }
+
+    void respond(@NotNull String path, @NotNull String json) {
+        responses.put(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        byte[] body = responses.get(uri.getPath());
+        if (body == null) {
+            throw new IOException("Unexpected GitHub request: " + httpMethod + " " + uri);
+        }
+        MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+        request.setResponse(jsonResponse(body));
+        return request;
+    }
+
+    @NotNull
+    static MockClientHttpResponse jsonResponse(@NotNull byte[] body) {
+        MockClientHttpResponse response = new MockClientHttpResponse(body, HttpStatus.OK);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        return response;
+    }
+}
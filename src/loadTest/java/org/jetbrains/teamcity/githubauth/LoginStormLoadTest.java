@@ -0,0 +1,248 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import jetbrains.buildServer.controllers.AuthorizationInterceptor;
+import jetbrains.buildServer.controllers.interceptors.auth.HttpAuthenticationResult;
+import jetbrains.buildServer.controllers.interceptors.auth.util.HttpAuthUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.view.RedirectView;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Collections.emptyMap;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Simulates a login storm: many users going through the full GitHub login flow at once, against {@link StubGitHubServer}.
+ * <p>
+ * Each login requests {@link GitHubOAuthLoginController} for the redirect to GitHub and then sends the callback to
+ * {@link GitHubOAuth#processAuthenticationRequest}, following the "login in progress" responses of the asynchronous mode.
+ * The plugin uses the real {@link GitHubHttpConnectionPool}, TeamCity is replaced by an in-memory fake.
+ * <p>
+ * Run with {@code ./gradlew loadTest}. Settings are system properties, see {@code build.gradle} for the list,
+ * {@code teamcity.gitHubAuth.*} properties are passed to the plugin.
+ */
+public class LoginStormLoadTest {
+    private static final int MAX_FAILURE_CAUSES = 50;
+
+    private final int logins = Integer.getInteger("loadTest.logins", 1000);
+    private final int distinctUsers = Integer.getInteger("loadTest.distinctUsers", 300);
+    private final int concurrency = Integer.getInteger("loadTest.concurrency", 100);
+    private final long rampUpMs = TimeUnit.SECONDS.toMillis(Integer.getInteger("loadTest.rampUpSec", 0));
+
+    @NotNull
+    private final LatencyHistogram redirectLatency = new LatencyHistogram();
+    @NotNull
+    private final LatencyHistogram callbackLatency = new LatencyHistogram();
+    @NotNull
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    @NotNull
+    private final AtomicLong succeeded = new AtomicLong();
+    @NotNull
+    private final AtomicLong failed = new AtomicLong();
+    @NotNull
+    private final AtomicLong throttled = new AtomicLong();
+    @NotNull
+    private final Map<String, LongAdder> failureCauses = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicLong sequence = new AtomicLong();
+    @NotNull
+    private final LongAccumulator maxHeapUsed = new LongAccumulator(Math::max, 0);
+
+    private GitHubOAuth gitHubOAuth;
+    private GitHubOAuthLoginController loginController;
+
+    public static void main(String[] args) throws Exception {
+        new LoginStormLoadTest().run();
+    }
+
+    private void run() throws Exception {
+        TestInternalProperties.init();
+        try (StubGitHubServer gitHub = new StubGitHubServer(
+                Long.getLong("stub.latencyMs", 100), Long.getLong("stub.latencyJitterMs", 50),
+                Integer.getInteger("stub.errorRatePercent", 0),
+                Integer.getInteger("stub.rateLimit", 0), TimeUnit.SECONDS.toMillis(Integer.getInteger("stub.rateLimitWindowSec", 60)))) {
+            System.setProperty(GitHubOAuthClient.GITHUB_URL_PROPERTY, gitHub.getUrl());
+            System.setProperty(GitHubOAuthClient.GITHUB_API_URL_PROPERTY, gitHub.getUrl());
+
+            GitHubHttpConnectionPool connectionPool = new GitHubHttpConnectionPool();
+            GitHubOAuthClient gitHubClient = new GitHubOAuthClient(new RestTemplate(connectionPool.createRequestFactory()), new GitHubCircuitBreakers(), new GitHubRateLimits());
+            GitHubLoginExecutor loginExecutor = new GitHubLoginExecutor();
+            GitHubProfileFetcher profileFetcher = new GitHubProfileFetcher(gitHubClient);
+            GitHubLoginMetrics metrics = new GitHubLoginMetrics();
+            InMemoryTeamCityCore teamCityCore = new InMemoryTeamCityCore(true);
+            GitHubTokenWriter tokenWriter = new GitHubTokenWriter(teamCityCore);
+            GitHubLoginAdmission admission = new GitHubLoginAdmission();
+            GitHubLoginAuditJournal auditJournal = new GitHubLoginAuditJournal(new File(System.getProperty("java.io.tmpdir"), "gitHubAuthLoadTest-" + GitHubLoginAuditJournal.FILE_NAME));
+            gitHubOAuth = new GitHubOAuth(new GitHubClients(gitHubClient, connectionPool), teamCityCore, new GitHubOAuthStateManager(),
+                    loginExecutor, profileFetcher, metrics, tokenWriter, new GitHubCallbackSingleFlight(), new GitHubMembershipCache(gitHubClient), auditJournal, admission);
+            loginController = new GitHubOAuthLoginController(mock(WebControllerManager.class), mock(AuthorizationInterceptor.class), gitHubOAuth, admission);
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            threads.resetPeakThreadCount();
+            long gcCountBefore = getGcCount();
+            long gcTimeBefore = getGcTimeMs();
+            ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+            sampler.scheduleAtFixedRate(() -> maxHeapUsed.accumulate(memory.getHeapMemoryUsage().getUsed()), 0, 100, TimeUnit.MILLISECONDS);
+
+            ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>(logins);
+            for (int i = 0; i < logins; i++) {
+                long delayMs = logins > 1 ? rampUpMs * i / (logins - 1) : 0;
+                futures.add(clients.submit(() -> login(start, delayMs)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            clients.shutdown();
+            sampler.shutdownNow();
+
+            System.out.println("Logins: " + logins + " (" + distinctUsers + " distinct users, " + concurrency + " concurrent clients, ramp-up " + rampUpMs + "ms)");
+            System.out.println("Succeeded: " + succeeded.get() + ", failed: " + failed.get() + " (throttled: " + throttled.get() + ")");
+            failureCauses.entrySet().stream()
+                    .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                    .forEach(entry -> System.out.println("  failure " + entry.getValue().sum() + "x: " + entry.getKey()));
+            System.out.printf("Throughput: %.1f logins/sec%n", logins / (elapsedNanos / 1e9));
+            print("Login", loginLatency);
+            print("Redirect", redirectLatency);
+            print("Callback", callbackLatency);
+            for (Map.Entry<String, Object> entry : metrics.getDiagnostics().entrySet()) {
+                System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+            System.out.println("Token writer: " + tokenWriter.getDiagnostics());
+            System.out.println("Stub GitHub: requests=" + gitHub.getRequests() + ", injectedErrors=" + gitHub.getInjectedErrors() + ", rateLimited=" + gitHub.getRateLimited());
+            System.out.println("Threads: peak=" + threads.getPeakThreadCount() + ", live=" + threads.getThreadCount());
+            System.out.println("Heap: maxUsed=" + maxHeapUsed.get() / (1024 * 1024) + "MB, gcCount=" + (getGcCount() - gcCountBefore) +
+                    ", gcTime=" + (getGcTimeMs() - gcTimeBefore) + "ms");
+
+            loginExecutor.shutdown();
+            profileFetcher.shutdown();
+            tokenWriter.shutdown();
+            connectionPool.close();
+            auditJournal.shutdown();
+        }
+    }
+
+    private void login(long testStartNanos, long delayMs) {
+        try {
+            long startAt = testStartNanos + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            long wait = startAt - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+            long loginStart = System.nanoTime();
+            long user = sequence.incrementAndGet() % distinctUsers + 1;
+            String remoteAddress = "10.0." + (user >> 8 & 0xff) + "." + (user & 0xff);
+            MockHttpSession session = new MockHttpSession();
+            MockHttpServletRequest redirectRequest = new MockHttpServletRequest("GET", GitHubOAuthLoginController.PATH);
+            redirectRequest.setSession(session);
+            redirectRequest.setRemoteAddr(remoteAddress);
+            MockHttpServletResponse redirectResponse = new MockHttpServletResponse();
+            ModelAndView modelAndView = loginController.doHandle(redirectRequest, redirectResponse);
+            redirectLatency.recordNanos(System.nanoTime() - loginStart);
+            String redirect = getRedirectUrl(modelAndView, redirectResponse);
+            if (redirect == null) {
+                if (redirectResponse.getStatus() == GitHubLoginAdmission.SC_TOO_MANY_REQUESTS) throttled.incrementAndGet();
+                fail("redirect responded with " + redirectResponse.getStatus());
+                return;
+            }
+
+            String state = UriComponentsBuilder.fromUriString(redirect).build().getQueryParams().getFirst("state");
+            String code = user + "-" + System.nanoTime();
+            HttpAuthenticationResult result;
+            MockHttpServletRequest callback;
+            MockHttpServletResponse callbackResponse;
+            while (true) {
+                callback = new MockHttpServletRequest("GET", GitHubOAuth.TOKEN_REDIRECT_URL);
+                callback.setSession(session);
+                callback.setRemoteAddr(remoteAddress);
+                callback.addParameter("code", code);
+                callback.addParameter("state", state);
+                callbackResponse = new MockHttpServletResponse();
+                long callbackStart = System.nanoTime();
+                result = gitHubOAuth.processAuthenticationRequest(callback, callbackResponse, emptyMap());
+                callbackLatency.recordNanos(System.nanoTime() - callbackStart);
+                if (callbackResponse.getStatus() == GitHubLoginAdmission.SC_TOO_MANY_REQUESTS) throttled.incrementAndGet();
+                if (callbackResponse.getStatus() != 202) break;
+                Thread.sleep(TimeUnit.SECONDS.toMillis(Integer.parseInt(callbackResponse.getHeader("Refresh"))));
+            }
+            loginLatency.recordNanos(System.nanoTime() - loginStart);
+
+            if (result.getType() == HttpAuthenticationResult.Type.AUTHENTICATED) {
+                succeeded.incrementAndGet();
+            } else {
+                String reason = HttpAuthUtil.getUnauthenticatedReason(callback);
+                fail("callback responded with " + callbackResponse.getStatus() + (reason != null ? ": " + reason : ""));
+            }
+        } catch (Exception e) {
+            fail(e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the failure by its cause, causes beyond {@link #MAX_FAILURE_CAUSES} distinct ones are counted as "other".
+     */
+    private void fail(@NotNull String cause) {
+        failed.incrementAndGet();
+        String key = failureCauses.size() < MAX_FAILURE_CAUSES || failureCauses.containsKey(cause) ? cause : "other";
+        failureCauses.computeIfAbsent(key, k -> new LongAdder()).increment();
+    }
+
+    @Nullable
+    private static String getRedirectUrl(@Nullable ModelAndView modelAndView, @NotNull MockHttpServletResponse response) {
+        if (response.getRedirectedUrl() != null) return response.getRedirectedUrl();
+        if (modelAndView != null && modelAndView.getView() instanceof RedirectView) {
+            return ((RedirectView) modelAndView.getView()).getUrl();
+        }
+        return null;
+    }
+
+    private static void print(@NotNull String name, @NotNull LatencyHistogram histogram) {
+        System.out.printf("%s latency: p50=%.1fms, p90=%.1fms, p99=%.1fms, p99.9=%.1fms, max=%.1fms%n", name,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxMicros() / 1000.0);
+    }
+
+    private static long getGcCount() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionCount());
+        }
+        return result;
+    }
+
+    private static long getGcTimeMs() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionTime());
+        }
+        return result;
+    }
+}
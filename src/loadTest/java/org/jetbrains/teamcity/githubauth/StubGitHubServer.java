@@ -0,0 +1,201 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server answering the GitHub endpoints used by the plugin: {@code /login/oauth/access_token},
+ * {@code /user}, {@code /user/emails} and {@code /user/orgs}.
+ * <p>
+ * The code {@code <n>-<anything>} is exchanged to the token {@code token-<n>-<sequence>} which identifies the GitHub user
+ * {@code n}. Like GitHub, the stub issues a new token on every exchange.
+ * Every response is delayed by the configured latency, a share of responses fails with 502, and API responses carry
+ * {@code X-RateLimit-*} headers and fail with 403 once the limit of the current window is exhausted.
+ */
+final class StubGitHubServer implements AutoCloseable {
+    @NotNull
+    private final HttpServer server;
+    @NotNull
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final long latencyMs;
+    private final long latencyJitterMs;
+    private final int errorRatePercent;
+    private final int rateLimit;
+    private final long rateLimitWindowMs;
+
+    @NotNull
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+    @NotNull
+    private final AtomicInteger windowUsed = new AtomicInteger();
+    @NotNull
+    private final AtomicLong requests = new AtomicLong();
+    @NotNull
+    private final AtomicLong injectedErrors = new AtomicLong();
+    @NotNull
+    private final AtomicLong rateLimited = new AtomicLong();
+    @NotNull
+    private final AtomicLong tokens = new AtomicLong();
+
+    /**
+     * @param rateLimit API requests allowed per window, 0 disables rate limiting
+     */
+    StubGitHubServer(long latencyMs, long latencyJitterMs, int errorRatePercent, int rateLimit, long rateLimitWindowMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.latencyJitterMs = latencyJitterMs;
+        this.errorRatePercent = errorRatePercent;
+        this.rateLimit = rateLimit;
+        this.rateLimitWindowMs = rateLimitWindowMs;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/login/oauth/access_token", exchange -> handle(exchange, false, this::token));
+        server.createContext("/user", exchange -> handle(exchange, true, this::user));
+        server.start();
+    }
+
+    @NotNull
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(@NotNull HttpExchange exchange, boolean api, @NotNull Responder responder) throws IOException {
+        try {
+            requests.incrementAndGet();
+            delay();
+            if (api && rateLimit > 0 && !acquireRateLimit(exchange)) {
+                rateLimited.incrementAndGet();
+                send(exchange, 403, "{\"message\":\"API rate limit exceeded\"}");
+                return;
+            }
+            if (errorRatePercent > 0 && ThreadLocalRandom.current().nextInt(100) < errorRatePercent) {
+                injectedErrors.incrementAndGet();
+                send(exchange, 502, "{\"message\":\"Server Error\"}");
+                return;
+            }
+            String body = responder.respond(exchange);
+            if (body == null) {
+                send(exchange, 404, "{\"message\":\"Not Found\"}");
+            } else {
+                send(exchange, 200, body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Nullable
+    private String token(@NotNull HttpExchange exchange) throws IOException {
+        String code = null;
+        for (String parameter : readBody(exchange).split("&")) {
+            if (parameter.startsWith("code=")) {
+                code = URLDecoder.decode(parameter.substring("code=".length()), "UTF-8");
+            }
+        }
+        if (code == null || code.indexOf('-') <= 0) {
+            return "{\"error\":\"bad_verification_code\",\"error_description\":\"The code passed is incorrect or expired.\"}";
+        }
+        return "{\"access_token\":\"token-" + code.substring(0, code.indexOf('-')) + "-" + tokens.incrementAndGet() + "\",\"scope\":\"" + GitHubOAuth.DEFAULT_SCOPE + "\",\"token_type\":\"bearer\"}";
+    }
+
+    @Nullable
+    private String user(@NotNull HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("token token-")) return null;
+        String id = authorization.substring("token token-".length());
+        if (id.indexOf('-') > 0) id = id.substring(0, id.indexOf('-'));
+        switch (exchange.getRequestURI().getPath()) {
+            case "/user":
+                return "{\"login\":\"user" + id + "\",\"id\":" + id + ",\"name\":\"User " + id + "\",\"email\":\"user" + id + "@example.com\"}";
+            case "/user/emails":
+                return "[{\"email\":\"user" + id + "@example.com\",\"primary\":true,\"verified\":true}]";
+            case "/user/orgs":
+                return "[{\"login\":\"org" + (Integer.parseInt(id) % 10) + "\"}]";
+            default:
+                return null;
+        }
+    }
+
+    private boolean acquireRateLimit(@NotNull HttpExchange exchange) {
+        long now = System.currentTimeMillis();
+        long start = windowStart.get();
+        if (now - start >= rateLimitWindowMs && windowStart.compareAndSet(start, now)) {
+            windowUsed.set(0);
+            start = now;
+        }
+        int used = windowUsed.incrementAndGet();
+        exchange.getResponseHeaders().set("X-RateLimit-Limit", String.valueOf(rateLimit));
+        exchange.getResponseHeaders().set("X-RateLimit-Remaining", String.valueOf(Math.max(0, rateLimit - used)));
+        exchange.getResponseHeaders().set("X-RateLimit-Reset", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(start + rateLimitWindowMs)));
+        return used <= rateLimit;
+    }
+
+    private void delay() {
+        long delay = latencyMs + (latencyJitterMs > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMs + 1) : 0);
+        if (delay <= 0) return;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @NotNull
+    private static String readBody(@NotNull HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            StringBuilder result = new StringBuilder();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                result.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+            return result.toString();
+        }
+    }
+
+    private static void send(@NotNull HttpExchange exchange, int status, @NotNull String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private interface Responder {
+        @Nullable
+        String respond(@NotNull HttpExchange exchange) throws IOException;
+    }
+}
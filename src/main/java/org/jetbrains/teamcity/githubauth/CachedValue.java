@@ -0,0 +1,88 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lazily computed value which is recomputed after {@link #invalidate()} or when it gets older than the max age.
+ * <p>
+ * Every computed value is stamped with the version it was computed for, so an invalidation
+ * which happens while the value is being computed is never lost.
+ */
+class CachedValue<T> {
+    @NotNull
+    private final Supplier<T> loader;
+    @NotNull
+    private final LongSupplier maxAgeMs;
+    @NotNull
+    private final AtomicLong version = new AtomicLong();
+    @NotNull
+    private final AtomicLong hits = new AtomicLong();
+    @NotNull
+    private final AtomicLong loads = new AtomicLong();
+    @Nullable
+    private volatile Entry<T> entry;
+
+    CachedValue(@NotNull Supplier<T> loader) {
+        this(loader, () -> 0);
+    }
+
+    /**
+     * @param maxAgeMs max age of the computed value, non-positive value means the value never expires
+     */
+    CachedValue(@NotNull Supplier<T> loader, @NotNull LongSupplier maxAgeMs) {
+        this.loader = loader;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    T get() {
+        long currentVersion = version.get();
+        Entry<T> current = entry;
+        if (isUpToDate(current, currentVersion)) {
+            hits.incrementAndGet();
+            return current.value;
+        }
+        T value = loader.get();
+        entry = new Entry<>(currentVersion, System.nanoTime(), value);
+        loads.incrementAndGet();
+        return value;
+    }
+
+    void invalidate() {
+        version.incrementAndGet();
+    }
+
+    boolean isUpToDate() {
+        return isUpToDate(entry, version.get());
+    }
+
+    private boolean isUpToDate(@Nullable Entry<T> current, long currentVersion) {
+        if (current == null || current.version != currentVersion) return false;
+        long maxAge = maxAgeMs.getAsLong();
+        return maxAge <= 0 || System.nanoTime() - current.loadedAtNanos < TimeUnit.MILLISECONDS.toNanos(maxAge);
+    }
+
+    @NotNull
+    String describe() {
+        Entry<T> current = entry;
+        return "upToDate=" + isUpToDate() + ", version=" + version.get() + ", hits=" + hits.get() + ", loads=" + loads.get() +
+                (current != null ? ", ageMs=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - current.loadedAtNanos) : "");
+    }
+
+    private static final class Entry<T> {
+        private final long version;
+        private final long loadedAtNanos;
+        private final T value;
+
+        private Entry(long version, long loadedAtNanos, T value) {
+            this.version = version;
+            this.loadedAtNanos = loadedAtNanos;
+            this.value = value;
+        }
+    }
+}
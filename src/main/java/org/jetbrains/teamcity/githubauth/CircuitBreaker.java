@@ -0,0 +1,161 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count-based sliding window circuit breaker.
+ * <p>
+ * The circuit opens when, among the last {@code windowSize} calls (and at least {@code minimumCalls}), the share of
+ * failed calls or the share of slow calls reaches its threshold. An open circuit rejects calls for {@code openDurationMs},
+ * then lets {@code halfOpenCalls} probe calls through: the circuit closes if all of them succeed and opens again otherwise.
+ */
+final class CircuitBreaker {
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    @NotNull
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRatePercent;
+    private final long slowCallNanos;
+    private final int slowCallRatePercent;
+    private final long openDurationNanos;
+    private final int halfOpenCalls;
+
+    @NotNull
+    private final byte[] window;
+    private int windowPosition;
+    private int windowCount;
+    private int failures;
+    private int slowCalls;
+
+    @NotNull
+    private State state = State.CLOSED;
+    private long openedAtNanos;
+    private int halfOpenPermitted;
+    private int halfOpenSucceeded;
+    private long rejectedCalls;
+    private long openedTimes;
+
+    CircuitBreaker(@NotNull String name, int windowSize, int minimumCalls, int failureRatePercent,
+                   long slowCallMs, int slowCallRatePercent, long openDurationMs, int halfOpenCalls) {
+        this.name = name;
+        this.window = new byte[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMs);
+        this.slowCallRatePercent = slowCallRatePercent;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+    }
+
+    /**
+     * @return true if the call may proceed, in this case its outcome must be reported via {@link #onResult(boolean, long)}
+     */
+    synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openDurationNanos) {
+                rejectedCalls++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+            halfOpenPermitted = 0;
+            halfOpenSucceeded = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermitted >= halfOpenCalls) {
+                rejectedCalls++;
+                return false;
+            }
+            halfOpenPermitted++;
+        }
+        return true;
+    }
+
+    synchronized void onResult(boolean failed, long durationNanos) {
+        boolean slow = durationNanos >= slowCallNanos;
+        switch (state) {
+            case HALF_OPEN:
+                if (failed || slow) {
+                    open();
+                } else if (++halfOpenSucceeded >= halfOpenCalls) {
+                    close();
+                }
+                break;
+            case CLOSED:
+                record(failed ? FAILURE : slow ? SLOW : SUCCESS);
+                if (windowCount >= minimumCalls &&
+                        (failures * 100 >= failureRatePercent * windowCount || slowCalls * 100 >= slowCallRatePercent * windowCount)) {
+                    open();
+                }
+                break;
+            case OPEN:
+                // outcome of a call started before the circuit opened
+                break;
+        }
+    }
+
+    /**
+     * Doesn't change the state, unlike {@link #tryAcquirePermission()}.
+     */
+    synchronized boolean isCallPermitted() {
+        return state != State.OPEN || System.nanoTime() - openedAtNanos >= openDurationNanos;
+    }
+
+    @NotNull
+    synchronized State getState() {
+        return state;
+    }
+
+    private void record(byte outcome) {
+        if (windowCount == window.length) {
+            byte evicted = window[windowPosition];
+            if (evicted == FAILURE) failures--;
+            if (evicted == SLOW) slowCalls--;
+        } else {
+            windowCount++;
+        }
+        window[windowPosition] = outcome;
+        windowPosition = (windowPosition + 1) % window.length;
+        if (outcome == FAILURE) failures++;
+        if (outcome == SLOW) slowCalls++;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAtNanos = System.nanoTime();
+        openedTimes++;
+        resetWindow();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowPosition = 0;
+        windowCount = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    @NotNull
+    synchronized Map<String, Object> describe() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(name + ".state", state);
+        result.put(name + ".windowCalls", windowCount);
+        result.put(name + ".windowFailures", failures);
+        result.put(name + ".windowSlowCalls", slowCalls);
+        result.put(name + ".openedTimes", openedTimes);
+        result.put(name + ".rejectedCalls", rejectedCalls);
+        return result;
+    }
+}
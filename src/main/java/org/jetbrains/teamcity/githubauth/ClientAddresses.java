@@ -0,0 +1,77 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Address of the client which sent a request, used to attribute login attempts to their sources.
+ * <p>
+ * Behind a reverse proxy the peer address is the proxy. When the peer is one of {@code teamcity.gitHubAuth.trustedProxies}
+ * (comma-separated addresses), the client is the right-most {@code X-Forwarded-For} entry which isn't a trusted proxy,
+ * so other clients can't pick their address with the header. A proxy already handled by the servlet container, e.g. with
+ * the Tomcat {@code RemoteIpValve}, needs no settings.
+ */
+final class ClientAddresses {
+    static final String TRUSTED_PROXIES_PROPERTY = "teamcity.gitHubAuth.trustedProxies";
+
+    @Nullable
+    private static volatile TrustedProxies trustedProxies;
+
+    private ClientAddresses() {
+    }
+
+    @NotNull
+    static String get(@NotNull HttpServletRequest request) {
+        String peer = String.valueOf(request.getRemoteAddr());
+        Set<String> trusted = getTrustedProxies();
+        if (!trusted.contains(peer)) return peer;
+
+        List<String> hops = new ArrayList<>();
+        Enumeration<String> headers = request.getHeaders("X-Forwarded-For");
+        while (headers != null && headers.hasMoreElements()) {
+            for (String hop : headers.nextElement().split(",")) {
+                if (!hop.trim().isEmpty()) hops.add(hop.trim());
+            }
+        }
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            if (!trusted.contains(hops.get(i))) return hops.get(i);
+        }
+        return peer;
+    }
+
+    @NotNull
+    private static Set<String> getTrustedProxies() {
+        String value = TeamCityProperties.getProperty(TRUSTED_PROXIES_PROPERTY, "");
+        TrustedProxies cached = trustedProxies;
+        if (cached == null || !cached.value.equals(value)) {
+            cached = new TrustedProxies(value);
+            trustedProxies = cached;
+        }
+        return cached.addresses;
+    }
+
+    private static final class TrustedProxies {
+        @NotNull
+        private final String value;
+        @NotNull
+        private final Set<String> addresses;
+
+        private TrustedProxies(@NotNull String value) {
+            this.value = value;
+            Set<String> result = new HashSet<>();
+            for (String address : value.split(",")) {
+                if (!address.trim().isEmpty()) result.add(address.trim());
+            }
+            addresses = Collections.unmodifiableSet(result);
+        }
+    }
+}
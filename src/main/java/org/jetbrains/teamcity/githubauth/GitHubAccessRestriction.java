@@ -0,0 +1,102 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Organizations and teams allowed to log in, configured in the auth module properties. Entries are separated by
+ * commas, spaces or new lines, teams are specified as {@code <organization>/<team slug>}. A user is allowed if
+ * they are a member of any of the organizations or teams, no entries mean no restriction.
+ */
+final class GitHubAccessRestriction {
+    static final String ALLOWED_ORGANIZATIONS_PROPERTY = "allowedOrganizations";
+    static final String ALLOWED_TEAMS_PROPERTY = "allowedTeams";
+    private static final Pattern SEPARATORS = Pattern.compile("[,\\s]+");
+    private static final Pattern NAME = Pattern.compile("[a-z0-9][a-z0-9_.-]*");
+
+    @NotNull
+    final Set<String> organizations;
+    @NotNull
+    final Set<String> teams;
+
+    private GitHubAccessRestriction(@NotNull Set<String> organizations, @NotNull Set<String> teams) {
+        this.organizations = organizations;
+        this.teams = teams;
+    }
+
+    @NotNull
+    static GitHubAccessRestriction fromProperties(@Nullable Map<String, String> properties) {
+        if (properties == null) return new GitHubAccessRestriction(Collections.emptySet(), Collections.emptySet());
+        return new GitHubAccessRestriction(split(properties.get(ALLOWED_ORGANIZATIONS_PROPERTY)), split(properties.get(ALLOWED_TEAMS_PROPERTY)));
+    }
+
+    boolean isRestricted() {
+        return !organizations.isEmpty() || !teams.isEmpty();
+    }
+
+    /**
+     * @return organizations whose teams should be requested for the membership check
+     */
+    @NotNull
+    Set<String> getTeamOrganizations() {
+        Set<String> result = new LinkedHashSet<>();
+        for (String team : teams) {
+            result.add(team.substring(0, team.indexOf('/')));
+        }
+        return result;
+    }
+
+    boolean isAllowed(@NotNull GitHubMembership membership) {
+        for (String organization : organizations) {
+            if (membership.organizations.contains(organization)) return true;
+        }
+        for (String team : teams) {
+            if (membership.teams.contains(team)) return true;
+        }
+        return false;
+    }
+
+    @NotNull
+    List<String> validate() {
+        List<String> errors = new ArrayList<>();
+        for (String organization : organizations) {
+            if (!NAME.matcher(organization).matches()) errors.add("Invalid GitHub organization name: " + organization);
+        }
+        for (String team : teams) {
+            int slash = team.indexOf('/');
+            if (slash < 0 || !NAME.matcher(team.substring(0, slash)).matches() || !NAME.matcher(team.substring(slash + 1)).matches()) {
+                errors.add("Invalid GitHub team '" + team + "', expected <organization>/<team slug>");
+            }
+        }
+        return errors;
+    }
+
+    @NotNull
+    String describe() {
+        if (!isRestricted()) return "";
+        List<String> parts = new ArrayList<>();
+        if (!organizations.isEmpty()) parts.add("organizations: " + String.join(", ", organizations));
+        if (!teams.isEmpty()) parts.add("teams: " + String.join(", ", teams));
+        return "Allowed " + String.join("; ", parts);
+    }
+
+    @NotNull
+    private static Set<String> split(@Nullable String value) {
+        if (StringUtil.isEmptyOrSpaces(value)) return Collections.emptySet();
+        Set<String> result = new LinkedHashSet<>();
+        for (String item : SEPARATORS.split(value.trim())) {
+            if (!item.isEmpty()) result.add(item.toLowerCase(Locale.ENGLISH));
+        }
+        return Collections.unmodifiableSet(result);
+    }
+}
@@ -0,0 +1,20 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Implemented by plugin components which expose runtime statistics on the
+ * {@link GitHubAuthDiagnosticsController} page.
+ */
+public interface GitHubAuthDiagnostics {
+    @NotNull
+    String getDiagnosticsTitle();
+
+    /**
+     * @return statistics snapshot, keys are printed in the iteration order of the returned map
+     */
+    @NotNull
+    Map<String, Object> getDiagnostics();
+}
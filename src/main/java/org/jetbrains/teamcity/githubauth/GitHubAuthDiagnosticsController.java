@@ -0,0 +1,54 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plain text dump of the plugin runtime statistics, available to system administrators only.
+ */
+public class GitHubAuthDiagnosticsController extends BaseController {
+    public static final String PATH = "/admin/gitHubAuthDiagnostics.html";
+
+    @NotNull
+    private final List<GitHubAuthDiagnostics> sources;
+
+    public GitHubAuthDiagnosticsController(@NotNull WebControllerManager webControllerManager,
+                                           @NotNull List<GitHubAuthDiagnostics> sources) {
+        this.sources = sources;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return null;
+        }
+
+        response.setContentType("text/plain;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (GitHubAuthDiagnostics source : sources) {
+            writer.println("[" + source.getDiagnosticsTitle() + "]");
+            for (Map.Entry<String, Object> entry : source.getDiagnostics().entrySet()) {
+                writer.println(entry.getKey() + ": " + entry.getValue());
+            }
+            writer.println();
+        }
+        writer.flush();
+        return null;
+    }
+}
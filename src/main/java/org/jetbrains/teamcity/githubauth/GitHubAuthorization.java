@@ -0,0 +1,19 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Result of the remote part of the login: the token response and, if the token was issued, the GitHub user.
+ */
+final class GitHubAuthorization {
+    @NotNull
+    final GitHubTokenResponse token;
+    @Nullable
+    final GitHubUser user;
+
+    GitHubAuthorization(@NotNull GitHubTokenResponse token, @Nullable GitHubUser user) {
+        this.token = token;
+        this.user = user;
+    }
+}
@@ -0,0 +1,211 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates repeated OAuth callbacks (double clicks, browser retries, proxy replays) carrying the same code and state.
+ * <p>
+ * Concurrent duplicates wait for the authorization in flight and share its result, late duplicates are answered
+ * from the results kept for {@code teamcity.gitHubAuth.singleFlight.resultTtlMs}. Without this every duplicate
+ * exchanges the already used code and fails with {@code bad_verification_code}.
+ * <p>
+ * A callback is {@link #register registered} before its state is verified, so only the owner of the flight consumes
+ * the state and near-simultaneous duplicates don't see it as already used.
+ */
+public class GitHubCallbackSingleFlight implements GitHubAuthDiagnostics {
+    @NotNull
+    private final Map<String, CompletableFuture<GitHubAuthorization>> inFlight = new ConcurrentHashMap<>();
+    @NotNull
+    private final Map<String, Result> results = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicLong lastPurgeNanos = new AtomicLong(System.nanoTime());
+    @NotNull
+    private final AtomicLong executed = new AtomicLong();
+    @NotNull
+    private final AtomicLong joined = new AtomicLong();
+    @NotNull
+    private final AtomicLong cached = new AtomicLong();
+
+    @NotNull
+    static String getKey(@NotNull String code, @NotNull String state) {
+        return state + "\n" + code;
+    }
+
+    /**
+     * @return result of the recently completed callback with the given key, null if there is none
+     */
+    @Nullable
+    GitHubAuthorization getCompleted(@NotNull String key) {
+        Result result = results.get(key);
+        if (result == null) return null;
+        if (result.expiresAtNanos - System.nanoTime() < 0) {
+            results.remove(key, result);
+            return null;
+        }
+        return result.authorization;
+    }
+
+    /**
+     * Registers the callback with the given key as in flight unless the same callback is in flight or has completed recently.
+     *
+     * @return flight to {@link #execute}, the callback owns it if it's the first one with the given key
+     */
+    @NotNull
+    Flight register(@NotNull String key) {
+        if (!isEnabled()) return new Flight(key, new CompletableFuture<>(), true, false);
+
+        GitHubAuthorization completed = getCompleted(key);
+        if (completed != null) {
+            cached.incrementAndGet();
+            return new Flight(key, CompletableFuture.completedFuture(completed), false, false);
+        }
+        CompletableFuture<GitHubAuthorization> flight = new CompletableFuture<>();
+        CompletableFuture<GitHubAuthorization> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            joined.incrementAndGet();
+            return new Flight(key, existing, false, false);
+        }
+        return new Flight(key, flight, true, true);
+    }
+
+    /**
+     * Runs the authorization if the flight is owned by the caller, otherwise waits for the owner and returns its result.
+     */
+    @NotNull
+    GitHubAuthorization execute(@NotNull Flight flight, @NotNull Supplier<GitHubAuthorization> authorization) {
+        if (!flight.owner) return await(flight.future);
+
+        try {
+            GitHubAuthorization completed = flight.registered ? getCompleted(flight.key) : null;
+            if (completed != null) {
+                flight.future.complete(completed);
+                return completed;
+            }
+            executed.incrementAndGet();
+            GitHubAuthorization result = authorization.get();
+            remember(flight.key, result);
+            flight.future.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            flight.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (flight.registered) inFlight.remove(flight.key, flight.future);
+        }
+    }
+
+    /**
+     * Fails the owned flight which isn't going to be executed, e.g. because its state is rejected.
+     */
+    void abandon(@NotNull Flight flight, @NotNull RuntimeException reason) {
+        if (!flight.owner) return;
+        flight.future.completeExceptionally(reason);
+        if (flight.registered) inFlight.remove(flight.key, flight.future);
+    }
+
+    /**
+     * Keeps the result of the callback completed outside of {@link #execute} for the late duplicates. Results aren't kept
+     * while there are {@code teamcity.gitHubAuth.singleFlight.maxResults} of them which haven't expired yet.
+     */
+    void remember(@NotNull String key, @NotNull GitHubAuthorization authorization) {
+        if (!isEnabled()) return;
+        long now = System.nanoTime();
+        int maxResults = TeamCityProperties.getInteger("teamcity.gitHubAuth.singleFlight.maxResults", 10000);
+        if (results.size() >= maxResults) {
+            long lastPurge = lastPurgeNanos.get();
+            if (now - lastPurge > TimeUnit.SECONDS.toNanos(1) && lastPurgeNanos.compareAndSet(lastPurge, now)) {
+                purgeExpired(now);
+            }
+            if (results.size() >= maxResults) return;
+        }
+        results.put(key, new Result(authorization, now + TimeUnit.MILLISECONDS.toNanos(TeamCityProperties.getLong("teamcity.gitHubAuth.singleFlight.resultTtlMs", 10000))));
+    }
+
+    @NotNull
+    private static GitHubAuthorization await(@NotNull CompletableFuture<GitHubAuthorization> flight) {
+        try {
+            return flight.get(TeamCityProperties.getLong("teamcity.gitHubAuth.singleFlight.waitTimeoutMs", 30000), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new GitHubLocalLoginException("Timed out waiting for the same GitHub login in progress", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitHubLocalLoginException("Interrupted while waiting for GitHub", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new GitHubLoginException("GitHub login error", cause);
+        }
+    }
+
+    private void purgeExpired(long now) {
+        for (Iterator<Result> it = results.values().iterator(); it.hasNext(); ) {
+            if (it.next().expiresAtNanos - now < 0) it.remove();
+        }
+    }
+
+    private static boolean isEnabled() {
+        return TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.singleFlight.enabled");
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "Callback deduplication";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", isEnabled());
+        result.put("inFlight", inFlight.size());
+        result.put("results", results.size());
+        result.put("executed", executed.get());
+        result.put("joined", joined.get());
+        result.put("cached", cached.get());
+        return result;
+    }
+
+    static final class Flight {
+        @NotNull
+        private final String key;
+        @NotNull
+        private final CompletableFuture<GitHubAuthorization> future;
+        /**
+         * Whether the callback has to verify and consume the state and run the authorization
+         */
+        final boolean owner;
+        private final boolean registered;
+
+        private Flight(@NotNull String key, @NotNull CompletableFuture<GitHubAuthorization> future, boolean owner, boolean registered) {
+            this.key = key;
+            this.future = future;
+            this.owner = owner;
+            this.registered = registered;
+        }
+    }
+
+    private static final class Result {
+        @NotNull
+        private final GitHubAuthorization authorization;
+        private final long expiresAtNanos;
+
+        private Result(@NotNull GitHubAuthorization authorization, long expiresAtNanos) {
+            this.authorization = authorization;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
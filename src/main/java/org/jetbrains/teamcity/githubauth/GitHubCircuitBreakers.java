@@ -0,0 +1,91 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breakers for GitHub endpoints, one per host.
+ * <p>
+ * Connection errors, timeouts and 5xx responses count as failures, 4xx responses mean the endpoint is up.
+ * Settings are read from the {@code teamcity.gitHubAuth.circuitBreaker.*} internal properties when the breaker
+ * of a host is created.
+ */
+public class GitHubCircuitBreakers implements GitHubAuthDiagnostics {
+    private static final String PROPERTY_PREFIX = "teamcity.gitHubAuth.circuitBreaker.";
+
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    <T> T execute(@NotNull String host, @NotNull Supplier<T> call) {
+        if (!isEnabled()) return call.get();
+
+        CircuitBreaker breaker = getBreaker(host);
+        if (!breaker.tryAcquirePermission()) {
+            throw new GitHubUnavailableException("GitHub is temporarily unavailable (" + host + " doesn't respond), please try again later");
+        }
+        CircuitBreaker.State before = breaker.getState();
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            failed = false;
+            return result;
+        } catch (GitHubLoginException e) {
+            failed = !(e.getCause() instanceof HttpClientErrorException);
+            throw e;
+        } finally {
+            breaker.onResult(failed, System.nanoTime() - start);
+            CircuitBreaker.State after = breaker.getState();
+            if (before != after) {
+                logger.warn("GitHub circuit breaker for " + host + " changed state: " + before + " -> " + after);
+            }
+        }
+    }
+
+    boolean isCallPermitted(@NotNull String host) {
+        if (!isEnabled()) return true;
+        CircuitBreaker breaker = breakers.get(host);
+        return breaker == null || breaker.isCallPermitted();
+    }
+
+    @NotNull
+    private CircuitBreaker getBreaker(@NotNull String host) {
+        return breakers.computeIfAbsent(host, name -> new CircuitBreaker(name,
+                TeamCityProperties.getInteger(PROPERTY_PREFIX + "windowSize", 20),
+                TeamCityProperties.getInteger(PROPERTY_PREFIX + "minimumCalls", 10),
+                TeamCityProperties.getInteger(PROPERTY_PREFIX + "failureRatePercent", 50),
+                TeamCityProperties.getLong(PROPERTY_PREFIX + "slowCallMs", 10000),
+                TeamCityProperties.getInteger(PROPERTY_PREFIX + "slowCallRatePercent", 80),
+                TeamCityProperties.getLong(PROPERTY_PREFIX + "openDurationMs", 30000),
+                TeamCityProperties.getInteger(PROPERTY_PREFIX + "halfOpenCalls", 3)));
+    }
+
+    private static boolean isEnabled() {
+        return TeamCityProperties.getBooleanOrTrue(PROPERTY_PREFIX + "enabled");
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "Circuit breakers";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", isEnabled());
+        breakers.values().forEach(breaker -> result.putAll(breaker.describe()));
+        return result;
+    }
+}
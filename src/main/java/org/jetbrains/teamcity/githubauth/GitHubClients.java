@@ -0,0 +1,38 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link GitHubOAuthClient} per GitHub instance. GitHub.com is served by the client bean, clients of GitHub Enterprise
+ * servers are created on first use with their own connection pool from {@link GitHubHttpConnectionPool}.
+ */
+public class GitHubClients {
+    @NotNull
+    private final GitHubOAuthClient gitHubComClient;
+    @NotNull
+    private final GitHubHttpConnectionPool connectionPool;
+    @NotNull
+    private final Map<GitHubEndpoint, GitHubOAuthClient> enterpriseClients = new ConcurrentHashMap<>();
+
+    public GitHubClients(@NotNull GitHubOAuthClient gitHubComClient, @NotNull GitHubHttpConnectionPool connectionPool) {
+        this.gitHubComClient = gitHubComClient;
+        this.connectionPool = connectionPool;
+    }
+
+    @NotNull
+    GitHubOAuthClient get(@NotNull OAuthConnectionDescriptor connection) {
+        return get(GitHubEndpoint.forConnection(connection));
+    }
+
+    @NotNull
+    GitHubOAuthClient get(@NotNull GitHubEndpoint endpoint) {
+        if (endpoint.isGitHubCom()) return gitHubComClient;
+        return enterpriseClients.computeIfAbsent(endpoint,
+                key -> gitHubComClient.withEndpoint(key, new RestTemplate(connectionPool.createRequestFactory(key.host))));
+    }
+}
@@ -0,0 +1,148 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in ({@code teamcity.gitHubAuth.warmUp.enabled=true}) warm-up of the connections to GitHub after the server startup,
+ * so the first logins after a restart don't pay for DNS lookups and TLS handshakes. When the GitHub auth module is
+ * configured, the web and API hosts of the Root Project connections are resolved and
+ * {@code teamcity.gitHubAuth.warmUp.connections} keep-alive connections are opened to each of them in the background.
+ * <p>
+ * Warmed up connections stay in the pool for {@code teamcity.gitHubAuth.http.idleTimeoutSec} only, but TLS sessions
+ * remain cached by the JVM and make later handshakes cheaper.
+ */
+public class GitHubConnectionWarmUp implements GitHubAuthDiagnostics {
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final TeamCityCoreFacade teamCityCore;
+    @NotNull
+    private final GitHubClients clients;
+    @NotNull
+    private final Map<String, String> results = new LinkedHashMap<>();
+    @Nullable
+    private volatile ExecutorService executor;
+
+    public GitHubConnectionWarmUp(@NotNull TeamCityCoreFacade teamCityCore,
+                                  @NotNull GitHubClients clients,
+                                  @NotNull EventDispatcher<BuildServerListener> buildServerDispatcher) {
+        this.teamCityCore = teamCityCore;
+        this.clients = clients;
+        buildServerDispatcher.addListener(new BuildServerAdapter() {
+            @Override
+            public void serverStartup() {
+                start();
+            }
+        });
+    }
+
+    void start() {
+        if (!TeamCityProperties.getBoolean("teamcity.gitHubAuth.warmUp.enabled") || !teamCityCore.isAuthModuleConfigured(GitHubOAuth.class)) {
+            return;
+        }
+        int connections = Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.warmUp.connections", 2));
+        // one thread drives the warm-up and waits for the others opening the connections
+        ExecutorService warmUpExecutor = Executors.newFixedThreadPool(connections + 1, new NamedThreadFactory("GitHub connection warm-up"));
+        executor = warmUpExecutor;
+        CompletableFuture.runAsync(() -> warmUp(warmUpExecutor, connections), warmUpExecutor)
+                .whenComplete((result, e) -> warmUpExecutor.shutdown());
+    }
+
+    private void warmUp(@NotNull ExecutorService warmUpExecutor, int connections) {
+        for (OAuthConnectionDescriptor connection : teamCityCore.getRootProjectGitHubConnections().getAll()) {
+            GitHubOAuthClient client;
+            try {
+                client = clients.get(connection);
+            } catch (GitHubLoginException e) {
+                continue;
+            }
+            Set<String> urls = new LinkedHashSet<>();
+            urls.add(client.getEndpoint().getGitHubUrl());
+            urls.add(client.getEndpoint().getApiUrl());
+            for (String url : urls) {
+                warmUp(client, url, warmUpExecutor, connections);
+            }
+        }
+    }
+
+    private void warmUp(@NotNull GitHubOAuthClient client, @NotNull String url, @NotNull ExecutorService warmUpExecutor, int connections) {
+        String host = URI.create(url).getHost();
+        if (host == null) return;
+        long start = System.nanoTime();
+        String dns;
+        try {
+            dns = InetAddress.getAllByName(host).length + " addresses in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms";
+        } catch (UnknownHostException e) {
+            // the host can still be reachable via a proxy
+            dns = "not resolved";
+        }
+
+        start = System.nanoTime();
+        List<CompletableFuture<Boolean>> opened = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            opened.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    client.openConnection(url);
+                    return true;
+                } catch (RuntimeException e) {
+                    logger.debug("Failed to open a connection to " + url + ": " + e);
+                    return false;
+                }
+            }, warmUpExecutor));
+        }
+        int established = 0;
+        for (CompletableFuture<Boolean> future : opened) {
+            if (future.join()) established++;
+        }
+        String result = "dns: " + dns + ", connections: " + established + "/" + connections + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms";
+        synchronized (results) {
+            results.put(host, result);
+        }
+        logger.info("Warmed up connections to " + host + ", " + result);
+    }
+
+    public void shutdown() {
+        ExecutorService current = executor;
+        if (current != null) current.shutdownNow();
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "Connection warm-up";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", TeamCityProperties.getBoolean("teamcity.gitHubAuth.warmUp.enabled"));
+        synchronized (results) {
+            result.putAll(results);
+        }
+        return result;
+    }
+}
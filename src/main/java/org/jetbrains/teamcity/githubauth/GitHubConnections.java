@@ -0,0 +1,80 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GitHub.com and GitHub Enterprise connections of the Root Project available for login, indexed by connection id so
+ * callbacks are routed without scanning the project features. The first GitHub.com connection (or the first one if
+ * there are GitHub Enterprise connections only) is the default one.
+ */
+final class GitHubConnections {
+    static final GitHubConnections EMPTY = new GitHubConnections(Collections.emptyList());
+
+    @NotNull
+    private final List<OAuthConnectionDescriptor> connections = new ArrayList<>();
+    @NotNull
+    private final Map<String, OAuthConnectionDescriptor> byId = new HashMap<>();
+    @NotNull
+    private final Map<String, GitHubEndpoint> endpoints = new HashMap<>();
+    @Nullable
+    private final OAuthConnectionDescriptor defaultConnection;
+
+    /**
+     * @param connections connections in the order of preference, the ones with an invalid GitHub Enterprise server URL are skipped
+     */
+    GitHubConnections(@NotNull List<OAuthConnectionDescriptor> connections) {
+        OAuthConnectionDescriptor gitHubCom = null;
+        for (OAuthConnectionDescriptor connection : connections) {
+            GitHubEndpoint endpoint;
+            try {
+                endpoint = GitHubEndpoint.forConnection(connection);
+            } catch (IllegalArgumentException | GitHubLoginException e) {
+                continue;
+            }
+            if (byId.putIfAbsent(connection.getId(), connection) != null) continue;
+            this.connections.add(connection);
+            endpoints.put(connection.getId(), endpoint);
+            if (gitHubCom == null && endpoint.isGitHubCom()) gitHubCom = connection;
+        }
+        defaultConnection = gitHubCom != null ? gitHubCom : this.connections.isEmpty() ? null : this.connections.get(0);
+    }
+
+    @NotNull
+    List<OAuthConnectionDescriptor> getAll() {
+        return Collections.unmodifiableList(connections);
+    }
+
+    @Nullable
+    OAuthConnectionDescriptor getDefault() {
+        return defaultConnection;
+    }
+
+    @Nullable
+    OAuthConnectionDescriptor findById(@Nullable String connectionId) {
+        return connectionId == null ? null : byId.get(connectionId);
+    }
+
+    @NotNull
+    GitHubEndpoint getEndpoint(@NotNull OAuthConnectionDescriptor connection) {
+        GitHubEndpoint endpoint = endpoints.get(connection.getId());
+        return endpoint != null ? endpoint : GitHubEndpoint.forConnection(connection);
+    }
+
+    @NotNull
+    String describe() {
+        StringBuilder result = new StringBuilder();
+        for (OAuthConnectionDescriptor connection : connections) {
+            if (result.length() > 0) result.append(", ");
+            result.append(connection.getId()).append(" (").append(endpoints.get(connection.getId())).append(")");
+        }
+        return result.length() == 0 ? "none" : result.toString();
+    }
+}
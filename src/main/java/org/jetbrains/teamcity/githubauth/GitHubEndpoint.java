@@ -0,0 +1,121 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.PluginTypes;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.users.PluginPropertyKey;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * GitHub instance a connection points to: GitHub.com or a GitHub Enterprise server.
+ * <p>
+ * GitHub.com locations can be overridden with the {@code teamcity.gitHubAuth.gitHubUrl} and {@code teamcity.gitHubAuth.apiUrl}
+ * internal properties, e.g. to point the plugin to a stub server in load tests. GitHub Enterprise API is served by the
+ * same host under {@code /api/v3} and {@code /api/graphql}.
+ */
+final class GitHubEndpoint {
+    /**
+     * Server URL parameter of GitHub Enterprise connections, GitHub.com connections don't have it.
+     */
+    static final String SERVER_URL_PARAM = "gitHubUrl";
+
+    static final GitHubEndpoint GITHUB_COM = new GitHubEndpoint(null, "github.com", "api.github.com");
+
+    @Nullable
+    private final String serverUrl;
+    /**
+     * Host of the web endpoints (authorization, token exchange), used as the circuit breaker and rate limit key.
+     */
+    @NotNull
+    final String host;
+    /**
+     * Host of the API endpoints, used as the circuit breaker and rate limit key.
+     */
+    @NotNull
+    final String apiHost;
+
+    private GitHubEndpoint(@Nullable String serverUrl, @NotNull String host, @NotNull String apiHost) {
+        this.serverUrl = serverUrl;
+        this.host = host;
+        this.apiHost = apiHost;
+    }
+
+    @NotNull
+    static GitHubEndpoint forConnection(@NotNull OAuthConnectionDescriptor connection) {
+        String serverUrl = connection.getParameters().get(SERVER_URL_PARAM);
+        return StringUtil.isEmptyOrSpaces(serverUrl) ? GITHUB_COM : enterprise(serverUrl);
+    }
+
+    @NotNull
+    static GitHubEndpoint enterprise(@NotNull String serverUrl) {
+        String url = trimSlash(serverUrl.trim());
+        String host = URI.create(url).getHost();
+        if (host == null) {
+            throw new GitHubLocalLoginException("Invalid GitHub Enterprise server URL: " + serverUrl);
+        }
+        host = host.toLowerCase(Locale.ENGLISH);
+        return new GitHubEndpoint(url, host, host);
+    }
+
+    boolean isGitHubCom() {
+        return serverUrl == null;
+    }
+
+    @NotNull
+    String getGitHubUrl() {
+        return serverUrl != null ? serverUrl : trimSlash(TeamCityProperties.getProperty(GitHubOAuthClient.GITHUB_URL_PROPERTY, "https://github.com"));
+    }
+
+    @NotNull
+    String getApiUrl() {
+        return serverUrl != null ? serverUrl + "/api/v3" : trimSlash(TeamCityProperties.getProperty(GitHubOAuthClient.GITHUB_API_URL_PROPERTY, "https://api.github.com"));
+    }
+
+    @NotNull
+    String getGraphQlUrl() {
+        return serverUrl != null ? serverUrl + "/api/graphql" : getApiUrl() + "/graphql";
+    }
+
+    /**
+     * User ids of different GitHub instances overlap, so users of GitHub Enterprise servers are linked with a per-host property.
+     */
+    @NotNull
+    PluginPropertyKey getUserIdPropertyKey() {
+        return isGitHubCom() ? GitHubOAuth.GITHUB_USER_ID_PROPERTY_KEY
+                : new PluginPropertyKey(PluginTypes.AUTH_PLUGIN_TYPE, "github-oauth", "userId." + host);
+    }
+
+    @NotNull
+    String describe() {
+        return isGitHubCom() ? "GitHub" : "GitHub Enterprise (" + host + ")";
+    }
+
+    @NotNull
+    private static String trimSlash(@NotNull String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GitHubEndpoint)) return false;
+        GitHubEndpoint that = (GitHubEndpoint) o;
+        return Objects.equals(serverUrl, that.serverUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(serverUrl);
+    }
+
+    @Override
+    public String toString() {
+        return isGitHubCom() ? "github.com" : serverUrl;
+    }
+}
@@ -0,0 +1,243 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive connection pools for the requests to GitHub: the shared one for GitHub.com and a separate one for each
+ * GitHub Enterprise host, so a slow server can't take the connections the logins via other servers need.
+ * <p>
+ * Pools are created on the first request, so the plugin doesn't build an HTTP stack when GitHub login isn't used.
+ * Settings are read from the {@code teamcity.gitHubAuth.http.*} internal properties when a pool is created
+ * ({@code maxConnectionsPerHost} or {@code maxConnectionsPerHost.<host>} limit the size of GitHub Enterprise pools).
+ * <p>
+ * With {@code teamcity.gitHubAuth.http.transport=jdk} requests are sent by the JDK {@code java.net.http.HttpClient} over
+ * HTTP/2 instead, a client per GitHub instance multiplexes concurrent requests over one connection per host. The pools
+ * are not used then. If the JVM has no {@code java.net.http}, the pools are used as well.
+ */
+public class GitHubHttpConnectionPool implements GitHubAuthDiagnostics {
+    static final String PROPERTY_PREFIX = "teamcity.gitHubAuth.http.";
+    static final String TRANSPORT_PROPERTY = PROPERTY_PREFIX + "transport";
+    static final String JDK_TRANSPORT = "jdk";
+    private static final String HTTP_COMPONENTS_TRANSPORT = "httpComponents";
+    private static final String JDK_REQUEST_FACTORY_CLASS = "org.jetbrains.teamcity.githubauth.GitHubJdkHttpRequestFactory";
+
+    private static final HttpRoute GITHUB_ROUTE = new HttpRoute(new HttpHost("github.com", 443, "https"));
+    private static final HttpRoute GITHUB_API_ROUTE = new HttpRoute(new HttpHost("api.github.com", 443, "https"));
+
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final Object lock = new Object();
+    @Nullable
+    private volatile ClientHttpRequestFactory gitHubComRequestFactory;
+    @Nullable
+    private PoolingHttpClientConnectionManager connectionManager;
+    @Nullable
+    private CloseableHttpClient httpClient;
+    @NotNull
+    private final Map<String, HostPool> hostPools = new ConcurrentHashMap<>();
+    @NotNull
+    private final String transport;
+
+    public GitHubHttpConnectionPool() {
+        transport = selectTransport();
+    }
+
+    @NotNull
+    private ClientHttpRequestFactory getGitHubComRequestFactory() {
+        ClientHttpRequestFactory result = gitHubComRequestFactory;
+        if (result != null) return result;
+        synchronized (lock) {
+            if (gitHubComRequestFactory == null) {
+                if (JDK_TRANSPORT.equals(transport)) {
+                    gitHubComRequestFactory = createJdkRequestFactory();
+                } else {
+                    int maxConnectionsPerRoute = getInteger("maxConnectionsPerRoute", 20);
+                    connectionManager = createConnectionManager(getInteger("maxConnections", 50), maxConnectionsPerRoute);
+                    connectionManager.setMaxPerRoute(GITHUB_ROUTE, getInteger("maxConnectionsPerRoute.github.com", maxConnectionsPerRoute));
+                    connectionManager.setMaxPerRoute(GITHUB_API_ROUTE, getInteger("maxConnectionsPerRoute.api.github.com", maxConnectionsPerRoute));
+                    httpClient = createHttpClient(connectionManager);
+                    gitHubComRequestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+                }
+                logger.info("Created GitHub HTTP client, transport: " + transport);
+            }
+            return gitHubComRequestFactory;
+        }
+    }
+
+    @NotNull
+    private static PoolingHttpClientConnectionManager createConnectionManager(int maxConnections, int maxConnectionsPerRoute) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(getInteger("connectionTtlSec", 300), TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(getInteger("validateAfterInactivityMs", 2000));
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(getInteger("readTimeoutMs", 30000))
+                .setSoKeepAlive(true)
+                .setTcpNoDelay(true)
+                .build());
+        return connectionManager;
+    }
+
+    @NotNull
+    private static CloseableHttpClient createHttpClient(@NotNull PoolingHttpClientConnectionManager connectionManager) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(getInteger("connectTimeoutMs", 10000))
+                .setSocketTimeout(getInteger("readTimeoutMs", 30000))
+                .setConnectionRequestTimeout(getInteger("connectionRequestTimeoutMs", 10000))
+                .build();
+
+        long maxKeepAliveMs = TimeUnit.SECONDS.toMillis(getInteger("keepAliveSec", 60));
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, maxKeepAliveMs) : maxKeepAliveMs;
+        };
+
+        return HttpClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(getInteger("idleTimeoutSec", 30), TimeUnit.SECONDS)
+                .build();
+    }
+
+    @NotNull
+    private String selectTransport() {
+        String transport = TeamCityProperties.getProperty(TRANSPORT_PROPERTY, HTTP_COMPONENTS_TRANSPORT);
+        if (!JDK_TRANSPORT.equals(transport)) return HTTP_COMPONENTS_TRANSPORT;
+        try {
+            Class.forName("java.net.http.HttpClient");
+            Class.forName(JDK_REQUEST_FACTORY_CLASS);
+            return JDK_TRANSPORT;
+        } catch (ClassNotFoundException | LinkageError e) {
+            logger.info("java.net.http is not available in this JVM, requests to GitHub will use the HTTP/1.1 connection pool: " + e);
+            return HTTP_COMPONENTS_TRANSPORT;
+        }
+    }
+
+    /**
+     * @return factory for GitHub.com requests, the underlying client is created on the first request
+     */
+    @NotNull
+    public ClientHttpRequestFactory createRequestFactory() {
+        return (uri, httpMethod) -> getGitHubComRequestFactory().createRequest(uri, httpMethod);
+    }
+
+    /**
+     * @return factory using the dedicated pool (or HTTP/2 client) of the given GitHub Enterprise host
+     */
+    @NotNull
+    public ClientHttpRequestFactory createRequestFactory(@NotNull String host) {
+        if (JDK_TRANSPORT.equals(transport)) return createJdkRequestFactory();
+        HostPool pool = hostPools.computeIfAbsent(host, HostPool::new);
+        return new HttpComponentsClientHttpRequestFactory(pool.httpClient);
+    }
+
+    /**
+     * {@code GitHubJdkHttpRequestFactory} is compiled for Java 11 separately from the rest of the plugin, so it's loaded
+     * reflectively after {@link #selectTransport} has checked that {@code java.net.http} is available.
+     */
+    @NotNull
+    private static ClientHttpRequestFactory createJdkRequestFactory() {
+        try {
+            return (ClientHttpRequestFactory) Class.forName(JDK_REQUEST_FACTORY_CLASS)
+                    .getDeclaredConstructor(long.class, long.class)
+                    .newInstance(getInteger("connectTimeoutMs", 10000), getInteger("readTimeoutMs", 30000));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + JDK_REQUEST_FACTORY_CLASS, e);
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            if (httpClient != null) close(httpClient);
+        }
+        for (HostPool pool : hostPools.values()) {
+            close(pool.httpClient);
+        }
+    }
+
+    private void close(@NotNull CloseableHttpClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.warnAndDebugDetails("Error closing GitHub HTTP connection pool", e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "HTTP connection pool";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("transport", transport);
+        synchronized (lock) {
+            result.put("initialized", gitHubComRequestFactory != null);
+            if (connectionManager != null) {
+                putStats(result, "total", connectionManager.getTotalStats());
+                putStats(result, "github.com", connectionManager.getStats(GITHUB_ROUTE));
+                putStats(result, "api.github.com", connectionManager.getStats(GITHUB_API_ROUTE));
+            }
+        }
+        for (HostPool pool : hostPools.values()) {
+            putStats(result, pool.host, pool.connectionManager.getTotalStats());
+        }
+        return result;
+    }
+
+    private static void putStats(@NotNull Map<String, Object> result, @NotNull String prefix, @NotNull PoolStats stats) {
+        result.put(prefix + ".leased", stats.getLeased());
+        result.put(prefix + ".pending", stats.getPending());
+        result.put(prefix + ".available", stats.getAvailable());
+        result.put(prefix + ".max", stats.getMax());
+    }
+
+    private static int getInteger(@NotNull String name, int defaultValue) {
+        return TeamCityProperties.getInteger(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    private static final class HostPool {
+        @NotNull
+        private final String host;
+        @NotNull
+        private final PoolingHttpClientConnectionManager connectionManager;
+        @NotNull
+        private final CloseableHttpClient httpClient;
+
+        private HostPool(@NotNull String host) {
+            this.host = host;
+            int maxConnections = getInteger("maxConnectionsPerHost." + host, getInteger("maxConnectionsPerHost", 20));
+            connectionManager = createConnectionManager(maxConnections, maxConnections);
+            httpClient = createHttpClient(connectionManager);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming decoder of the GitHub responses the plugin reads.
+ * <p>
+ * Reads the response with Gson {@link JsonReader} and keeps only the fields the plugin uses, other values
+ * (including nested objects and arrays) are skipped without being materialized. Read-only, other types and
+ * requests are left to the default converters.
+ */
+public class GitHubJsonMessageConverter extends AbstractHttpMessageConverter<Object> {
+
+    public GitHubJsonMessageConverter() {
+        super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return clazz == GitHubTokenResponse.class || clazz == GitHubUser.class || clazz == GitHubUser[].class ||
+                clazz == GitHubUserEmail[].class || clazz == GitHubOrganization[].class;
+    }
+
+    @Override
+    protected boolean canWrite(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+        MediaType contentType = inputMessage.getHeaders().getContentType();
+        Charset charset = contentType != null && contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(inputMessage.getBody(), charset))) {
+            if (clazz == GitHubTokenResponse.class) return readTokenResponse(reader);
+            if (clazz == GitHubUser.class) return readUser(reader);
+            if (clazz == GitHubUser[].class) return readUsers(reader);
+            if (clazz == GitHubUserEmail[].class) return readEmails(reader);
+            if (clazz == GitHubOrganization[].class) return readOrganizations(reader);
+            throw new HttpMessageNotReadableException("Unsupported type " + clazz.getName());
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new HttpMessageNotReadableException("Could not read GitHub response: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected void writeInternal(Object o, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        throw new HttpMessageNotWritableException("Writing is not supported");
+    }
+
+    @NotNull
+    private static GitHubTokenResponse readTokenResponse(@NotNull JsonReader reader) throws IOException {
+        GitHubTokenResponse result = new GitHubTokenResponse();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "access_token":
+                    result.access_token = nextString(reader);
+                    break;
+                case "scope":
+                    result.scope = nextString(reader);
+                    break;
+                case "error":
+                    result.error = nextString(reader);
+                    break;
+                case "error_description":
+                    result.error_description = nextString(reader);
+                    break;
+                case "error_uri":
+                    result.error_uri = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    @NotNull
+    private static GitHubUser readUser(@NotNull JsonReader reader) throws IOException {
+        GitHubUser result = new GitHubUser();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    result.setId(nextString(reader));
+                    break;
+                case "login":
+                    result.setLogin(nextString(reader));
+                    break;
+                case "email":
+                    result.setEmail(nextString(reader));
+                    break;
+                case "name":
+                    result.setName(nextString(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    @NotNull
+    private static GitHubUser[] readUsers(@NotNull JsonReader reader) throws IOException {
+        List<GitHubUser> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(readUser(reader));
+        }
+        reader.endArray();
+        return result.toArray(new GitHubUser[result.size()]);
+    }
+
+    @NotNull
+    private static GitHubUserEmail[] readEmails(@NotNull JsonReader reader) throws IOException {
+        List<GitHubUserEmail> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            GitHubUserEmail email = new GitHubUserEmail();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "email":
+                        email.setEmail(nextString(reader));
+                        break;
+                    case "primary":
+                        email.setPrimary(nextBoolean(reader));
+                        break;
+                    case "verified":
+                        email.setVerified(nextBoolean(reader));
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            result.add(email);
+        }
+        reader.endArray();
+        return result.toArray(new GitHubUserEmail[result.size()]);
+    }
+
+    @NotNull
+    private static GitHubOrganization[] readOrganizations(@NotNull JsonReader reader) throws IOException {
+        List<GitHubOrganization> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            GitHubOrganization organization = new GitHubOrganization();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        organization.setId(nextString(reader));
+                        break;
+                    case "login":
+                        organization.setLogin(nextString(reader));
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            result.add(organization);
+        }
+        reader.endArray();
+        return result.toArray(new GitHubOrganization[result.size()]);
+    }
+
+    /**
+     * Reads strings and numbers as strings, e.g. GitHub ids are numbers.
+     */
+    @Nullable
+    private static String nextString(@NotNull JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static boolean nextBoolean(@NotNull JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        reader.skipValue();
+        return false;
+    }
+}
@@ -0,0 +1,17 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NonNls;
+
+/**
+ * Thrown when a login fails on the TeamCity side rather than because of GitHub: a concurrency limit is reached,
+ * a wait for a concurrent login times out or the plugin is misconfigured.
+ */
+public class GitHubLocalLoginException extends GitHubLoginException {
+    public GitHubLocalLoginException(@NonNls String message) {
+        super(message);
+    }
+
+    public GitHubLocalLoginException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
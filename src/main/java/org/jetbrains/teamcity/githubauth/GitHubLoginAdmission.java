@@ -0,0 +1,234 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket admission control of the anonymous entry points: the login redirect and the OAuth callback. A request
+ * has to get a token from the bucket of its client address (see {@link ClientAddresses}) and from the global bucket of
+ * the entry point, otherwise it is rejected with a cheap 429 before any session work or GitHub calls. The client bucket
+ * is checked first but its token is taken only after the global one, so a client over its limit doesn't use up the
+ * global budget and a request rejected by the global limit doesn't use up the budget of its client.
+ * <p>
+ * A bucket is a single {@code long} holding the time it becomes full again (the generic cell rate algorithm), so taking
+ * a token is one CAS. Client addresses are mapped by hash to a fixed number of stripes
+ * ({@code teamcity.gitHubAuth.admission.ipStripes}), addresses sharing a stripe share its bucket and no per-address state is
+ * kept. The global rate is split between stripes selected by the thread, so the global bucket isn't a single contended
+ * value either. Every stripe gets at least one token per second and a burst of one, so small global rates use fewer
+ * stripes. Rates and bursts are read from {@code teamcity.gitHubAuth.admission.<login|callback>.<perIp|global>.<rate|burst>}
+ * on every request, {@code teamcity.gitHubAuth.admission.enabled=false} disables the limits.
+ */
+public class GitHubLoginAdmission implements GitHubAuthDiagnostics {
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    enum EntryPoint {
+        LOGIN("login", 5, 20, 100, 200),
+        CALLBACK("callback", 5, 20, 100, 200);
+
+        @NotNull
+        final String name;
+        private final int defaultPerIpRate;
+        private final int defaultPerIpBurst;
+        private final int defaultGlobalRate;
+        private final int defaultGlobalBurst;
+
+        EntryPoint(@NotNull String name, int defaultPerIpRate, int defaultPerIpBurst, int defaultGlobalRate, int defaultGlobalBurst) {
+            this.name = name;
+            this.defaultPerIpRate = defaultPerIpRate;
+            this.defaultPerIpBurst = defaultPerIpBurst;
+            this.defaultGlobalRate = defaultGlobalRate;
+            this.defaultGlobalBurst = defaultGlobalBurst;
+        }
+    }
+
+    @NotNull
+    private final Map<EntryPoint, Limiter> limiters = new LinkedHashMap<>();
+
+    public GitHubLoginAdmission() {
+        int ipStripes = TeamCityProperties.getInteger("teamcity.gitHubAuth.admission.ipStripes", 4096);
+        int globalStripes = TeamCityProperties.getInteger("teamcity.gitHubAuth.admission.globalStripes", Runtime.getRuntime().availableProcessors());
+        for (EntryPoint entryPoint : EntryPoint.values()) {
+            limiters.put(entryPoint, new Limiter(entryPoint, ipStripes, globalStripes));
+        }
+    }
+
+    /**
+     * @return true if the request may proceed, otherwise the 429 response is already sent
+     */
+    boolean admit(@NotNull EntryPoint entryPoint, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+        if (!TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.admission.enabled")) return true;
+        Limiter limiter = limiters.get(entryPoint);
+        long retryAfterNanos = limiter.tryAcquire(ClientAddresses.get(request), System.nanoTime());
+        if (retryAfterNanos == 0) return true;
+
+        response.setStatus(SC_TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1))));
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentType("text/plain;charset=UTF-8");
+        response.getWriter().write("Too many GitHub login attempts, please try again later");
+        response.flushBuffer();
+        return false;
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "Login admission control";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.admission.enabled"));
+        for (Limiter limiter : limiters.values()) {
+            String prefix = limiter.entryPoint.name + ".";
+            result.put(prefix + "admitted", limiter.admitted.sum());
+            result.put(prefix + "rejectedPerIp", limiter.rejectedPerIp.sum());
+            result.put(prefix + "rejectedGlobal", limiter.rejectedGlobal.sum());
+            result.put(prefix + "perIpRate", limiter.getRate("perIp", limiter.entryPoint.defaultPerIpRate));
+            result.put(prefix + "globalRate", limiter.getRate("global", limiter.entryPoint.defaultGlobalRate));
+        }
+        return result;
+    }
+
+    private static final class Limiter {
+        @NotNull
+        private final EntryPoint entryPoint;
+        @NotNull
+        private final TokenBuckets perIp;
+        @NotNull
+        private final TokenBuckets global;
+        @NotNull
+        private final LongAdder admitted = new LongAdder();
+        @NotNull
+        private final LongAdder rejectedPerIp = new LongAdder();
+        @NotNull
+        private final LongAdder rejectedGlobal = new LongAdder();
+
+        private Limiter(@NotNull EntryPoint entryPoint, int ipStripes, int globalStripes) {
+            this.entryPoint = entryPoint;
+            perIp = new TokenBuckets(ipStripes);
+            global = new TokenBuckets(globalStripes);
+        }
+
+        /**
+         * @return 0 if a token is taken, otherwise nanoseconds until the next one is available
+         */
+        private long tryAcquire(@NotNull String address, long now) {
+            int perIpRate = getRate("perIp", entryPoint.defaultPerIpRate);
+            int perIpBurst = getBurst("perIp", entryPoint.defaultPerIpBurst);
+            int addressHash = hash(address);
+            long retryAfter = perIp.check(addressHash, now, perIpRate, perIpBurst);
+            if (retryAfter != 0) {
+                rejectedPerIp.increment();
+                return retryAfter;
+            }
+            int globalRate = getRate("global", entryPoint.defaultGlobalRate);
+            int globalBurst = getBurst("global", entryPoint.defaultGlobalBurst);
+            int stripes = global.stripesFor(Math.min(globalRate, globalBurst));
+            retryAfter = global.tryAcquire(hash(Thread.currentThread().getId()) & (stripes - 1), now,
+                    globalRate / stripes, globalBurst / stripes);
+            if (retryAfter != 0) {
+                rejectedGlobal.increment();
+                return retryAfter;
+            }
+            // another request of the client could take the last token since the check
+            retryAfter = perIp.tryAcquire(addressHash, now, perIpRate, perIpBurst);
+            if (retryAfter != 0) {
+                rejectedPerIp.increment();
+                return retryAfter;
+            }
+            admitted.increment();
+            return 0;
+        }
+
+        private int getRate(@NotNull String scope, int defaultValue) {
+            return Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.admission." + entryPoint.name + "." + scope + ".rate", defaultValue));
+        }
+
+        private int getBurst(@NotNull String scope, int defaultValue) {
+            return Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.admission." + entryPoint.name + "." + scope + ".burst", defaultValue));
+        }
+
+        private static int hash(@NotNull Object key) {
+            int hash = key.hashCode();
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * Fixed number of token buckets, each one is the time (in {@link System#nanoTime()}) when the bucket becomes full again.
+     */
+    static final class TokenBuckets {
+        @NotNull
+        private final AtomicLongArray fullAt;
+        private final int mask;
+
+        /**
+         * @param stripes number of buckets, rounded up to a power of two
+         */
+        TokenBuckets(int stripes) {
+            int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+            fullAt = new AtomicLongArray(size);
+            mask = size - 1;
+            long now = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                fullAt.set(i, now);
+            }
+        }
+
+        int size() {
+            return fullAt.length();
+        }
+
+        /**
+         * @param maxStripes upper bound of the stripes to use, e.g. the rate so that every stripe gets a token per second
+         * @return the largest power of two not exceeding the number of buckets and the given bound
+         */
+        int stripesFor(int maxStripes) {
+            return Math.min(fullAt.length(), Integer.highestOneBit(Math.max(1, maxStripes)));
+        }
+
+        /**
+         * Checks the bucket without taking a token.
+         *
+         * @return 0 if a token is available, otherwise nanoseconds until the next one is available
+         */
+        long check(int hash, long now, int rate, int burst) {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long current = fullAt.get(hash & mask);
+            long next = (current - now < 0 ? now : current) + interval;
+            return Math.max(0, next - now - interval * burst);
+        }
+
+        /**
+         * @param rate  tokens added per second
+         * @param burst bucket capacity
+         * @return 0 if a token is taken, otherwise nanoseconds until the next one is available
+         */
+        long tryAcquire(int hash, long now, int rate, int burst) {
+            int index = hash & mask;
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long capacity = interval * burst;
+            while (true) {
+                long current = fullAt.get(index);
+                long base = current - now < 0 ? now : current;
+                long next = base + interval;
+                if (next - now > capacity) {
+                    return next - now - capacity;
+                }
+                if (fullAt.compareAndSet(index, current, next)) return 0;
+            }
+        }
+    }
+}
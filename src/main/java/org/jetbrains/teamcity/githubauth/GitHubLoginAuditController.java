@@ -0,0 +1,58 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+
+/**
+ * Last records of the {@link GitHubLoginAuditJournal} as JSON lines, available to system administrators only.
+ * Optional parameters: {@code event}, {@code source} and {@code limit} (100 by default).
+ */
+public class GitHubLoginAuditController extends BaseController {
+    public static final String PATH = "/admin/gitHubAuthAudit.html";
+
+    @NotNull
+    private final GitHubLoginAuditJournal journal;
+
+    public GitHubLoginAuditController(@NotNull WebControllerManager webControllerManager,
+                                      @NotNull GitHubLoginAuditJournal journal) {
+        this.journal = journal;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return null;
+        }
+
+        int limit;
+        try {
+            limit = Integer.parseInt(StringUtil.notNullize(request.getParameter("limit"), "100"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit");
+            return null;
+        }
+
+        response.setContentType("application/x-ndjson;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (String line : journal.read(StringUtil.nullIfEmpty(request.getParameter("event")), StringUtil.nullIfEmpty(request.getParameter("source")), Math.max(1, limit))) {
+            writer.println(line);
+        }
+        writer.flush();
+        return null;
+    }
+}
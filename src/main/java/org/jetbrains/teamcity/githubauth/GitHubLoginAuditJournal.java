@@ -0,0 +1,419 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.web.util.WebUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Journal of GitHub login events (rejected callbacks, denied and successful logins) in {@code login-audit.jsonl} of the
+ * plugin data directory, one JSON object per line.
+ * <p>
+ * Request threads only put records into a lock-free ring buffer ({@code teamcity.gitHubAuth.audit.bufferSize}), a
+ * background thread started by the first record appends them to the file every {@code teamcity.gitHubAuth.audit.flushDelayMs}.
+ * Records which don't fit into the buffer are dropped. Rejected callbacks of a source address (see {@link ClientAddresses})
+ * are limited to {@code teamcity.gitHubAuth.audit.maxRecordsPerSourcePerMinute}, the number of suppressed ones is put
+ * into the next accepted record of the source. Authentication outcomes are always recorded. At most
+ * {@code teamcity.gitHubAuth.audit.maxSources} sources are tracked, windows older than a minute are evicted to make
+ * room and rejected callbacks of new sources are suppressed while all windows are current. Request dumps are added to
+ * {@code teamcity.gitHubAuth.audit.dumpSamplePercent} of the rejected callbacks only. The file is rotated to
+ * {@code login-audit.jsonl.1} when it exceeds {@code teamcity.gitHubAuth.audit.maxFileSizeMb}.
+ * <p>
+ * The journal can be read with {@link GitHubLoginAuditController} or from the command line:
+ * {@code java -cp <plugin jars> org.jetbrains.teamcity.githubauth.GitHubLoginAuditJournal <file> [event=<event>] [source=<address>] [limit=<n>]}
+ */
+public class GitHubLoginAuditJournal implements GitHubAuthDiagnostics {
+    static final String FILE_NAME = "login-audit.jsonl";
+
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final File file;
+    @NotNull
+    private final RingBuffer buffer = new RingBuffer(TeamCityProperties.getInteger("teamcity.gitHubAuth.audit.bufferSize", 4096));
+    @NotNull
+    private final Map<String, SourceWindow> sources = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicLong evictedAtNanos = new AtomicLong(System.nanoTime());
+    @NotNull
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("GitHub login audit"));
+    @NotNull
+    private final AtomicBoolean writerStarted = new AtomicBoolean();
+    private long summaryAtNanos = System.nanoTime();
+    private long rejectedSinceSummary;
+
+    @NotNull
+    private final AtomicLong recorded = new AtomicLong();
+    @NotNull
+    private final AtomicLong suppressed = new AtomicLong();
+    @NotNull
+    private final AtomicLong dropped = new AtomicLong();
+    @NotNull
+    private final AtomicLong dumps = new AtomicLong();
+    @NotNull
+    private final AtomicLong written = new AtomicLong();
+    @NotNull
+    private final AtomicLong failed = new AtomicLong();
+
+    public GitHubLoginAuditJournal(@NotNull ServerPaths serverPaths) {
+        this(new File(new File(serverPaths.getPluginDataDirectory(), "gitHubAuth"), FILE_NAME));
+    }
+
+    GitHubLoginAuditJournal(@NotNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Records a rejected callback, the number of these records per source is limited and the request dump is added to
+     * the sampled records only.
+     */
+    void recordRejected(@NotNull String event, @NotNull HttpServletRequest request, @Nullable String detail) {
+        record(event, request, detail, null, true);
+    }
+
+    /**
+     * Records an authentication outcome, these records are never suppressed.
+     */
+    void record(@NotNull String event, @NotNull HttpServletRequest request, @Nullable String detail, @Nullable String user) {
+        record(event, request, detail, user, false);
+    }
+
+    private void record(@NotNull String event, @NotNull HttpServletRequest request, @Nullable String detail, @Nullable String user, boolean rejected) {
+        if (!TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.audit.enabled")) return;
+        String source = ClientAddresses.get(request);
+        int suppressedBefore = rejected ? acquire(source) : 0;
+        if (suppressedBefore < 0) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        String dump = null;
+        if (rejected && ThreadLocalRandom.current().nextInt(100) < TeamCityProperties.getInteger("teamcity.gitHubAuth.audit.dumpSamplePercent", 1)) {
+            dump = WebUtil.getRequestDump(request);
+            dumps.incrementAndGet();
+        }
+        if (buffer.offer(new Record(System.currentTimeMillis(), event, source, detail, user, dump, suppressedBefore, rejected))) {
+            recorded.incrementAndGet();
+            startWriter();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of records of the source suppressed since the last accepted one, or -1 if the record should be suppressed
+     */
+    private int acquire(@NotNull String source) {
+        long now = System.nanoTime();
+        SourceWindow window = sources.get(source);
+        if (window == null) {
+            int maxSources = TeamCityProperties.getInteger("teamcity.gitHubAuth.audit.maxSources", 10000);
+            if (sources.size() >= maxSources) {
+                evictExpired(now);
+                if (sources.size() >= maxSources) return -1;
+            }
+            window = sources.computeIfAbsent(source, key -> new SourceWindow(now));
+        }
+        return window.acquire(now, TeamCityProperties.getInteger("teamcity.gitHubAuth.audit.maxRecordsPerSourcePerMinute", 60));
+    }
+
+    /**
+     * Removes the windows older than a minute, at most once a second as it scans all sources.
+     */
+    private void evictExpired(long now) {
+        long evictedAt = evictedAtNanos.get();
+        if (now - evictedAt < TimeUnit.SECONDS.toNanos(1) || !evictedAtNanos.compareAndSet(evictedAt, now)) return;
+        sources.values().removeIf(window -> window.isExpired(now));
+    }
+
+    private void startWriter() {
+        if (writerStarted.get() || !writerStarted.compareAndSet(false, true)) return;
+        long delayMs = TeamCityProperties.getLong("teamcity.gitHubAuth.audit.flushDelayMs", 500);
+        try {
+            writer.scheduleWithFixedDelay(this::flushSafely, delayMs, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the buffered records are written by shutdown()
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Throwable e) {
+            failed.incrementAndGet();
+            logger.warn("Failed to write the GitHub login audit journal " + file + ": " + e);
+            logger.debug(e);
+        }
+    }
+
+    /**
+     * Appends the buffered records to the file, synchronized as the ring buffer allows a single consumer only.
+     */
+    synchronized void flush() throws IOException {
+        Record record = buffer.poll();
+        if (record == null) return;
+        rotateIfNeeded();
+        Files.createDirectories(file.getParentFile().toPath());
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (; record != null; record = buffer.poll()) {
+                out.write(record.toJson());
+                out.write('\n');
+                written.incrementAndGet();
+                if (record.rejected) rejectedSinceSummary++;
+            }
+        }
+        if (rejectedSinceSummary > 0 && System.nanoTime() - summaryAtNanos > TimeUnit.MINUTES.toNanos(1)) {
+            logger.warn("Rejected " + rejectedSinceSummary + " GitHub login callbacks with invalid parameters, see " + file + " for details");
+            rejectedSinceSummary = 0;
+            summaryAtNanos = System.nanoTime();
+        }
+    }
+
+    private void rotateIfNeeded() throws IOException {
+        long maxSize = TeamCityProperties.getLong("teamcity.gitHubAuth.audit.maxFileSizeMb", 10) * 1024 * 1024;
+        if (file.length() > maxSize) {
+            Files.move(file.toPath(), getRotatedFile(file).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @NotNull
+    private static File getRotatedFile(@NotNull File file) {
+        return new File(file.getParentFile(), file.getName() + ".1");
+    }
+
+    public void shutdown() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        flushSafely();
+    }
+
+    /**
+     * @return the last {@code limit} records of the journal files matching the filters, oldest first
+     */
+    @NotNull
+    List<String> read(@Nullable String event, @Nullable String source, int limit) throws IOException {
+        List<String> result = new ArrayList<>(read(getRotatedFile(file), event, source, limit));
+        result.addAll(read(file, event, source, limit));
+        return result.size() > limit ? result.subList(result.size() - limit, result.size()) : result;
+    }
+
+    @NotNull
+    static List<String> read(@NotNull File file, @Nullable String event, @Nullable String source, int limit) throws IOException {
+        Deque<String> result = new ArrayDeque<>();
+        if (!file.isFile()) return new ArrayList<>(result);
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!matches(line, event, source)) continue;
+                result.addLast(line);
+                if (result.size() > limit) result.removeFirst();
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static boolean matches(@NotNull String line, @Nullable String event, @Nullable String source) {
+        if (event == null && source == null) return true;
+        try {
+            JsonObject record = new JsonParser().parse(line).getAsJsonObject();
+            return (event == null || record.has("event") && event.equals(record.get("event").getAsString())) &&
+                    (source == null || record.has("source") && source.equals(record.get("source").getAsString()));
+        } catch (JsonParseException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: GitHubLoginAuditJournal <login-audit.jsonl> [event=<event>] [source=<address>] [limit=<n>]");
+            System.exit(1);
+        }
+        Map<String, String> filters = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq > 0) filters.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        int limit = filters.containsKey("limit") ? Integer.parseInt(filters.get("limit")) : Integer.MAX_VALUE;
+        for (String line : read(new File(args[0]), filters.get("event"), filters.get("source"), limit)) {
+            System.out.println(line);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "Login audit journal";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("file", file);
+        result.put("recorded", recorded.get());
+        result.put("written", written.get());
+        result.put("buffered", buffer.size());
+        result.put("suppressed", suppressed.get());
+        result.put("dropped", dropped.get());
+        result.put("dumps", dumps.get());
+        result.put("failed", failed.get());
+        result.put("sources", sources.size());
+        return result;
+    }
+
+    private static final class Record {
+        private final long time;
+        @NotNull
+        private final String event;
+        @NotNull
+        private final String source;
+        @Nullable
+        private final String detail;
+        @Nullable
+        private final String user;
+        @Nullable
+        private final String request;
+        private final int suppressed;
+        private final boolean rejected;
+
+        private Record(long time, @NotNull String event, @NotNull String source, @Nullable String detail, @Nullable String user,
+                       @Nullable String request, int suppressed, boolean rejected) {
+            this.time = time;
+            this.event = event;
+            this.source = source;
+            this.detail = detail;
+            this.user = user;
+            this.request = request;
+            this.suppressed = suppressed;
+            this.rejected = rejected;
+        }
+
+        @NotNull
+        private String toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("time", Instant.ofEpochMilli(time).toString());
+            json.addProperty("event", event);
+            json.addProperty("source", source);
+            if (detail != null) json.addProperty("detail", detail);
+            if (user != null) json.addProperty("user", user);
+            if (suppressed > 0) json.addProperty("suppressed", suppressed);
+            if (request != null) json.addProperty("request", request);
+            return json.toString();
+        }
+    }
+
+    /**
+     * Fixed one minute window of the records of a source.
+     */
+    private static final class SourceWindow {
+        @NotNull
+        private final AtomicLong startNanos;
+        @NotNull
+        private final AtomicInteger count = new AtomicInteger();
+        @NotNull
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        private SourceWindow(long now) {
+            startNanos = new AtomicLong(now);
+        }
+
+        private boolean isExpired(long now) {
+            return now - startNanos.get() > TimeUnit.MINUTES.toNanos(1);
+        }
+
+        private int acquire(long now, int limit) {
+            long start = startNanos.get();
+            if (now - start > TimeUnit.MINUTES.toNanos(1) && startNanos.compareAndSet(start, now)) {
+                count.set(0);
+            }
+            if (count.incrementAndGet() > limit) {
+                suppressed.incrementAndGet();
+                return -1;
+            }
+            return suppressed.getAndSet(0);
+        }
+    }
+
+    /**
+     * Bounded multi-producer single-consumer ring buffer, producers claim a slot with a CAS and never block.
+     */
+    private static final class RingBuffer {
+        @NotNull
+        private final AtomicReferenceArray<Record> slots;
+        private final int mask;
+        @NotNull
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+
+        private RingBuffer(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new AtomicReferenceArray<>(size);
+            mask = size - 1;
+        }
+
+        private boolean offer(@NotNull Record record) {
+            while (true) {
+                long claimed = tail.get();
+                if (claimed - head >= slots.length()) return false;
+                if (tail.compareAndSet(claimed, claimed + 1)) {
+                    slots.set((int) (claimed & mask), record);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return the oldest record or null if the buffer is empty or the oldest record is not published yet, must be called by a single thread
+         */
+        @Nullable
+        private Record poll() {
+            int index = (int) (head & mask);
+            Record record = slots.get(index);
+            if (record == null) return null;
+            slots.set(index, null);
+            head = head + 1;
+            return record;
+        }
+
+        private long size() {
+            return Math.max(0, tail.get() - head);
+        }
+    }
+}
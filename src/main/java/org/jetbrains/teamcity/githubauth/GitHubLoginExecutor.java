@@ -0,0 +1,240 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs outbound GitHub calls of the asynchronous login mode ({@code teamcity.gitHubAuth.async.enabled=true})
+ * off the servlet threads, and keeps track of the logins which are still in progress.
+ * <p>
+ * Calls run on a bounded thread pool, or on virtual threads if the JVM provides them and
+ * {@code teamcity.gitHubAuth.async.virtualThreads=true}. In both cases the number of concurrent calls is
+ * limited and excess calls are rejected with {@link GitHubLoginException}. Calls to one GitHub instance can take at most
+ * {@code teamcity.gitHubAuth.async.maxConcurrentCallsPerHost} permits (by default 3/4 of the threads or of the total
+ * permits with virtual threads), so a slow GitHub Enterprise server doesn't starve logins via other servers.
+ */
+public class GitHubLoginExecutor implements GitHubAuthDiagnostics {
+    static final String ASYNC_MODE_PROPERTY = "teamcity.gitHubAuth.async.enabled";
+
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final ExecutorService executorService;
+    @NotNull
+    private final Semaphore permits;
+    private final int maxConcurrentCallsPerHost;
+    @NotNull
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final boolean virtualThreads;
+    @NotNull
+    private final Map<String, PendingLogin> pendingLogins = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicLong rejected = new AtomicLong();
+
+    public GitHubLoginExecutor() {
+        int maxConcurrentCalls = TeamCityProperties.getInteger("teamcity.gitHubAuth.async.maxConcurrentCalls", 64);
+        ExecutorService virtualExecutor = TeamCityProperties.getBoolean("teamcity.gitHubAuth.async.virtualThreads") ? tryCreateVirtualThreadExecutor() : null;
+        int concurrency = maxConcurrentCalls;
+        if (virtualExecutor != null) {
+            executorService = virtualExecutor;
+            virtualThreads = true;
+        } else {
+            int threads = TeamCityProperties.getInteger("teamcity.gitHubAuth.async.threads", 16);
+            concurrency = Math.min(threads, maxConcurrentCalls);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new NamedThreadFactory("GitHub auth worker"));
+            pool.allowCoreThreadTimeOut(true);
+            executorService = pool;
+            virtualThreads = false;
+        }
+        permits = new Semaphore(maxConcurrentCalls);
+        maxConcurrentCallsPerHost = TeamCityProperties.getInteger("teamcity.gitHubAuth.async.maxConcurrentCallsPerHost", Math.max(1, concurrency * 3 / 4));
+    }
+
+    /**
+     * Executor for the outbound calls to GitHub.com, rejects tasks with {@link GitHubLoginException} when the concurrency limit is reached.
+     */
+    @NotNull
+    Executor getExecutor() {
+        return getExecutor(GitHubEndpoint.GITHUB_COM);
+    }
+
+    /**
+     * Executor for the outbound calls to the given GitHub instance, rejects tasks with {@link GitHubLoginException} when the
+     * concurrency limit of the instance or the total one is reached.
+     */
+    @NotNull
+    Executor getExecutor(@NotNull GitHubEndpoint endpoint) {
+        String host = endpoint.host;
+        Semaphore perHost = hostPermits.computeIfAbsent(host, key -> new Semaphore(maxConcurrentCallsPerHost));
+        return command -> {
+            if (!perHost.tryAcquire()) {
+                rejected.incrementAndGet();
+                throw new GitHubLocalLoginException("Too many concurrent GitHub logins via " + host + ", please try again later");
+            }
+            if (!permits.tryAcquire()) {
+                perHost.release();
+                rejected.incrementAndGet();
+                throw new GitHubLocalLoginException("Too many concurrent GitHub logins, please try again later");
+            }
+            try {
+                executorService.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                        perHost.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                perHost.release();
+                rejected.incrementAndGet();
+                throw new GitHubLocalLoginException("GitHub login executor is shut down", e);
+            }
+        };
+    }
+
+    boolean isAsyncMode() {
+        return TeamCityProperties.getBoolean(ASYNC_MODE_PROPERTY);
+    }
+
+    /**
+     * Returns the login in progress for the given state or registers a new one. The login is registered before its state
+     * is verified, so concurrent duplicate callbacks find it and don't consume the state again. The callback which
+     * {@link PendingLogin#claim claims} the login verifies the state and then {@link #start starts} or {@link #abandon abandons} it.
+     *
+     * @return pending login, its code may differ from the given one if the state is reused
+     */
+    @NotNull
+    PendingLogin register(@NotNull String state, @NotNull String code) {
+        PendingLogin existing = pendingLogins.get(state);
+        if (existing != null) return existing;
+        purgeAbandoned();
+        return pendingLogins.computeIfAbsent(state, key -> new PendingLogin(code));
+    }
+
+    /**
+     * Starts the claimed login, its result is reported by {@link PendingLogin#future}.
+     */
+    void start(@NotNull String state, @NotNull PendingLogin login, @NotNull Supplier<CompletableFuture<GitHubAuthorization>> starter) {
+        try {
+            starter.get().whenComplete((authorization, error) -> {
+                if (error != null) {
+                    login.future.completeExceptionally(error);
+                } else {
+                    login.future.complete(authorization);
+                }
+            });
+        } catch (RuntimeException e) {
+            abandon(state, login, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Fails the claimed login which isn't going to be started, e.g. because its state is rejected.
+     */
+    void abandon(@NotNull String state, @NotNull PendingLogin login, @NotNull RuntimeException reason) {
+        login.future.completeExceptionally(reason);
+        pendingLogins.remove(state, login);
+    }
+
+    @Nullable
+    PendingLogin getPending(@NotNull String state) {
+        return pendingLogins.get(state);
+    }
+
+    void complete(@NotNull String state) {
+        pendingLogins.remove(state);
+    }
+
+    private void purgeAbandoned() {
+        long maxAge = TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger("teamcity.gitHubAuth.state.ttlSec", 600));
+        long now = System.nanoTime();
+        for (Iterator<PendingLogin> it = pendingLogins.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().startedAtNanos > maxAge) it.remove();
+        }
+    }
+
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    @Nullable
+    private ExecutorService tryCreateVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            logger.info("Virtual threads are not available in this JVM, GitHub logins will use a thread pool: " + e);
+            return null;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "Login executor";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("asyncMode", isAsyncMode());
+        result.put("virtualThreads", virtualThreads);
+        result.put("availablePermits", permits.availablePermits());
+        hostPermits.forEach((host, hostSemaphore) -> result.put("availablePermits." + host, hostSemaphore.availablePermits()));
+        result.put("rejected", rejected.get());
+        result.put("pendingLogins", pendingLogins.size());
+        if (executorService instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executorService;
+            result.put("activeThreads", pool.getActiveCount());
+            result.put("poolSize", pool.getPoolSize());
+            result.put("completedTasks", pool.getCompletedTaskCount());
+        }
+        return result;
+    }
+
+    static final class PendingLogin {
+        @NotNull
+        final String code;
+        @NotNull
+        final CompletableFuture<GitHubAuthorization> future = new CompletableFuture<>();
+        final long startedAtNanos = System.nanoTime();
+        @NotNull
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private PendingLogin(@NotNull String code) {
+            this.code = code;
+        }
+
+        /**
+         * @return true for the first caller only, which has to verify the state and start or abandon the login
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Latency histograms of the GitHub login phases and counters of the login outcomes.
+ * <p>
+ * Available on the diagnostics page and via JMX as {@value #OBJECT_NAME}.
+ */
+public class GitHubLoginMetrics implements GitHubLoginMetricsMXBean, GitHubAuthDiagnostics {
+    static final String OBJECT_NAME = "org.jetbrains.teamcity.githubauth:type=GitHubLoginMetrics";
+
+    enum Phase {
+        VALIDATION("validation"),
+        TOKEN_EXCHANGE("tokenExchange"),
+        USER_FETCH("userFetch"),
+        MEMBERSHIP_CHECK("membershipCheck"),
+        USER_LOOKUP("userLookup"),
+        USER_CREATION("userCreation"),
+        REMEMBER_TOKEN("rememberToken");
+
+        @NotNull
+        final String displayName;
+
+        Phase(@NotNull String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    enum Outcome {
+        SUCCESS("success"),
+        INVALID_REQUEST("invalidRequest"),
+        INVALID_STATE("invalidState"),
+        CREDENTIAL_ERROR("credentialError"),
+        DUPLICATE_USER("duplicateUser"),
+        ACCESS_DENIED("accessDenied"),
+        REMOTE_FAILURE("remoteFailure"),
+        LOCAL_FAILURE("localFailure"),
+        THROTTLED("throttled");
+
+        @NotNull
+        final String displayName;
+
+        Outcome(@NotNull String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+    @NotNull
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+
+    public GitHubLoginMetrics() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new LongAdder());
+        }
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} at the phase start
+     */
+    void recordPhase(@NotNull Phase phase, long startNanos) {
+        phases.get(phase).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    void recordOutcome(@NotNull Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    @NotNull
+    LatencyHistogram getHistogram(@NotNull Phase phase) {
+        return phases.get(phase);
+    }
+
+    long getOutcomeCount(@NotNull Outcome outcome) {
+        return outcomes.get(outcome).sum();
+    }
+
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            logger.warn("Failed to register GitHub login metrics MBean: " + e);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to unregister GitHub login metrics MBean: " + e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getOutcomeCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Outcome outcome : Outcome.values()) {
+            result.put(outcome.displayName, getOutcomeCount(outcome));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            result.put(phase.displayName, phases.get(phase).getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMeanMillis() {
+        return collectMillis(LatencyHistogram::getMeanMicros);
+    }
+
+    @Override
+    public Map<String, Double> getPhaseP50Millis() {
+        return collectMillis(histogram -> histogram.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Double> getPhaseP90Millis() {
+        return collectMillis(histogram -> histogram.getValueAtPercentile(90));
+    }
+
+    @Override
+    public Map<String, Double> getPhaseP99Millis() {
+        return collectMillis(histogram -> histogram.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMaxMillis() {
+        return collectMillis(LatencyHistogram::getMaxMicros);
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : phases.values()) {
+            histogram.reset();
+        }
+        for (LongAdder counter : outcomes.values()) {
+            counter.reset();
+        }
+    }
+
+    @NotNull
+    private Map<String, Double> collectMillis(@NotNull ToDoubleFunction<LatencyHistogram> micros) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            result.put(phase.displayName, micros.applyAsDouble(phases.get(phase)) / 1000);
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "Login metrics";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Outcome outcome : Outcome.values()) {
+            result.put("outcome." + outcome.displayName, getOutcomeCount(outcome));
+        }
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = phases.get(phase);
+            result.put("phase." + phase.displayName, String.format("count=%d, mean=%.1fms, p50=%.1fms, p90=%.1fms, p99=%.1fms, max=%.1fms",
+                    histogram.getCount(), histogram.getMeanMicros() / 1000,
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getMaxMicros() / 1000.0));
+        }
+        return result;
+    }
+}
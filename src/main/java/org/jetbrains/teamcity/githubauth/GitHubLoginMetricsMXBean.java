@@ -0,0 +1,24 @@
+package org.jetbrains.teamcity.githubauth;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link GitHubLoginMetrics}, latencies are in milliseconds and keyed by phase name.
+ */
+public interface GitHubLoginMetricsMXBean {
+    Map<String, Long> getOutcomeCounts();
+
+    Map<String, Long> getPhaseCounts();
+
+    Map<String, Double> getPhaseMeanMillis();
+
+    Map<String, Double> getPhaseP50Millis();
+
+    Map<String, Double> getPhaseP90Millis();
+
+    Map<String, Double> getPhaseP99Millis();
+
+    Map<String, Double> getPhaseMaxMillis();
+
+    void reset();
+}
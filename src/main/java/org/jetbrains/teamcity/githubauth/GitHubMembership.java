@@ -0,0 +1,29 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Set;
+
+/**
+ * Organizations and teams of a GitHub user, lower-cased. Teams are {@code <organization>/<team slug>} and are known
+ * for the organizations the membership was requested for only.
+ */
+final class GitHubMembership {
+    @NotNull
+    final Set<String> organizations;
+    @NotNull
+    final Set<String> teams;
+    @NotNull
+    final Set<String> teamOrganizations;
+
+    GitHubMembership(@NotNull Set<String> organizations, @NotNull Set<String> teams, @NotNull Set<String> teamOrganizations) {
+        this.organizations = organizations;
+        this.teams = teams;
+        this.teamOrganizations = teamOrganizations;
+    }
+
+    @Override
+    public String toString() {
+        return "organizations: " + organizations + ", teams: " + teams;
+    }
+}
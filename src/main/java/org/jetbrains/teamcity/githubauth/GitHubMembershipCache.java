@@ -0,0 +1,162 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Organization and team membership of GitHub users for the login restrictions, keyed by GitHub user id (prefixed with
+ * the host for GitHub Enterprise users).
+ * <p>
+ * A membership younger than {@code teamcity.gitHubAuth.membership.refreshSec} is used as is. An older one is still used
+ * by the login while it is refreshed in the background with the token of this login, so returning users don't wait
+ * for GitHub. A membership older than {@code teamcity.gitHubAuth.membership.maxAgeSec} is never used, which bounds
+ * the time a removed member can still log in.
+ */
+public class GitHubMembershipCache implements GitHubAuthDiagnostics {
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final GitHubOAuthClient gitHubOAuthClient;
+    @NotNull
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > TeamCityProperties.getInteger("teamcity.gitHubAuth.membership.cacheSize", 10000);
+        }
+    };
+    @NotNull
+    private final ThreadPoolExecutor refresher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(1000), new NamedThreadFactory("GitHub membership refresh"));
+    @NotNull
+    private final AtomicLong hits = new AtomicLong();
+    @NotNull
+    private final AtomicLong staleHits = new AtomicLong();
+    @NotNull
+    private final AtomicLong misses = new AtomicLong();
+    @NotNull
+    private final AtomicLong refreshes = new AtomicLong();
+    @NotNull
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    public GitHubMembershipCache(@NotNull GitHubOAuthClient gitHubOAuthClient) {
+        this.gitHubOAuthClient = gitHubOAuthClient;
+        refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param token token of the current login, used to fetch the membership if the cached one is missing or stale
+     */
+    @NotNull
+    GitHubMembership getMembership(@NotNull GitHubUser gitHubUser, @NotNull String token, @NotNull Set<String> teamOrganizations) {
+        return getMembership(gitHubOAuthClient, gitHubUser, token, teamOrganizations);
+    }
+
+    /**
+     * @param client client of the GitHub instance the user belongs to
+     */
+    @NotNull
+    GitHubMembership getMembership(@NotNull GitHubOAuthClient client, @NotNull GitHubUser gitHubUser, @NotNull String token,
+                                   @NotNull Set<String> teamOrganizations) {
+        GitHubEndpoint endpoint = client.getEndpoint();
+        String key = endpoint.isGitHubCom() ? gitHubUser.getId() : endpoint.host + "/" + gitHubUser.getId();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        long now = System.nanoTime();
+        if (entry != null && entry.membership.teamOrganizations.containsAll(teamOrganizations)) {
+            long age = now - entry.fetchedAtNanos;
+            if (age <= TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger("teamcity.gitHubAuth.membership.maxAgeSec", 900))) {
+                if (age > TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger("teamcity.gitHubAuth.membership.refreshSec", 300))) {
+                    staleHits.incrementAndGet();
+                    refreshInBackground(client, key, entry, gitHubUser, token, teamOrganizations);
+                } else {
+                    hits.incrementAndGet();
+                }
+                return entry.membership;
+            }
+        }
+        misses.incrementAndGet();
+        return fetch(client, key, gitHubUser, token, teamOrganizations);
+    }
+
+    @NotNull
+    private GitHubMembership fetch(@NotNull GitHubOAuthClient client, @NotNull String key, @NotNull GitHubUser gitHubUser, @NotNull String token,
+                                   @NotNull Set<String> teamOrganizations) {
+        GitHubMembership membership = client.getMembership(token, gitHubUser.getId(), gitHubUser.getLogin(), teamOrganizations);
+        synchronized (entries) {
+            entries.put(key, new Entry(membership));
+        }
+        return membership;
+    }
+
+    private void refreshInBackground(@NotNull GitHubOAuthClient client, @NotNull String key, @NotNull Entry entry, @NotNull GitHubUser gitHubUser,
+                                     @NotNull String token, @NotNull Set<String> teamOrganizations) {
+        if (!entry.refreshing.compareAndSet(false, true)) return;
+        try {
+            refresher.execute(() -> {
+                try {
+                    fetch(client, key, gitHubUser, token, teamOrganizations);
+                    refreshes.incrementAndGet();
+                } catch (Exception e) {
+                    refreshFailures.incrementAndGet();
+                    logger.info("Failed to refresh GitHub organizations of " + gitHubUser.getLogin() + ", the cached ones are used: " + e);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "GitHub membership cache";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (entries) {
+            result.put("size", entries.size());
+        }
+        result.put("hits", hits.get());
+        result.put("staleHits", staleHits.get());
+        result.put("misses", misses.get());
+        result.put("refreshes", refreshes.get());
+        result.put("refreshFailures", refreshFailures.get());
+        return result;
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final GitHubMembership membership;
+        private final long fetchedAtNanos = System.nanoTime();
+        @NotNull
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(@NotNull GitHubMembership membership) {
+            this.membership = membership;
+        }
+    }
+}
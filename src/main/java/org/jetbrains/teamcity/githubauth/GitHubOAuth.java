@@ -8,26 +8,32 @@ import jetbrains.buildServer.controllers.interceptors.auth.HttpAuthenticationRes
 import jetbrains.buildServer.controllers.interceptors.auth.HttpAuthenticationScheme;
 import jetbrains.buildServer.controllers.interceptors.auth.util.HttpAuthUtil;
 import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.auth.ServerPrincipal;
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
 import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants;
 import jetbrains.buildServer.users.DuplicateUserAccountException;
 import jetbrains.buildServer.users.PluginPropertyKey;
 import jetbrains.buildServer.users.SUser;
-import jetbrains.buildServer.users.UserSet;
-import jetbrains.buildServer.util.StringUtil;
-import jetbrains.buildServer.web.util.WebUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.teamcity.githubauth.GitHubLoginMetrics.Outcome;
+import org.jetbrains.teamcity.githubauth.GitHubLoginMetrics.Phase;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static java.util.Collections.emptySet;
 import static java.util.Collections.singletonMap;
@@ -37,46 +43,173 @@ public class GitHubOAuth implements HttpAuthenticationScheme {
 
     static final PluginPropertyKey GITHUB_USER_ID_PROPERTY_KEY = new PluginPropertyKey(PluginTypes.AUTH_PLUGIN_TYPE, "github-oauth", "userId");
     static final String DEFAULT_SCOPE = "user,public_repo,repo,repo:status,write:repo_hook";
-    private static final String STATE_SESSION_ATTR_NAME = "teamcity.gitHubAuth.state";
+    static final String RESTRICTED_SCOPE = DEFAULT_SCOPE + ",read:org";
     static final String TOKEN_REDIRECT_URL = "/oauth/github/accessToken.html";
 
     @NotNull
-    private final GitHubOAuthClient gitHubOAuthClient;
+    private final GitHubClients clients;
     @NotNull
     private final TeamCityCoreFacade teamCityCore;
     @NotNull
+    private final GitHubOAuthStateManager stateManager;
+    @NotNull
+    private final GitHubLoginExecutor loginExecutor;
+    @NotNull
+    private final GitHubProfileFetcher profileFetcher;
+    @NotNull
+    private final GitHubLoginMetrics metrics;
+    @NotNull
+    private final GitHubTokenWriter tokenWriter;
+    @NotNull
+    private final GitHubCallbackSingleFlight singleFlight;
+    @NotNull
+    private final GitHubMembershipCache membershipCache;
+    @NotNull
+    private final GitHubLoginAuditJournal auditJournal;
+    @NotNull
+    private final GitHubLoginAdmission admission;
+    @NotNull
+    private final StripedLocks provisioningLocks = new StripedLocks(TeamCityProperties.getInteger("teamcity.gitHubAuth.provisioning.stripes", 64));
+    @NotNull
     private volatile Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
     
-    public GitHubOAuth(@NotNull GitHubOAuthClient gitHubOAuthClient,
-                       @NotNull TeamCityCoreFacade teamCityCore) {
-        this.gitHubOAuthClient = gitHubOAuthClient;
+    public GitHubOAuth(@NotNull GitHubClients clients,
+                       @NotNull TeamCityCoreFacade teamCityCore,
+                       @NotNull GitHubOAuthStateManager stateManager,
+                       @NotNull GitHubLoginExecutor loginExecutor,
+                       @NotNull GitHubProfileFetcher profileFetcher,
+                       @NotNull GitHubLoginMetrics metrics,
+                       @NotNull GitHubTokenWriter tokenWriter,
+                       @NotNull GitHubCallbackSingleFlight singleFlight,
+                       @NotNull GitHubMembershipCache membershipCache,
+                       @NotNull GitHubLoginAuditJournal auditJournal,
+                       @NotNull GitHubLoginAdmission admission) {
+        this.clients = clients;
         this.teamCityCore = teamCityCore;
+        this.stateManager = stateManager;
+        this.loginExecutor = loginExecutor;
+        this.profileFetcher = profileFetcher;
+        this.metrics = metrics;
+        this.tokenWriter = tokenWriter;
+        this.singleFlight = singleFlight;
+        this.membershipCache = membershipCache;
+        this.auditJournal = auditJournal;
+        this.admission = admission;
         teamCityCore.registerAuthModule(this);
     }
 
     @NotNull
-    public String getUserRedirect(HttpServletRequest request) {
-        OAuthConnectionDescriptor connection = getSuitableConnection();
-        HttpSession session = request.getSession();
-        String state = StringUtil.generateUniqueHash();
-        session.setAttribute(STATE_SESSION_ATTR_NAME, state);
-        return gitHubOAuthClient.getUserRedirect(connection.getParameters().get(GitHubConstants.CLIENT_ID_PARAM), DEFAULT_SCOPE,
-                buildRedirectUrl(), state);
+    public String getUserRedirect(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
+        return getUserRedirect(request, response, null);
+    }
+
+    /**
+     * @param connectionId connection chosen on the login page, null for the default one
+     */
+    @NotNull
+    public String getUserRedirect(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @Nullable String connectionId) {
+        OAuthConnectionDescriptor connection = connectionId == null ? getSuitableConnection() : getConnection(connectionId);
+        GitHubOAuthClient client = clients.get(getEndpoint(connection));
+        if (!client.isGitHubAvailable()) {
+            throw new GitHubUnavailableException(client.getEndpoint().describe() + " is temporarily unavailable, please try again later");
+        }
+        String state = stateManager.issueState(request, response, connection);
+        return client.getUserRedirect(connection.getParameters().get(GitHubConstants.CLIENT_ID_PARAM),
+                teamCityCore.isGitHubAuthRestricted() ? RESTRICTED_SCOPE : DEFAULT_SCOPE, buildRedirectUrl(), state);
     }
 
     @NotNull
     @Override
     public HttpAuthenticationResult processAuthenticationRequest(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull Map<String, String> properties) throws IOException {
+        if (!request.getRequestURI().endsWith("/oauth/github/accessToken.html")) {
+            logger.debug("Skip GitHub authentication: path doesn't match " + request.getPathInfo());
+            return HttpAuthenticationResult.notApplicable();
+        }
+        if (!admission.admit(GitHubLoginAdmission.EntryPoint.CALLBACK, request, response)) {
+            metrics.recordOutcome(Outcome.THROTTLED);
+            return responseSent(response);
+        }
+        try {
+            return processCallback(request, response, properties);
+        } catch (GitHubLoginException e) {
+            metrics.recordOutcome(e instanceof GitHubLocalLoginException ? Outcome.LOCAL_FAILURE : Outcome.REMOTE_FAILURE);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.recordOutcome(Outcome.LOCAL_FAILURE);
+            throw e;
+        }
+    }
+
+    @NotNull
+    private HttpAuthenticationResult processCallback(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response,
+                                                     @NotNull Map<String, String> properties) throws IOException {
+        long validationStart = System.nanoTime();
         HttpAuthenticationResult result = validateRequest(request, response);
-        if (result != null) return result;
+        if (result != null) {
+            metrics.recordPhase(Phase.VALIDATION, validationStart);
+            metrics.recordOutcome(Outcome.INVALID_REQUEST);
+            return result;
+        }
 
-        OAuthConnectionDescriptor connection = getSuitableConnection();
-        GitHubTokenResponse token = gitHubOAuthClient.exchangeCodeToToken(request.getParameter("code"),
-                connection.getParameters().get(GitHubConstants.CLIENT_ID_PARAM),
-                connection.getParameters().get(GitHubConstants.CLIENT_SECRET_PARAM),
-                buildRedirectUrl());
-        logger.debug("GitHub token response: " + token.describe(false));
+        String code = request.getParameter("code");
+        String state = request.getParameter("state");
+        OAuthConnectionDescriptor connection = getCallbackConnection(state);
+        GitHubEndpoint endpoint = getEndpoint(connection);
+        String callbackKey = GitHubCallbackSingleFlight.getKey(code, state);
+        GitHubAuthorization authorization;
+        try {
+            if (loginExecutor.isAsyncMode()) {
+                GitHubAuthorization completed = singleFlight.getCompleted(callbackKey);
+                GitHubLoginExecutor.PendingLogin pending = completed == null ? loginExecutor.register(state, code) : null;
+                boolean owner = pending != null && pending.claim();
+                boolean verified = false;
+                try {
+                    result = verifyState(request, response, state, connection, owner);
+                    verified = result == null;
+                } finally {
+                    if (owner && !verified) loginExecutor.abandon(state, pending, stateRejected());
+                }
+                metrics.recordPhase(Phase.VALIDATION, validationStart);
+                if (result != null) return result;
+                if (completed != null) {
+                    authorization = completed;
+                } else {
+                    if (owner) {
+                        loginExecutor.start(state, pending, () -> authorizeAsync(code, connection));
+                    }
+                    if (!code.equals(pending.code)) {
+                        logger.warn("Attempt to login using GitHub with 'state' parameter already used with a different code: " + state);
+                        auditJournal.recordRejected("state_reused", request, state);
+                        metrics.recordOutcome(Outcome.INVALID_STATE);
+                        return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: 'state' parameter is already used", emptySet());
+                    }
+                    authorization = awaitAuthorization(state, pending);
+                    if (authorization == null) {
+                        return sendLoginInProgress(response);
+                    }
+                    singleFlight.remember(callbackKey, authorization);
+                    loginExecutor.complete(state);
+                }
+            } else {
+                GitHubCallbackSingleFlight.Flight flight = singleFlight.register(callbackKey);
+                boolean verified = false;
+                try {
+                    result = verifyState(request, response, state, connection, flight.owner);
+                    verified = result == null;
+                } finally {
+                    if (!verified) singleFlight.abandon(flight, stateRejected());
+                }
+                metrics.recordPhase(Phase.VALIDATION, validationStart);
+                if (result != null) return result;
+                authorization = singleFlight.execute(flight, () -> authorize(code, connection));
+            }
+        } catch (GitHubUnavailableException e) {
+            logger.warn("GitHub login error: " + e.getMessage());
+            metrics.recordOutcome(Outcome.REMOTE_FAILURE);
+            return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: " + e.getMessage(), emptySet());
+        }
 
+        GitHubTokenResponse token = authorization.token;
         if (token.error != null) {
             if ("incorrect_client_credentials".equals(token.error)) {
                 logger.warn("GitHub login error: invalid Client ID or Client Secret parameters. " +
@@ -84,33 +217,233 @@ public class GitHubOAuth implements HttpAuthenticationScheme {
             } else {
                 logger.warn("GitHub login error: " + token.describe(false));
             }
+            metrics.recordOutcome(Outcome.CREDENTIAL_ERROR);
             return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error" +
                     (token.error_description != null ? ": " + token.error_description : " (see teamcity-auth.log for details)"), emptySet());
         }
 
-        GitHubUser gitHubUser = gitHubOAuthClient.getUser(token.access_token);
-        logger.debug("GitHub user obtained: " + gitHubUser.describe(false));
+        GitHubUser gitHubUser = authorization.user;
+        if (gitHubUser == null) {
+            throw new GitHubLoginException("GitHub user is not obtained for the issued token");
+        }
+
+        result = checkAccessRestriction(request, response, properties, endpoint, gitHubUser, token);
+        if (result != null) return result;
 
-        UserSet<SUser> users = teamCityCore.findUserByPropertyValue(GITHUB_USER_ID_PROPERTY_KEY, gitHubUser.getId());
-        Iterator<SUser> iterator = users.getUsers().iterator();
-        if (iterator.hasNext()) {
-            final SUser found = iterator.next();
-            teamCityCore.rememberToken(connection, found, gitHubUser.getLogin(), token.access_token, token.scope);
-            logger.debug("Corresponding TeamCity user found for the GitHub user '" + gitHubUser.describe(false) + "': " + found.describe(true));
-            return authenticated(request, new ServerPrincipal(null, found.getUsername()));
+        long lookupStart = System.nanoTime();
+        SUser found = findUser(endpoint, gitHubUser.getId());
+        metrics.recordPhase(Phase.USER_LOOKUP, lookupStart);
+        if (found != null) {
+            return authenticateFound(request, connection, found, gitHubUser, token);
         }
 
+        ReentrantLock provisioningLock = lockProvisioning(endpoint.isGitHubCom() ? gitHubUser.getId() : endpoint.host + "/" + gitHubUser.getId());
         try {
-            SUser created = teamCityCore.createUser(gitHubUser.getLogin(), gitHubUser.getEmail(), gitHubUser.getName(), singletonMap(GITHUB_USER_ID_PROPERTY_KEY, gitHubUser.getId()));
+            found = findUser(endpoint, gitHubUser.getId());
+            if (found != null) {
+                logger.debug("TeamCity user for the GitHub user '" + gitHubUser.describe(false) + "' was created by a concurrent login");
+                return authenticateFound(request, connection, found, gitHubUser, token);
+            }
+
+            long creationStart = System.nanoTime();
+            SUser created;
+            try {
+                created = teamCityCore.createUser(gitHubUser.getLogin(), gitHubUser.getEmail(), !Boolean.FALSE.equals(gitHubUser.getEmailVerified()),
+                        gitHubUser.getName(), singletonMap(endpoint.getUserIdPropertyKey(), gitHubUser.getId()));
+            } catch (DuplicateUserAccountException e) {
+                metrics.recordPhase(Phase.USER_CREATION, creationStart);
+                logger.warn("GitHub login error: user with username '" + gitHubUser.getLogin() + "' already exist.");
+                auditJournal.record("duplicate_user", request, endpoint.describe(), gitHubUser.getLogin());
+                metrics.recordOutcome(Outcome.DUPLICATE_USER);
+                return HttpAuthUtil.sendUnauthorized(request, response, "User with username '" + gitHubUser.getLogin() + "' already exist", emptySet());
+            }
+            metrics.recordPhase(Phase.USER_CREATION, creationStart);
             logger.debug("New TeamCity user created for the GitHub user '" + gitHubUser.describe(false) + "': " + created.describe(true));
-            teamCityCore.rememberToken(connection, created, gitHubUser.getLogin(), token.access_token, token.scope);
-            return authenticated(request, new ServerPrincipal(null, gitHubUser.getLogin()));
-        } catch (DuplicateUserAccountException e) {
-            logger.warn("GitHub login error: user with username '" + gitHubUser.getLogin() + "' already exist.");
-            return HttpAuthUtil.sendUnauthorized(request, response, "User with username '" + gitHubUser.getLogin() + "' already exist", emptySet());
+            rememberToken(connection, created, gitHubUser, token);
+        } finally {
+            provisioningLock.unlock();
+        }
+        auditJournal.record("user_created", request, endpoint.describe(), gitHubUser.getLogin());
+        metrics.recordOutcome(Outcome.SUCCESS);
+        return authenticated(request, new ServerPrincipal(null, gitHubUser.getLogin()));
+    }
+
+    @Nullable
+    private SUser findUser(@NotNull GitHubEndpoint endpoint, @NotNull String gitHubUserId) {
+        return endpoint.isGitHubCom() ? teamCityCore.findUserByGitHubId(gitHubUserId) : teamCityCore.findEnterpriseUser(endpoint, gitHubUserId);
+    }
+
+    /**
+     * @return unauthorized result if the auth module allows members of some organizations or teams only and the user isn't one of them
+     */
+    @Nullable
+    private HttpAuthenticationResult checkAccessRestriction(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response,
+                                                            @NotNull Map<String, String> properties, @NotNull GitHubEndpoint endpoint,
+                                                            @NotNull GitHubUser gitHubUser, @NotNull GitHubTokenResponse token) throws IOException {
+        GitHubAccessRestriction restriction = GitHubAccessRestriction.fromProperties(properties);
+        if (!restriction.isRestricted()) return null;
+
+        long checkStart = System.nanoTime();
+        GitHubMembership membership;
+        try {
+            membership = membershipCache.getMembership(clients.get(endpoint), gitHubUser, token.access_token, restriction.getTeamOrganizations());
+        } finally {
+            metrics.recordPhase(Phase.MEMBERSHIP_CHECK, checkStart);
+        }
+        if (restriction.isAllowed(membership)) return null;
+
+        logger.warn("GitHub login error: user '" + gitHubUser.describe(false) + "' is not a member of the allowed organizations or teams, " + membership);
+        auditJournal.record("access_denied", request, membership.toString(), gitHubUser.getLogin());
+        metrics.recordOutcome(Outcome.ACCESS_DENIED);
+        return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: user '" + gitHubUser.getLogin() +
+                "' is not a member of the GitHub organizations or teams allowed to log in", emptySet());
+    }
+
+    @NotNull
+    private HttpAuthenticationResult authenticateFound(@NotNull HttpServletRequest request, @NotNull OAuthConnectionDescriptor connection,
+                                                       @NotNull SUser found, @NotNull GitHubUser gitHubUser, @NotNull GitHubTokenResponse token) {
+        rememberToken(connection, found, gitHubUser, token);
+        logger.debug("Corresponding TeamCity user found for the GitHub user '" + gitHubUser.describe(false) + "': " + found.describe(true));
+        auditJournal.record("login", request, null, gitHubUser.getLogin());
+        metrics.recordOutcome(Outcome.SUCCESS);
+        return authenticated(request, new ServerPrincipal(null, found.getUsername()));
+    }
+
+    /**
+     * Serializes provisioning of the same GitHub user, so concurrent first logins (e.g. from two browser tabs) and
+     * {@link GitHubOrganizationImporter} create the TeamCity user once. Returning users are found without locking, logins of different users use different
+     * locks unless their ids share a stripe ({@code teamcity.gitHubAuth.provisioning.stripes}).
+     */
+    @NotNull
+    ReentrantLock lockProvisioning(@NotNull String gitHubUserId) {
+        ReentrantLock lock = provisioningLocks.get(gitHubUserId);
+        try {
+            if (lock.tryLock(TeamCityProperties.getLong("teamcity.gitHubAuth.provisioning.lockTimeoutMs", 10000), TimeUnit.MILLISECONDS)) {
+                return lock;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitHubLocalLoginException("Interrupted while waiting for a concurrent login of the GitHub user with id " + gitHubUserId, e);
+        }
+        throw new GitHubLocalLoginException("Timed out waiting for a concurrent login of the GitHub user with id " + gitHubUserId);
+    }
+
+    private void rememberToken(@NotNull OAuthConnectionDescriptor connection, @NotNull SUser user, @NotNull GitHubUser gitHubUser,
+                               @NotNull GitHubTokenResponse token) {
+        long start = System.nanoTime();
+        try {
+            tokenWriter.rememberToken(connection, user, gitHubUser.getLogin(), token.access_token, token.scope);
+        } finally {
+            metrics.recordPhase(Phase.REMEMBER_TOKEN, start);
         }
     }
 
+    @NotNull
+    private GitHubAuthorization authorize(@NotNull String code, @NotNull OAuthConnectionDescriptor connection) {
+        GitHubEndpoint endpoint = getEndpoint(connection);
+        GitHubOAuthClient client = clients.get(endpoint);
+        long exchangeStart = System.nanoTime();
+        GitHubTokenResponse token;
+        try {
+            token = client.exchangeCodeToToken(code,
+                    connection.getParameters().get(GitHubConstants.CLIENT_ID_PARAM),
+                    connection.getParameters().get(GitHubConstants.CLIENT_SECRET_PARAM),
+                    buildRedirectUrl());
+        } finally {
+            metrics.recordPhase(Phase.TOKEN_EXCHANGE, exchangeStart);
+        }
+        logger.debug("GitHub token response: " + token.describe(false));
+        if (token.error != null) {
+            return new GitHubAuthorization(token, null);
+        }
+
+        long fetchStart = System.nanoTime();
+        GitHubUser gitHubUser;
+        try {
+            gitHubUser = profileFetcher.fetchProfile(client, token.access_token);
+        } finally {
+            metrics.recordPhase(Phase.USER_FETCH, fetchStart);
+        }
+        logger.debug("GitHub user obtained: " + gitHubUser.describe(true));
+        return new GitHubAuthorization(token, gitHubUser);
+    }
+
+    @NotNull
+    private CompletableFuture<GitHubAuthorization> authorizeAsync(@NotNull String code, @NotNull OAuthConnectionDescriptor connection) {
+        GitHubEndpoint endpoint = getEndpoint(connection);
+        GitHubOAuthClient client = clients.get(endpoint);
+        Executor executor = loginExecutor.getExecutor(endpoint);
+        long exchangeStart = System.nanoTime();
+        return client.exchangeCodeToTokenAsync(code,
+                connection.getParameters().get(GitHubConstants.CLIENT_ID_PARAM),
+                connection.getParameters().get(GitHubConstants.CLIENT_SECRET_PARAM),
+                buildRedirectUrl(), executor)
+                .whenComplete((token, error) -> metrics.recordPhase(Phase.TOKEN_EXCHANGE, exchangeStart))
+                .thenCompose(token -> {
+                    logger.debug("GitHub token response: " + token.describe(false));
+                    if (token.error != null) {
+                        return CompletableFuture.completedFuture(new GitHubAuthorization(token, null));
+                    }
+                    long fetchStart = System.nanoTime();
+                    return profileFetcher.fetchProfileAsync(client, token.access_token, executor)
+                            .whenComplete((gitHubUser, error) -> metrics.recordPhase(Phase.USER_FETCH, fetchStart))
+                            .thenApply(gitHubUser -> {
+                                logger.debug("GitHub user obtained: " + gitHubUser.describe(true));
+                                return new GitHubAuthorization(token, gitHubUser);
+                            });
+                });
+    }
+
+    /**
+     * Waits for the pending login for a short time only, so the servlet thread isn't blocked by slow GitHub responses.
+     * A failed login is reported once, its pending entry is removed so the following refreshes fail the state verification.
+     *
+     * @return authorization or null if it is still in progress
+     */
+    @Nullable
+    private GitHubAuthorization awaitAuthorization(@NotNull String state, @NotNull GitHubLoginExecutor.PendingLogin pending) {
+        try {
+            return pending.future.get(TeamCityProperties.getInteger("teamcity.gitHubAuth.async.pollWaitMs", 100), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitHubLocalLoginException("Interrupted while waiting for GitHub", e);
+        } catch (ExecutionException e) {
+            loginExecutor.complete(state);
+            Throwable cause = e.getCause();
+            if (cause instanceof GitHubLoginException) throw (GitHubLoginException) cause;
+            throw new GitHubLoginException("GitHub login error", cause);
+        }
+    }
+
+    /**
+     * Responds with a page which repeats the same callback request shortly, the login is completed by one of the repeated requests.
+     */
+    @NotNull
+    private HttpAuthenticationResult sendLoginInProgress(@NotNull HttpServletResponse response) throws IOException {
+        int refreshSec = TeamCityProperties.getInteger("teamcity.gitHubAuth.async.refreshSec", 1);
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader("Refresh", String.valueOf(refreshSec));
+        response.setContentType("text/html;charset=UTF-8");
+        response.getWriter().write("<html><head><meta http-equiv=\"refresh\" content=\"" + refreshSec + "\"><title>Logging in using GitHub</title></head>" +
+                "<body>Logging in using GitHub account, please wait...</body></html>");
+        return responseSent(response);
+    }
+
+    /**
+     * Result for a response written by this scheme itself. The open API has no dedicated result type for it, so the
+     * response is committed before returning and can't be redirected or replaced with the login page afterwards.
+     */
+    @NotNull
+    private static HttpAuthenticationResult responseSent(@NotNull HttpServletResponse response) throws IOException {
+        if (!response.isCommitted()) {
+            response.flushBuffer();
+        }
+        return HttpAuthenticationResult.unauthenticated();
+    }
+
     @NotNull
     private HttpAuthenticationResult authenticated(HttpServletRequest request, ServerPrincipal principal) {
         return HttpAuthenticationResult.authenticated(principal, true).withRedirect(request.getContextPath() + "/overview.html");
@@ -121,32 +454,47 @@ public class GitHubOAuth implements HttpAuthenticationScheme {
         return teamCityCore.getRootUrl() + TOKEN_REDIRECT_URL;
     }
 
+    @VisibleForTesting
     @Nullable
-    private HttpAuthenticationResult validateRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        if (!request.getRequestURI().endsWith("/oauth/github/accessToken.html")) {
-            logger.debug("Skip GitHub authentication: path doesn't match " + request.getPathInfo());
-            return HttpAuthenticationResult.notApplicable();
-        }
-
+    HttpAuthenticationResult validateRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
         if (request.getParameter("error") != null) {
-            logger.warn("GitHub login error: user was redirected with an 'error', URL: " + request.getRequestURI() + "?" + request.getQueryString());
+            logger.debug("GitHub login error: user was redirected with an 'error', URL: " + request.getRequestURI() + "?" + request.getQueryString());
+            auditJournal.recordRejected("error_redirect", request, request.getParameter("error"));
             return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: user was redirected with 'error' param.", emptySet());
         }
 
         if (Strings.isNullOrEmpty(request.getParameter("code"))) {
-            logger.warn("GitHub login error: 'code' parameter is empty");
+            logger.debug("GitHub login error: 'code' parameter is empty");
+            auditJournal.recordRejected("empty_code", request, null);
             return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: 'code' parameter is empty", emptySet());
         }
 
         String state = request.getParameter("state");
         if (state == null) {
-            logger.warn("Attempt to login using GitHub with empty 'state' parameter. Request: " + WebUtil.getRequestDump(request));
+            logger.debug("Attempt to login using GitHub with empty 'state' parameter");
+            auditJournal.recordRejected("empty_state", request, null);
             return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: 'state' parameter is empty", emptySet());
         }
+        return null;
+    }
+
+    /**
+     * Failure of the duplicate callbacks waiting for the one whose state is rejected.
+     */
+    @NotNull
+    private static GitHubLocalLoginException stateRejected() {
+        return new GitHubLocalLoginException("GitHub login error: 'state' parameter is not accepted");
+    }
 
-        if (!state.equals(request.getSession().getAttribute(STATE_SESSION_ATTR_NAME))) {
-            logger.warn("Attempt to login using GitHub with invalid 'state' parameter: " + state + ". Request: " + WebUtil.getRequestDump(request));
-            return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: 'state' parameter is invalid", emptySet());
+    @Nullable
+    private HttpAuthenticationResult verifyState(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull String state,
+                                                 @NotNull OAuthConnectionDescriptor connection, boolean consume) throws IOException {
+        String stateError = stateManager.verifyState(request, state, connection, consume);
+        if (stateError != null) {
+            logger.debug("Attempt to login using GitHub with " + stateError + " 'state' parameter: " + state);
+            auditJournal.recordRejected("invalid_state", request, stateError + " state " + state);
+            metrics.recordOutcome(Outcome.INVALID_STATE);
+            return HttpAuthUtil.sendUnauthorized(request, response, "GitHub login error: 'state' parameter is " + stateError, emptySet());
         }
         return null;
     }
@@ -189,16 +537,17 @@ public class GitHubOAuth implements HttpAuthenticationScheme {
     @NotNull
     @Override
     public String describeProperties(@NotNull Map<String, String> properties) {
-        return "";
+        return GitHubAccessRestriction.fromProperties(properties).describe();
     }
 
     @Nullable
     @Override
     public Collection<String> validate(@NotNull Map<String, String> properties) {
+        List<String> errors = GitHubAccessRestriction.fromProperties(properties).validate();
         if (tryFindSuitableConnection() == null) {
-            return Collections.singleton("GitHub Authentication is inactive as GitHub.com Connection in the Root Project is not specified");
+            errors.add("GitHub Authentication is inactive as neither GitHub.com nor GitHub Enterprise Connection in the Root Project is specified");
         }
-        return null;
+        return errors.isEmpty() ? null : errors;
     }
 
     @Nullable
@@ -208,16 +557,75 @@ public class GitHubOAuth implements HttpAuthenticationScheme {
 
     @NotNull
     public OAuthConnectionDescriptor getSuitableConnection() {
-        if (!isAuthModuleConfigured()) {
-            throw new GitHubLoginException("Attempt to login via GitHub OAuth while corresponding auth module is not configured");
-        }
+        checkAuthModuleConfigured();
         OAuthConnectionDescriptor found = tryFindSuitableConnection();
         if (found == null) {
-            throw new GitHubLoginException("Attempt to login via GitHub OAuth while GitHub.com Connection in the Root Project is not configured");
+            throw new GitHubLocalLoginException("Attempt to login via GitHub OAuth while no GitHub Connection in the Root Project is configured");
+        }
+        return found;
+    }
+
+    /**
+     * @return connections users can choose on the login page, the default one goes first
+     */
+    @NotNull
+    public List<OAuthConnectionDescriptor> getLoginConnections() {
+        GitHubConnections connections = teamCityCore.getRootProjectGitHubConnections();
+        List<OAuthConnectionDescriptor> result = new ArrayList<>(connections.getAll());
+        OAuthConnectionDescriptor defaultConnection = connections.getDefault();
+        if (defaultConnection != null && result.remove(defaultConnection)) {
+            result.add(0, defaultConnection);
+        }
+        return result;
+    }
+
+    @NotNull
+    private OAuthConnectionDescriptor getConnection(@NotNull String connectionId) {
+        checkAuthModuleConfigured();
+        OAuthConnectionDescriptor found = teamCityCore.getRootProjectGitHubConnections().findById(connectionId);
+        if (found == null) {
+            throw new GitHubLocalLoginException("Attempt to login via unknown GitHub Connection '" + connectionId + "'");
         }
         return found;
     }
 
+    /**
+     * Routes the callback to the connection the login was started with, the connection id is a part of the state.
+     * Callbacks with states of unknown connections are handled with the default connection and fail the state verification.
+     */
+    @NotNull
+    private OAuthConnectionDescriptor getCallbackConnection(@NotNull String state) {
+        checkAuthModuleConfigured();
+        OAuthConnectionDescriptor found = teamCityCore.getRootProjectGitHubConnections().findById(GitHubOAuthStateManager.getConnectionId(state));
+        return found != null ? found : getSuitableConnection();
+    }
+
+    @NotNull
+    GitHubEndpoint getEndpoint(@NotNull OAuthConnectionDescriptor connection) {
+        return teamCityCore.getRootProjectGitHubConnections().getEndpoint(connection);
+    }
+
+    private void checkAuthModuleConfigured() {
+        if (!isAuthModuleConfigured()) {
+            throw new GitHubLocalLoginException("Attempt to login via GitHub OAuth while corresponding auth module is not configured");
+        }
+    }
+
+    /**
+     * @return false if GitHub endpoints of the default connection are known to be down, users shouldn't be sent to GitHub in this case
+     */
+    public boolean isGitHubAvailable() {
+        OAuthConnectionDescriptor connection = tryFindSuitableConnection();
+        return connection == null || isGitHubAvailable(connection);
+    }
+
+    /**
+     * @return false if GitHub endpoints of the connection are known to be down
+     */
+    public boolean isGitHubAvailable(@NotNull OAuthConnectionDescriptor connection) {
+        return clients.get(getEndpoint(connection)).isGitHubAvailable();
+    }
+
     public boolean isAuthModuleConfigured() {
         return teamCityCore.isAuthModuleConfigured(GitHubOAuth.class);
     }
@@ -1,30 +1,100 @@
 package org.jetbrains.teamcity.githubauth;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 import static java.util.Collections.singletonList;
 
+/**
+ * GitHub REST client of a single {@link GitHubEndpoint}. The bean talks to GitHub.com, clients of GitHub Enterprise
+ * servers are created by {@link GitHubClients} and share the circuit breakers and the rate limits,
+ * which are keyed by the endpoint hosts.
+ * <p>
+ * Responses are decoded by {@link GitHubJsonMessageConverter} which is put in front of the converters of the given template.
+ * Rate limit headers are tracked by {@link GitHubRateLimits}.
+ */
 public class GitHubOAuthClient {
+    static final String GITHUB_URL_PROPERTY = "teamcity.gitHubAuth.gitHubUrl";
+    static final String GITHUB_API_URL_PROPERTY = "teamcity.gitHubAuth.apiUrl";
 
     @NotNull
     private final RestTemplate restTemplate;
+    @NotNull
+    private final GitHubCircuitBreakers circuitBreakers;
+    @NotNull
+    private final GitHubRateLimits rateLimits;
+    @NotNull
+    private final GitHubEndpoint endpoint;
 
-    public GitHubOAuthClient(@NotNull RestTemplate restTemplate) {
+    public GitHubOAuthClient(@NotNull RestTemplate restTemplate, @NotNull GitHubCircuitBreakers circuitBreakers,
+                             @NotNull GitHubRateLimits rateLimits) {
+        this(restTemplate, circuitBreakers, rateLimits, GitHubEndpoint.GITHUB_COM);
+    }
+
+    private GitHubOAuthClient(@NotNull RestTemplate restTemplate, @NotNull GitHubCircuitBreakers circuitBreakers,
+                              @NotNull GitHubRateLimits rateLimits, @NotNull GitHubEndpoint endpoint) {
+        this.endpoint = endpoint;
         this.restTemplate = restTemplate;
+        this.circuitBreakers = circuitBreakers;
+        this.rateLimits = rateLimits;
+        if (restTemplate.getMessageConverters().stream().noneMatch(GitHubJsonMessageConverter.class::isInstance)) {
+            restTemplate.getMessageConverters().add(0, new GitHubJsonMessageConverter());
+        }
+    }
+
+    /**
+     * @return client of the given endpoint sending requests with the given template
+     */
+    @NotNull
+    GitHubOAuthClient withEndpoint(@NotNull GitHubEndpoint endpoint, @NotNull RestTemplate restTemplate) {
+        return new GitHubOAuthClient(restTemplate, circuitBreakers, rateLimits, endpoint);
+    }
+
+    @NotNull
+    GitHubEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return false if GitHub is known to be unavailable and the login shouldn't be started
+     */
+    public boolean isGitHubAvailable() {
+        return circuitBreakers.isCallPermitted(endpoint.host) && circuitBreakers.isCallPermitted(endpoint.apiHost);
     }
 
     @NotNull
     public String getUserRedirect(@NotNull String clientId, @NotNull String scope, @NotNull String redirectUrl, @NotNull String state) {
-        return String.format("https://github.com/login/oauth/authorize?client_id=%s&scope=%s&redirect_uri=%s&state=%s",
-                clientId, scope, redirectUrl, state);
+        return String.format("%s/login/oauth/authorize?client_id=%s&scope=%s&redirect_uri=%s&state=%s",
+                endpoint.getGitHubUrl(), clientId, scope, redirectUrl, state);
     }
 
     @NotNull
@@ -41,13 +111,20 @@ public class GitHubOAuthClient {
         body.put("redirect_uri", singletonList(redirectUrl));
         HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(body, headers);
 
-        try {
-            return restTemplate.postForObject("https://github.com/login/oauth/access_token", request, GitHubTokenResponse.class);
-        } catch (RestClientException e) {
-            throw new GitHubLoginException("Error obtaining GitHub OAuth token", e);
-        }
+        return call(endpoint.host, GitHubRateLimits.APP_CREDENTIALS, GitHubRateLimits.CORE, true, "Error obtaining GitHub OAuth token",
+                () -> restTemplate.postForEntity(endpoint.getGitHubUrl() + "/login/oauth/access_token", request, GitHubTokenResponse.class)).getBody();
+    }
+
+    @NotNull
+    public CompletableFuture<GitHubTokenResponse> exchangeCodeToTokenAsync(@NotNull String code, @NotNull String clientId, @NotNull String clientSecret,
+                                                                           @NotNull String redirectUrl, @NotNull Executor executor) {
+        return CompletableFuture.supplyAsync(() -> exchangeCodeToToken(code, clientId, clientSecret, redirectUrl), executor);
     }
 
+    /**
+     * The user isn't known before the call, so it isn't checked against a rate limit budget. The rate limit headers
+     * are recorded to the budget of the returned user.
+     */
     @NotNull
     public GitHubUser getUser(@NotNull String token) {
         HttpHeaders headers = new HttpHeaders();
@@ -56,11 +133,238 @@ public class GitHubOAuthClient {
         headers.set("Authorization", "token " + token);
         HttpEntity<String> request = new HttpEntity<>(headers);
 
+        ResponseEntity<GitHubUser> response = call(endpoint.apiHost, null, GitHubRateLimits.CORE, true, "Error obtaining GitHub user",
+                () -> restTemplate.exchange(endpoint.getApiUrl() + "/user", HttpMethod.GET, request, GitHubUser.class));
+        GitHubUser user = response.getBody();
+        if (user != null && user.getId() != null) {
+            rateLimits.update(endpoint.apiHost, GitHubRateLimits.user(user.getId()), GitHubRateLimits.CORE, response.getStatusCodeValue(), response.getHeaders());
+        }
+        return user;
+    }
+
+    @NotNull
+    public CompletableFuture<GitHubUser> getUserAsync(@NotNull String token, @NotNull Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getUser(token), executor);
+    }
+
+    /**
+     * The call is started together with {@link #getUser}, so it isn't checked against a rate limit budget.
+     */
+    @NotNull
+    public GitHubUserEmail[] getUserEmails(@NotNull String token) {
+        GitHubUserEmail[] emails = call(endpoint.apiHost, null, GitHubRateLimits.CORE, false, "Error obtaining GitHub user emails",
+                () -> restTemplate.exchange(endpoint.getApiUrl() + "/user/emails", HttpMethod.GET,
+                        new HttpEntity<>(createApiHeaders(token)), GitHubUserEmail[].class)).getBody();
+        return emails != null ? emails : new GitHubUserEmail[0];
+    }
+
+    /**
+     * The call is started together with {@link #getUser}, so it isn't checked against a rate limit budget.
+     */
+    @NotNull
+    public GitHubOrganization[] getUserOrganizations(@NotNull String token) {
+        GitHubOrganization[] organizations = call(endpoint.apiHost, null, GitHubRateLimits.CORE, false, "Error obtaining GitHub user organizations",
+                () -> restTemplate.exchange(endpoint.getApiUrl() + "/user/orgs", HttpMethod.GET,
+                        new HttpEntity<>(createApiHeaders(token)), GitHubOrganization[].class)).getBody();
+        return organizations != null ? organizations : new GitHubOrganization[0];
+    }
+
+    /**
+     * Fetches the organizations of the token owner and their teams in the given organizations with a single GraphQL query.
+     * Requires the {@code read:org} scope.
+     *
+     * @param gitHubUserId id of the token owner, the call is charged to their GraphQL rate limit budget
+     */
+    @NotNull
+    public GitHubMembership getMembership(@NotNull String token, @NotNull String gitHubUserId, @NotNull String login,
+                                          @NotNull Set<String> teamOrganizations) {
+        StringBuilder declarations = new StringBuilder("$login: String!");
+        StringBuilder selections = new StringBuilder("viewer { organizations(first: 100) { nodes { login } } }");
+        JsonObject variables = new JsonObject();
+        variables.addProperty("login", login);
+        List<String> aliases = new ArrayList<>(teamOrganizations);
+        for (int i = 0; i < aliases.size(); i++) {
+            declarations.append(", $o").append(i).append(": String!");
+            selections.append(" t").append(i).append(": organization(login: $o").append(i)
+                    .append(") { teams(first: 100, userLogins: [$login]) { nodes { slug } } }");
+            variables.addProperty("o" + i, aliases.get(i));
+        }
+        JsonObject query = new JsonObject();
+        query.addProperty("query", "query(" + declarations + ") { " + selections + " }");
+        query.add("variables", variables);
+
+        HttpHeaders headers = createApiHeaders(token);
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        HttpEntity<String> request = new HttpEntity<>(query.toString(), headers);
+        String body = call(endpoint.apiHost, GitHubRateLimits.user(gitHubUserId), GitHubRateLimits.GRAPHQL, true,
+                "Error obtaining GitHub organizations of " + login,
+                () -> restTemplate.exchange(endpoint.getGraphQlUrl(), HttpMethod.POST, request, String.class)).getBody();
+
+        JsonObject data;
         try {
-            return restTemplate.exchange("https://api.github.com/user", HttpMethod.GET, request, GitHubUser.class).getBody();
-        } catch (RestClientException e) {
-            throw new GitHubLoginException("Error obtaining GitHub user", e);
+            JsonElement response = new JsonParser().parse(body != null ? body : "");
+            data = response.isJsonObject() && response.getAsJsonObject().has("data") && response.getAsJsonObject().get("data").isJsonObject()
+                    ? response.getAsJsonObject().getAsJsonObject("data") : null;
+        } catch (JsonParseException e) {
+            throw new GitHubLoginException("Error parsing GitHub organizations of " + login, e);
         }
+        if (data == null) {
+            throw new GitHubLoginException("Error obtaining GitHub organizations of " + login + ": " + body);
+        }
+        Set<String> organizations = new HashSet<>(collectNodes(data.get("viewer"), "organizations", "login"));
+        Set<String> teams = new HashSet<>();
+        for (int i = 0; i < aliases.size(); i++) {
+            for (String slug : collectNodes(data.get("t" + i), "teams", "slug")) {
+                teams.add(aliases.get(i) + "/" + slug);
+            }
+        }
+        return new GitHubMembership(organizations, teams, teamOrganizations);
+    }
+
+    /**
+     * @return lower-cased values of the {@code field} of the {@code connection} nodes, e.g. {@code teams { nodes { slug } } }
+     */
+    @NotNull
+    private static List<String> collectNodes(@Nullable JsonElement parent, @NotNull String connection, @NotNull String field) {
+        List<String> result = new ArrayList<>();
+        if (parent == null || !parent.isJsonObject()) return result;
+        JsonElement nodes = parent.getAsJsonObject().get(connection);
+        if (nodes == null || !nodes.isJsonObject()) return result;
+        nodes = nodes.getAsJsonObject().get("nodes");
+        if (nodes == null || !nodes.isJsonArray()) return result;
+        for (JsonElement node : nodes.getAsJsonArray()) {
+            JsonElement value = node.isJsonObject() ? node.getAsJsonObject().get(field) : null;
+            if (value != null && value.isJsonPrimitive()) {
+                result.add(value.getAsString().toLowerCase(Locale.ENGLISH));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fetches a page of the organization members. Members carry the id and login only. The call is charged to the
+     * {@link GitHubRateLimits#IMPORT} budget.
+     *
+     * @param pageUrl URL of the page returned with the previous one, null for the first page
+     */
+    @NotNull
+    public GitHubOrganizationMembers getOrganizationMembers(@NotNull String token, @NotNull String organization, @Nullable String pageUrl) {
+        String url = pageUrl;
+        if (url == null || !url.startsWith(endpoint.getApiUrl() + "/")) {
+            url = UriComponentsBuilder.fromHttpUrl(endpoint.getApiUrl()).pathSegment("orgs", organization, "members")
+                    .queryParam("per_page", 100).build().encode().toUriString();
+        }
+        URI uri = URI.create(url);
+        ResponseEntity<GitHubUser[]> response = call(endpoint.apiHost, GitHubRateLimits.IMPORT, GitHubRateLimits.CORE, false,
+                "Error obtaining members of the GitHub organization " + organization,
+                () -> restTemplate.exchange(uri, HttpMethod.GET, new HttpEntity<>(createApiHeaders(token)), GitHubUser[].class));
+        GitHubUser[] members = response.getBody();
+        return new GitHubOrganizationMembers(members != null ? members : new GitHubUser[0], findNextPageUrl(response.getHeaders().getFirst("Link")));
+    }
+
+    /**
+     * Fetches the public profile of the given user for the organization import, the call is charged to the
+     * {@link GitHubRateLimits#IMPORT} budget.
+     */
+    @NotNull
+    public GitHubUser getUserProfile(@NotNull String token, @NotNull String login) {
+        URI uri = UriComponentsBuilder.fromHttpUrl(endpoint.getApiUrl()).pathSegment("users", login).build().encode().toUri();
+        GitHubUser user = call(endpoint.apiHost, GitHubRateLimits.IMPORT, GitHubRateLimits.CORE, false, "Error obtaining GitHub user " + login,
+                () -> restTemplate.exchange(uri, HttpMethod.GET, new HttpEntity<>(createApiHeaders(token)), GitHubUser.class)).getBody();
+        if (user == null) {
+            throw new GitHubLoginException("Empty response obtaining GitHub user " + login);
+        }
+        return user;
     }
 
+    /**
+     * Checks the token with the OAuth application API, the call is charged to the application credentials budget.
+     *
+     * @return false if GitHub doesn't know the token, e.g. it was revoked by the user or expired
+     */
+    public boolean checkToken(@NotNull String clientId, @NotNull String clientSecret, @NotNull String token) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(singletonList(MediaType.APPLICATION_JSON));
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set("Authorization", "Basic " + Base64.getEncoder().encodeToString((clientId + ":" + clientSecret).getBytes(StandardCharsets.UTF_8)));
+        JsonObject body = new JsonObject();
+        body.addProperty("access_token", token);
+        HttpEntity<String> request = new HttpEntity<>(body.toString(), headers);
+        URI uri = UriComponentsBuilder.fromHttpUrl(endpoint.getApiUrl()).pathSegment("applications", clientId, "token").build().encode().toUri();
+
+        ResponseEntity<String> response = call(endpoint.apiHost, GitHubRateLimits.APP_CREDENTIALS, GitHubRateLimits.CORE, false, "Error checking GitHub token", () -> {
+            try {
+                return restTemplate.exchange(uri, HttpMethod.POST, request, String.class);
+            } catch (HttpClientErrorException e) {
+                if (e.getStatusCode() != HttpStatus.NOT_FOUND) throw e;
+                return new ResponseEntity<>(e.getResponseHeaders(), HttpStatus.NOT_FOUND);
+            }
+        });
+        return response.getStatusCode() != HttpStatus.NOT_FOUND;
+    }
+
+    /**
+     * Sends a {@code HEAD} request to open a keep-alive connection to the host of the given URL. The call bypasses the
+     * circuit breakers and the rate limits, any response means the connection is established.
+     *
+     * @throws RestClientException if the host can't be reached
+     */
+    void openConnection(@NotNull String url) {
+        try {
+            restTemplate.headForHeaders(url);
+        } catch (HttpStatusCodeException ignored) {
+        }
+    }
+
+    /**
+     * @param link value of the {@code Link} header, e.g. {@code <https://api.github.com/organizations/1/members?page=2>; rel="next"}
+     */
+    @Nullable
+    static String findNextPageUrl(@Nullable String link) {
+        if (link == null) return null;
+        for (String part : link.split(",")) {
+            int start = part.indexOf('<');
+            int end = part.indexOf('>');
+            if (start >= 0 && end > start && part.substring(end).contains("rel=\"next\"")) {
+                return part.substring(start + 1, end);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param budget     rate limit budget the call is charged to, see {@link GitHubRateLimits#checkBudget}, null if the budget isn't known
+     * @param resource   rate limit resource of the call, {@link GitHubRateLimits#CORE} or {@link GitHubRateLimits#GRAPHQL}
+     * @param critical   whether the login fails without the call, non-critical calls are skipped when the rate limit is nearly exhausted
+     */
+    @NotNull
+    private <T> ResponseEntity<T> call(@NotNull String host, @Nullable String budget, @NotNull String resource, boolean critical,
+                                       @NotNull String errorMessage, @NotNull Supplier<ResponseEntity<T>> call) {
+        if (budget != null) {
+            rateLimits.checkBudget(host, budget, resource, critical);
+        }
+        return circuitBreakers.execute(host, () -> {
+            try {
+                ResponseEntity<T> response = call.get();
+                rateLimits.update(host, budget, resource, response.getStatusCodeValue(), response.getHeaders());
+                return response;
+            } catch (HttpStatusCodeException e) {
+                String rateLimitError = rateLimits.update(host, budget, resource, e.getRawStatusCode(), e.getResponseHeaders());
+                if (rateLimitError != null) {
+                    throw new GitHubRateLimitException(rateLimitError, e);
+                }
+                throw new GitHubLoginException(errorMessage, e);
+            } catch (RestClientException e) {
+                throw new GitHubLoginException(errorMessage, e);
+            }
+        });
+    }
+
+    @NotNull
+    private static HttpHeaders createApiHeaders(@NotNull String token) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(singletonList(MediaType.APPLICATION_JSON));
+        headers.set("Authorization", "token " + token);
+        return headers;
+    }
 }
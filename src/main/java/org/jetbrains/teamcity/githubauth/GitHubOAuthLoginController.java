@@ -2,6 +2,7 @@ package org.jetbrains.teamcity.githubauth;
 
 import jetbrains.buildServer.controllers.AuthorizationInterceptor;
 import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -14,21 +15,38 @@ import static org.jetbrains.teamcity.githubauth.GitHubOAuth.PLUGIN_PATH_PREFIX;
 
 public class GitHubOAuthLoginController extends BaseController {
     public static final String PATH = PLUGIN_PATH_PREFIX + "/login.html";
+    public static final String CONNECTION_ID_PARAM = "connectionId";
 
     @NotNull
     private final GitHubOAuth gitHubOAuth;
+    @NotNull
+    private final GitHubLoginAdmission admission;
 
     public GitHubOAuthLoginController(@NotNull WebControllerManager webControllerManager,
                                       @NotNull AuthorizationInterceptor authInterceptor,
-                                      @NotNull GitHubOAuth gitHubOAuth) {
+                                      @NotNull GitHubOAuth gitHubOAuth,
+                                      @NotNull GitHubLoginAdmission admission) {
         this.gitHubOAuth = gitHubOAuth;
+        this.admission = admission;
         webControllerManager.registerController(PATH, this);
         authInterceptor.addPathNotRequiringAuth(PATH);
     }
 
+    /**
+     * Starts the login via the connection given with the {@code connectionId} parameter, or via the default one.
+     */
     @Nullable
     @Override
     protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
-        return redirectTo(gitHubOAuth.getUserRedirect(request), response);
+        if (!admission.admit(GitHubLoginAdmission.EntryPoint.LOGIN, request, response)) return null;
+        String connectionId = StringUtil.nullIfEmpty(request.getParameter(CONNECTION_ID_PARAM));
+        String redirect;
+        try {
+            redirect = gitHubOAuth.getUserRedirect(request, response, connectionId);
+        } catch (GitHubUnavailableException e) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return null;
+        }
+        return redirectTo(redirect, response);
     }
 }
@@ -0,0 +1,254 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues and verifies the OAuth {@code state} parameter.
+ * <p>
+ * By default the state is {@code <connection>.<random value>} stored in the HTTP session. With {@code teamcity.gitHubAuth.state.mode=signed}
+ * the state is a self-contained token {@code v2.<connection>.<nonce>.<issuedAtSec>.<hmac>} signed with a key derived from the
+ * connection client secret (or {@code teamcity.gitHubAuth.state.secret}), so it can be verified on any node
+ * without a session. In both modes {@code <connection>} is the encoded id of the connection the login was started with,
+ * the callback is routed to this connection with {@link #getConnectionId(String)}. The nonce is also put into a short-lived cookie to bind the state to the browser which
+ * started the login, the cookie name includes a nonce prefix so logins started in several tabs don't overwrite each other.
+ * <p>
+ * Used nonces are remembered for the state lifetime to reject replays on this node. They are grouped by the minute the
+ * state was issued, a group is dropped as a whole once all its states are expired. At most
+ * {@code teamcity.gitHubAuth.state.replayFilterSize} nonces are remembered, states are rejected when the filter is full.
+ */
+public class GitHubOAuthStateManager implements GitHubAuthDiagnostics {
+    static final String MODE_PROPERTY = "teamcity.gitHubAuth.state.mode";
+    static final String SIGNED_MODE = "signed";
+    static final String STATE_COOKIE_NAME = "TCGITHUBAUTH_STATE";
+    private static final String STATE_SESSION_ATTR_NAME = "teamcity.gitHubAuth.state";
+    private static final String VERSION = "v2";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int COOKIE_NONCE_PREFIX_LENGTH = 8;
+    private static final long NONCE_BUCKET_SEC = 60;
+
+    @NotNull
+    private final SecureRandom random = new SecureRandom();
+    @NotNull
+    private final ConcurrentSkipListMap<Long, Set<String>> usedNonces = new ConcurrentSkipListMap<>();
+    @NotNull
+    private final AtomicInteger usedNonceCount = new AtomicInteger();
+    @NotNull
+    private final AtomicLong issued = new AtomicLong();
+    @NotNull
+    private final AtomicLong rejected = new AtomicLong();
+
+    @NotNull
+    public String issueState(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response,
+                             @NotNull OAuthConnectionDescriptor connection) {
+        issued.incrementAndGet();
+        String connectionKey = encode(connection.getId().getBytes(StandardCharsets.UTF_8));
+        if (!isSignedMode()) {
+            HttpSession session = request.getSession();
+            String state = connectionKey + "." + StringUtil.generateUniqueHash();
+            session.setAttribute(STATE_SESSION_ATTR_NAME, state);
+            return state;
+        }
+
+        byte[] nonceBytes = new byte[16];
+        random.nextBytes(nonceBytes);
+        String nonce = encode(nonceBytes);
+        String payload = VERSION + "." + connectionKey + "." + nonce + "." + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+
+        Cookie cookie = new Cookie(getCookieName(nonce), nonce);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        cookie.setPath(StringUtil.isEmpty(request.getContextPath()) ? "/" : request.getContextPath());
+        cookie.setMaxAge(getStateTtlSec());
+        response.addCookie(cookie);
+
+        return payload + "." + sign(payload, connection);
+    }
+
+    /**
+     * @return id of the connection the state was issued for, or null if the state is malformed. The state still has
+     * to be verified with the connection.
+     */
+    @Nullable
+    static String getConnectionId(@NotNull String state) {
+        String[] parts = state.split("\\.");
+        String connectionKey = state.startsWith(VERSION + ".") ? (parts.length == 5 ? parts[1] : null) : (parts.length == 2 ? parts[0] : null);
+        if (connectionKey == null) return null;
+        try {
+            return new String(Base64.getUrlDecoder().decode(connectionKey), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return description of the verification failure or null if the state is valid
+     */
+    @Nullable
+    public String verifyState(@NotNull HttpServletRequest request, @NotNull String state, @NotNull OAuthConnectionDescriptor connection) {
+        return verifyState(request, state, connection, true);
+    }
+
+    /**
+     * @param consume whether the state should be remembered as used, a consumed state is rejected by the further checks
+     * @return description of the verification failure or null if the state is valid
+     */
+    @Nullable
+    public String verifyState(@NotNull HttpServletRequest request, @NotNull String state, @NotNull OAuthConnectionDescriptor connection,
+                              boolean consume) {
+        String error = doVerifyState(request, state, connection, consume);
+        if (error != null) rejected.incrementAndGet();
+        return error;
+    }
+
+    @Nullable
+    private String doVerifyState(@NotNull HttpServletRequest request, @NotNull String state, @NotNull OAuthConnectionDescriptor connection,
+                                 boolean consume) {
+        if (!isSignedMode() || !state.startsWith(VERSION + ".")) {
+            HttpSession session = request.getSession(false);
+            return session != null && state.equals(session.getAttribute(STATE_SESSION_ATTR_NAME)) ? null : "invalid";
+        }
+
+        String[] parts = state.split("\\.");
+        if (parts.length != 5) return "invalid";
+        String payload = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
+        byte[] expected = sign(payload, connection).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, parts[4].getBytes(StandardCharsets.US_ASCII))) return "invalid";
+
+        String nonce = parts[2];
+        if (nonce.length() < COOKIE_NONCE_PREFIX_LENGTH || !nonce.equals(getCookieValue(request, getCookieName(nonce)))) return "invalid";
+
+        long issuedAtSec;
+        try {
+            issuedAtSec = Long.parseLong(parts[3]);
+        } catch (NumberFormatException e) {
+            return "invalid";
+        }
+        long ageSec = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - issuedAtSec;
+        if (ageSec < 0 || ageSec > getStateTtlSec()) return "expired";
+
+        return consume ? markUsed(nonce, issuedAtSec) : null;
+    }
+
+    /**
+     * @return description of the failure or null if the nonce wasn't used before
+     */
+    @Nullable
+    private String markUsed(@NotNull String nonce, long issuedAtSec) {
+        long nowSec = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        dropExpiredNonces(nowSec - getStateTtlSec());
+        if (usedNonceCount.get() >= TeamCityProperties.getInteger("teamcity.gitHubAuth.state.replayFilterSize", 100000)) {
+            return "not accepted, too many recent logins";
+        }
+        Set<String> bucket = usedNonces.computeIfAbsent(issuedAtSec / NONCE_BUCKET_SEC, key -> ConcurrentHashMap.newKeySet());
+        if (!bucket.add(nonce)) return "already used";
+        usedNonceCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Drops the buckets of states issued before the given time, such states are rejected as expired anyway
+     */
+    private void dropExpiredNonces(long issuedBeforeSec) {
+        Map.Entry<Long, Set<String>> oldest;
+        while ((oldest = usedNonces.firstEntry()) != null && (oldest.getKey() + 1) * NONCE_BUCKET_SEC <= issuedBeforeSec) {
+            if (usedNonces.remove(oldest.getKey(), oldest.getValue())) {
+                usedNonceCount.addAndGet(-oldest.getValue().size());
+            }
+        }
+    }
+
+    @NotNull
+    private static String getCookieName(@NotNull String nonce) {
+        return STATE_COOKIE_NAME + "_" + nonce.substring(0, COOKIE_NONCE_PREFIX_LENGTH);
+    }
+
+    @Nullable
+    private static String getCookieValue(@NotNull HttpServletRequest request, @NotNull String name) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) return null;
+        for (Cookie cookie : cookies) {
+            if (name.equals(cookie.getName())) return cookie.getValue();
+        }
+        return null;
+    }
+
+    @NotNull
+    private static String sign(@NotNull String payload, @NotNull OAuthConnectionDescriptor connection) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(deriveKey(connection), HMAC_ALGORITHM));
+            return encode(mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new GitHubLocalLoginException("Cannot sign GitHub OAuth state", e);
+        }
+    }
+
+    @NotNull
+    private static byte[] deriveKey(@NotNull OAuthConnectionDescriptor connection) throws GeneralSecurityException {
+        String secret = TeamCityProperties.getPropertyOrNull("teamcity.gitHubAuth.state.secret");
+        if (StringUtil.isEmpty(secret)) {
+            secret = connection.getParameters().get(GitHubConstants.CLIENT_SECRET_PARAM);
+        }
+        if (StringUtil.isEmpty(secret)) {
+            throw new GitHubLocalLoginException("Cannot sign GitHub OAuth state: client secret is not specified in the GitHub Connection");
+        }
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+        return mac.doFinal("teamcity.gitHubAuth.state".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @NotNull
+    private static String encode(@NotNull byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static boolean isSignedMode() {
+        return SIGNED_MODE.equals(TeamCityProperties.getProperty(MODE_PROPERTY, "session"));
+    }
+
+    private static int getStateTtlSec() {
+        return TeamCityProperties.getInteger("teamcity.gitHubAuth.state.ttlSec", 600);
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "OAuth state";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("mode", isSignedMode() ? SIGNED_MODE : "session");
+        result.put("issued", issued.get());
+        result.put("rejected", rejected.get());
+        result.put("replayFilterSize", usedNonceCount.get());
+        return result;
+    }
+}
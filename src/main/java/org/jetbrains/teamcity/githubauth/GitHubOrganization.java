@@ -0,0 +1,25 @@
+package org.jetbrains.teamcity.githubauth;
+
+/**
+ * Item of the {@code /user/orgs} response.
+ */
+public class GitHubOrganization {
+    private String id;
+    private String login;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getLogin() {
+        return login;
+    }
+
+    public void setLogin(String login) {
+        this.login = login;
+    }
+}
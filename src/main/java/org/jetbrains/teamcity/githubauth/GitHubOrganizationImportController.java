@@ -0,0 +1,75 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Starts {@link GitHubOrganizationImporter} with a POST request ({@code organization}, {@code token} and optional
+ * {@code links} and {@code restart} parameters) and reports its progress as plain text, available to
+ * system administrators only. The {@code links} parameter maps GitHub logins to the existing TeamCity users to link,
+ * one {@code <GitHub login>=<TeamCity username>} per line.
+ */
+public class GitHubOrganizationImportController extends BaseController {
+    public static final String PATH = "/admin/gitHubAuthImport.html";
+
+    @NotNull
+    private final GitHubOrganizationImporter importer;
+
+    public GitHubOrganizationImportController(@NotNull WebControllerManager webControllerManager,
+                                              @NotNull GitHubOrganizationImporter importer) {
+        this.importer = importer;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return null;
+        }
+
+        if (isPost(request)) {
+            String organization = request.getParameter("organization");
+            String token = request.getParameter("token");
+            if (StringUtil.isEmptyOrSpaces(organization) || StringUtil.isEmptyOrSpaces(token)) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "'organization' and 'token' parameters are required");
+                return null;
+            }
+            Map<String, String> links;
+            try {
+                links = GitHubOrganizationImporter.parseLinks(request.getParameter("links"));
+            } catch (IllegalArgumentException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return null;
+            }
+            try {
+                importer.start(organization.trim(), token.trim(), links, Boolean.parseBoolean(request.getParameter("restart")));
+            } catch (IllegalStateException e) {
+                response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+                return null;
+            }
+        }
+
+        response.setContentType("text/plain;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (Map.Entry<String, Object> entry : importer.getDiagnostics().entrySet()) {
+            writer.println(entry.getKey() + ": " + entry.getValue());
+        }
+        writer.flush();
+        return null;
+    }
+}
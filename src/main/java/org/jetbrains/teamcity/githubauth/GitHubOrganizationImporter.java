@@ -0,0 +1,356 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.DuplicateUserAccountException;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+
+/**
+ * Creates TeamCity users for the members of a GitHub organization ahead of their first login, so the first login
+ * takes the existing user path.
+ * <p>
+ * Members are read page by page, profiles of the members without a TeamCity user are fetched with
+ * {@code teamcity.gitHubAuth.import.parallelism} concurrent calls, and then the users of the page are created.
+ * Existing TeamCity users are linked only through the mapping of GitHub logins to TeamCity usernames given by the
+ * administrator, a member mentioned in the mapping is linked to the mapped user and never created. Users are not linked
+ * because of the equal username: anyone can register the GitHub login matching the username of a TeamCity user.
+ * <p>
+ * Progress is saved to a checkpoint in the plugin data directory after every page, an interrupted import
+ * (server restart, exhausted rate limit, error) continues from the last completed page when started again.
+ * Users which already exist are skipped, so repeating the import is harmless.
+ */
+public class GitHubOrganizationImporter implements GitHubAuthDiagnostics {
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final GitHubOAuthClient gitHubOAuthClient;
+    @NotNull
+    private final TeamCityCoreFacade teamCityCore;
+    @NotNull
+    private final GitHubOAuth gitHubOAuth;
+    @NotNull
+    private final File checkpointDir;
+    @NotNull
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(new NamedThreadFactory("GitHub organization import"));
+    @NotNull
+    private final ExecutorService profileFetcher;
+    @Nullable
+    private volatile Progress current;
+
+    public GitHubOrganizationImporter(@NotNull GitHubOAuthClient gitHubOAuthClient,
+                                      @NotNull TeamCityCoreFacade teamCityCore,
+                                      @NotNull GitHubOAuth gitHubOAuth,
+                                      @NotNull ServerPaths serverPaths) {
+        this(gitHubOAuthClient, teamCityCore, gitHubOAuth, new File(serverPaths.getPluginDataDirectory(), "gitHubAuth"));
+    }
+
+    GitHubOrganizationImporter(@NotNull GitHubOAuthClient gitHubOAuthClient,
+                               @NotNull TeamCityCoreFacade teamCityCore,
+                               @NotNull GitHubOAuth gitHubOAuth,
+                               @NotNull File checkpointDir) {
+        this.gitHubOAuthClient = gitHubOAuthClient;
+        this.teamCityCore = teamCityCore;
+        this.gitHubOAuth = gitHubOAuth;
+        this.checkpointDir = checkpointDir;
+        profileFetcher = Executors.newFixedThreadPool(Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.import.parallelism", 4)),
+                new NamedThreadFactory("GitHub organization import profiles"));
+    }
+
+    /**
+     * Starts the import of the organization members in the background.
+     *
+     * @param token        GitHub token able to list the organization members, private memberships require {@code read:org}
+     * @param links   TeamCity usernames of the existing users to link keyed by lower-cased GitHub login, see {@link #parseLinks}
+     * @param restart whether the saved progress should be dropped
+     * @return progress of the started import
+     * @throws IllegalStateException if another import is in progress
+     */
+    @NotNull
+    synchronized Progress start(@NotNull String organization, @NotNull String token, @NotNull Map<String, String> links, boolean restart) {
+        Progress running = current;
+        if (running != null && !running.isFinished()) {
+            throw new IllegalStateException("Import of the GitHub organization '" + running.organization + "' is in progress");
+        }
+        Progress progress = restart ? null : loadCheckpoint(organization);
+        if (progress == null || progress.completed) {
+            progress = new Progress(organization);
+        }
+        progress.links = links;
+        progress.state = "running";
+        current = progress;
+        Progress started = progress;
+        runner.execute(() -> run(started, token));
+        return progress;
+    }
+
+    /**
+     * @param links lines {@code <GitHub login>=<TeamCity username>}, empty lines are ignored
+     * @return TeamCity usernames keyed by lower-cased GitHub login
+     * @throws IllegalArgumentException if a line is malformed or a GitHub login is mapped twice
+     */
+    @NotNull
+    static Map<String, String> parseLinks(@Nullable String links) {
+        if (links == null) return emptyMap();
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String line : links.split("\\r?\\n")) {
+            if (line.trim().isEmpty()) continue;
+            int separator = line.indexOf('=');
+            String login = separator > 0 ? line.substring(0, separator).trim().toLowerCase(Locale.ENGLISH) : "";
+            String username = separator > 0 ? line.substring(separator + 1).trim() : "";
+            if (login.isEmpty() || username.isEmpty()) {
+                throw new IllegalArgumentException("Malformed link '" + line.trim() + "', expected <GitHub login>=<TeamCity username>");
+            }
+            if (result.put(login, username) != null) {
+                throw new IllegalArgumentException("GitHub login '" + login + "' is linked more than once");
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    Progress getProgress() {
+        return current;
+    }
+
+    private void run(@NotNull Progress progress, @NotNull String token) {
+        logger.info("Importing members of the GitHub organization '" + progress.organization + "'" +
+                (progress.nextPageUrl != null ? ", continue from " + progress.nextPageUrl : ""));
+        try {
+            do {
+                GitHubOrganizationMembers page = gitHubOAuthClient.getOrganizationMembers(token, progress.organization, progress.nextPageUrl);
+                importPage(progress, token, page.members);
+                progress.pages++;
+                progress.nextPageUrl = page.nextPageUrl;
+                saveCheckpoint(progress);
+            } while (progress.nextPageUrl != null && !Thread.currentThread().isInterrupted());
+            progress.completed = progress.nextPageUrl == null;
+            progress.state = progress.completed ? "completed" : "interrupted";
+            saveCheckpoint(progress);
+            logger.info("Import of the GitHub organization '" + progress.organization + "' " + progress.state + ": " + progress.describe());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.state = "interrupted";
+            logger.info("Import of the GitHub organization '" + progress.organization + "' interrupted: " + progress.describe());
+        } catch (GitHubUnavailableException e) {
+            progress.state = "paused: " + e.getMessage();
+            logger.warn("Import of the GitHub organization '" + progress.organization + "' is paused, start it again to continue: " + e.getMessage());
+        } catch (Exception e) {
+            progress.state = "failed: " + e.getMessage();
+            logger.warn("Import of the GitHub organization '" + progress.organization + "' failed, start it again to continue: " + e);
+            logger.debug(e);
+        }
+    }
+
+    private void importPage(@NotNull Progress progress, @NotNull String token, @NotNull GitHubUser[] members) throws InterruptedException {
+        List<GitHubUser> missing = new ArrayList<>();
+        for (GitHubUser member : members) {
+            if (member.getId() == null || member.getLogin() == null) continue;
+            if (teamCityCore.findUserByGitHubId(member.getId()) != null) {
+                progress.existing++;
+            } else {
+                missing.add(member);
+            }
+        }
+
+        List<CompletableFuture<GitHubUser>> profiles = new ArrayList<>(missing.size());
+        for (GitHubUser member : missing) {
+            profiles.add(CompletableFuture.supplyAsync(() -> gitHubOAuthClient.getUserProfile(token, member.getLogin()), profileFetcher));
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            GitHubUser profile;
+            try {
+                profile = profiles.get(i).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof GitHubUnavailableException) throw (GitHubUnavailableException) cause;
+                progress.failed++;
+                logger.warn("Failed to obtain the profile of the GitHub user '" + missing.get(i).getLogin() + "', the user is skipped: " + cause);
+                continue;
+            }
+            provision(progress, profile);
+        }
+    }
+
+    private void provision(@NotNull Progress progress, @NotNull GitHubUser gitHubUser) {
+        ReentrantLock lock = gitHubOAuth.lockProvisioning(gitHubUser.getId());
+        try {
+            if (teamCityCore.findUserByGitHubId(gitHubUser.getId()) != null) {
+                progress.existing++;
+                return;
+            }
+            String username = progress.links.get(gitHubUser.getLogin().toLowerCase(Locale.ENGLISH));
+            if (username != null) {
+                link(progress, gitHubUser, username);
+                return;
+            }
+            teamCityCore.createUser(gitHubUser.getLogin(), gitHubUser.getEmail(), false, gitHubUser.getName(),
+                    singletonMap(GitHubOAuth.GITHUB_USER_ID_PROPERTY_KEY, gitHubUser.getId()));
+            progress.created++;
+        } catch (DuplicateUserAccountException e) {
+            progress.conflicts++;
+            logger.warn("TeamCity user with username '" + gitHubUser.getLogin() + "' already exists and is not linked to the GitHub user, the user is skipped");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void link(@NotNull Progress progress, @NotNull GitHubUser gitHubUser, @NotNull String username) {
+        SUser user = teamCityCore.findUserByUsername(username);
+        if (user == null) {
+            progress.conflicts++;
+            logger.warn("TeamCity user '" + username + "' linked to the GitHub user '" + gitHubUser.getLogin() + "' doesn't exist, the user is skipped");
+            return;
+        }
+        if (user.getPropertyValue(GitHubOAuth.GITHUB_USER_ID_PROPERTY_KEY) != null) {
+            progress.conflicts++;
+            logger.warn("TeamCity user " + user.describe(false) + " linked to the GitHub user '" + gitHubUser.getLogin() +
+                    "' is already bound to another GitHub account, the user is skipped");
+            return;
+        }
+        teamCityCore.linkUser(user, gitHubUser.getId());
+        progress.linked++;
+        logger.info("TeamCity user " + user.describe(false) + " linked to the GitHub user '" + gitHubUser.describe(false) + "'");
+    }
+
+    @Nullable
+    private Progress loadCheckpoint(@NotNull String organization) {
+        File file = getCheckpointFile(organization);
+        if (!file.isFile()) return null;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            logger.warn("Cannot read checkpoint of the GitHub organization import " + file + ", start from the beginning: " + e);
+            return null;
+        }
+        Progress progress = new Progress(organization);
+        progress.nextPageUrl = properties.getProperty("nextPageUrl");
+        progress.completed = Boolean.parseBoolean(properties.getProperty("completed"));
+        progress.pages = parseInt(properties.getProperty("pages"));
+        progress.existing = parseInt(properties.getProperty("existing"));
+        progress.created = parseInt(properties.getProperty("created"));
+        progress.linked = parseInt(properties.getProperty("linked"));
+        progress.conflicts = parseInt(properties.getProperty("conflicts"));
+        progress.failed = parseInt(properties.getProperty("failed"));
+        return progress;
+    }
+
+    private void saveCheckpoint(@NotNull Progress progress) throws IOException {
+        Properties properties = new Properties();
+        if (progress.nextPageUrl != null) properties.setProperty("nextPageUrl", progress.nextPageUrl);
+        properties.setProperty("completed", String.valueOf(progress.completed));
+        properties.setProperty("pages", String.valueOf(progress.pages));
+        properties.setProperty("existing", String.valueOf(progress.existing));
+        properties.setProperty("created", String.valueOf(progress.created));
+        properties.setProperty("linked", String.valueOf(progress.linked));
+        properties.setProperty("conflicts", String.valueOf(progress.conflicts));
+        properties.setProperty("failed", String.valueOf(progress.failed));
+
+        File file = getCheckpointFile(progress.organization);
+        Files.createDirectories(checkpointDir.toPath());
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "GitHub organization import checkpoint");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @NotNull
+    private File getCheckpointFile(@NotNull String organization) {
+        return new File(checkpointDir, "import-" + organization.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9_.-]", "_") + ".properties");
+    }
+
+    private static int parseInt(@Nullable String value) {
+        try {
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public void shutdown() {
+        runner.shutdownNow();
+        profileFetcher.shutdownNow();
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "GitHub organization import";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Progress progress = current;
+        return progress != null ? progress.describe() : singletonMap("state", "not started");
+    }
+
+    static final class Progress {
+        @NotNull
+        final String organization;
+        @NotNull
+        volatile Map<String, String> links = emptyMap();
+        @NotNull
+        volatile String state = "created";
+        @Nullable
+        volatile String nextPageUrl;
+        volatile boolean completed;
+        volatile int pages;
+        volatile int existing;
+        volatile int created;
+        volatile int linked;
+        volatile int conflicts;
+        volatile int failed;
+
+        private Progress(@NotNull String organization) {
+            this.organization = organization;
+        }
+
+        boolean isFinished() {
+            return !"running".equals(state);
+        }
+
+        @NotNull
+        Map<String, Object> describe() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("organization", organization);
+            result.put("state", state);
+            result.put("pages", pages);
+            result.put("existing", existing);
+            result.put("created", created);
+            result.put("linked", linked);
+            result.put("conflicts", conflicts);
+            result.put("failed", failed);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Page of the {@code /orgs/<org>/members} response.
+ */
+final class GitHubOrganizationMembers {
+    @NotNull
+    final GitHubUser[] members;
+    /**
+     * URL of the next page from the {@code Link} header, null for the last page
+     */
+    @Nullable
+    final String nextPageUrl;
+
+    GitHubOrganizationMembers(@NotNull GitHubUser[] members, @Nullable String nextPageUrl) {
+        this.members = members;
+        this.nextPageUrl = nextPageUrl;
+    }
+}
@@ -0,0 +1,199 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Fetches the GitHub user profile: {@code /user} and, if enabled, {@code /user/emails} and {@code /user/orgs}.
+ * <p>
+ * The calls are issued concurrently and share one deadline ({@code teamcity.gitHubAuth.profile.timeoutMs}).
+ * {@code /user} is required and runs on the calling thread, or on the login executor in the asynchronous mode.
+ * The optional calls run on a separate pool of {@code teamcity.gitHubAuth.profile.maxConcurrentOptionalCalls} threads,
+ * they are skipped when the pool is busy, and their failures and timeouts only leave the corresponding data unset.
+ */
+public class GitHubProfileFetcher {
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final GitHubOAuthClient gitHubOAuthClient;
+    @NotNull
+    private final ScheduledExecutorService deadlineTimer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("GitHub profile deadline"));
+    @NotNull
+    private final ThreadPoolExecutor optionalCalls;
+    @NotNull
+    private final Semaphore optionalPermits;
+
+    public GitHubProfileFetcher(@NotNull GitHubOAuthClient gitHubOAuthClient) {
+        this.gitHubOAuthClient = gitHubOAuthClient;
+        int maxOptionalCalls = Math.max(0, TeamCityProperties.getInteger("teamcity.gitHubAuth.profile.maxConcurrentOptionalCalls", 16));
+        optionalPermits = new Semaphore(maxOptionalCalls);
+        optionalCalls = new ThreadPoolExecutor(Math.max(1, maxOptionalCalls), Math.max(1, maxOptionalCalls), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("GitHub profile worker"));
+        optionalCalls.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fetches {@code /user} on the calling thread while the optional calls run on the pool of optional calls.
+     */
+    @NotNull
+    public GitHubUser fetchProfile(@NotNull String token) {
+        return fetchProfile(gitHubOAuthClient, token);
+    }
+
+    @NotNull
+    GitHubUser fetchProfile(@NotNull GitHubOAuthClient client, @NotNull String token) {
+        if (!isFetchEmails() && !isFetchOrganizations()) {
+            return client.getUser(token);
+        }
+        long timeoutMs = TeamCityProperties.getLong("teamcity.gitHubAuth.profile.timeoutMs", 10000);
+        CompletableFuture<GitHubUserEmail[]> emails = fetchEmails(client, token, timeoutMs);
+        CompletableFuture<GitHubOrganization[]> organizations = fetchOrganizations(client, token, timeoutMs);
+        GitHubUser user = client.getUser(token);
+        // optional results are always completed, at the latest by their deadline
+        return mergeOrganizations(mergeEmails(user, emails.join()), organizations.join());
+    }
+
+    /**
+     * @param executor executor of the required {@code /user} call
+     */
+    @NotNull
+    public CompletableFuture<GitHubUser> fetchProfileAsync(@NotNull String token, @NotNull Executor executor) {
+        return fetchProfileAsync(gitHubOAuthClient, token, executor);
+    }
+
+    @NotNull
+    CompletableFuture<GitHubUser> fetchProfileAsync(@NotNull GitHubOAuthClient client, @NotNull String token, @NotNull Executor executor) {
+        long timeoutMs = TeamCityProperties.getLong("teamcity.gitHubAuth.profile.timeoutMs", 10000);
+        CompletableFuture<GitHubUser> user = required(client.getUserAsync(token, executor), timeoutMs);
+        CompletableFuture<GitHubUserEmail[]> emails = fetchEmails(client, token, timeoutMs);
+        CompletableFuture<GitHubOrganization[]> organizations = fetchOrganizations(client, token, timeoutMs);
+        return user.thenCombine(emails, GitHubProfileFetcher::mergeEmails)
+                .thenCombine(organizations, GitHubProfileFetcher::mergeOrganizations);
+    }
+
+    @NotNull
+    private CompletableFuture<GitHubUserEmail[]> fetchEmails(@NotNull GitHubOAuthClient client, @NotNull String token, long timeoutMs) {
+        return isFetchEmails()
+                ? optional(() -> client.getUserEmails(token), timeoutMs, "/user/emails")
+                : CompletableFuture.completedFuture(null);
+    }
+
+    @NotNull
+    private CompletableFuture<GitHubOrganization[]> fetchOrganizations(@NotNull GitHubOAuthClient client, @NotNull String token, long timeoutMs) {
+        return isFetchOrganizations()
+                ? optional(() -> client.getUserOrganizations(token), timeoutMs, "/user/orgs")
+                : CompletableFuture.completedFuture(null);
+    }
+
+    @NotNull
+    private static GitHubUser mergeEmails(@NotNull GitHubUser user, @Nullable GitHubUserEmail[] emails) {
+        if (emails == null) return user;
+        GitHubUserEmail primaryVerified = null;
+        boolean publicEmailVerified = false;
+        for (GitHubUserEmail email : emails) {
+            if (!email.isVerified()) continue;
+            if (email.isPrimary()) primaryVerified = email;
+            if (email.getEmail() != null && email.getEmail().equalsIgnoreCase(user.getEmail())) publicEmailVerified = true;
+        }
+        if (publicEmailVerified) {
+            user.setEmailVerified(true);
+        } else if (primaryVerified != null) {
+            user.setEmail(primaryVerified.getEmail());
+            user.setEmailVerified(true);
+        } else {
+            user.setEmailVerified(false);
+        }
+        return user;
+    }
+
+    @NotNull
+    private static GitHubUser mergeOrganizations(@NotNull GitHubUser user, @Nullable GitHubOrganization[] organizations) {
+        if (organizations == null) return user;
+        List<String> logins = new ArrayList<>(organizations.length);
+        for (GitHubOrganization organization : organizations) {
+            logins.add(organization.getLogin());
+        }
+        user.setOrganizations(logins);
+        return user;
+    }
+
+    @NotNull
+    private <T> CompletableFuture<T> required(@NotNull CompletableFuture<T> call, long timeoutMs) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> deadline = deadlineTimer.schedule(
+                () -> result.completeExceptionally(new GitHubLoginException("Timed out obtaining GitHub user after " + timeoutMs + "ms")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        call.whenComplete((value, error) -> {
+            deadline.cancel(false);
+            if (error != null) result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            else result.complete(value);
+        });
+        return result;
+    }
+
+    @NotNull
+    private <T> CompletableFuture<T> optional(@NotNull Supplier<T> supplier, long timeoutMs, @NotNull String description) {
+        if (!optionalPermits.tryAcquire()) {
+            logger.debug("Skip obtaining " + description + " from GitHub: too many concurrent calls");
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<T> call;
+        try {
+            call = CompletableFuture.supplyAsync(supplier, optionalCalls);
+        } catch (RejectedExecutionException e) {
+            optionalPermits.release();
+            logger.debug("Skip obtaining " + description + " from GitHub: the pool is shut down");
+            return CompletableFuture.completedFuture(null);
+        }
+        call.whenComplete((value, error) -> optionalPermits.release());
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> deadline = deadlineTimer.schedule(() -> {
+            if (result.complete(null)) {
+                logger.info("Timed out obtaining " + description + " from GitHub after " + timeoutMs + "ms, continue without it");
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        call.whenComplete((value, error) -> {
+            deadline.cancel(false);
+            if (error != null) {
+                logger.info("Failed to obtain " + description + " from GitHub, continue without it: " + error);
+                logger.debug(error);
+                result.complete(null);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    public void shutdown() {
+        deadlineTimer.shutdownNow();
+        optionalCalls.shutdownNow();
+    }
+
+    private static boolean isFetchEmails() {
+        return TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.profile.fetchEmails");
+    }
+
+    private static boolean isFetchOrganizations() {
+        return TeamCityProperties.getBoolean("teamcity.gitHubAuth.profile.fetchOrganizations");
+    }
+}
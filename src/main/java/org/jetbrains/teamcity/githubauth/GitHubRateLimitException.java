@@ -0,0 +1,16 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NonNls;
+
+/**
+ * Thrown when the GitHub rate limit is exhausted, or nearly exhausted for calls the login can do without.
+ */
+public class GitHubRateLimitException extends GitHubUnavailableException {
+    public GitHubRateLimitException(@NonNls String message) {
+        super(message);
+    }
+
+    public GitHubRateLimitException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
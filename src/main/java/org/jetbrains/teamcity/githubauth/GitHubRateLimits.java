@@ -0,0 +1,236 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit state of GitHub endpoints reported by the {@code X-RateLimit-*} and {@code Retry-After} response headers,
+ * tracked per endpoint host, budget and resource. REST and GraphQL calls are limited separately by GitHub, so they use
+ * different {@link #CORE} and {@link #GRAPHQL} budgets.
+ * <p>
+ * GitHub charges requests made with a user token to the user, whatever token is used, so user budgets are keyed by
+ * the GitHub user id and the exhausted budget of one user doesn't affect the logins of others. The user isn't known
+ * before {@code /user} returns, so {@code /user} and the calls started together with it are not checked, the headers
+ * of {@code /user} are recorded to the budget of the returned user. At most {@code teamcity.gitHubAuth.rateLimit.userBudgets}
+ * user budgets are kept, the least recently used ones are dropped. Requests made with the application credentials
+ * share a single budget per host, and so do the requests of the organization import.
+ * <p>
+ * Once a budget is exhausted the calls charged to it fail fast with {@link GitHubRateLimitException} until the reset time.
+ * When less than {@code teamcity.gitHubAuth.rateLimit.reservePercent} of the budget is left, non-critical calls
+ * (the ones the login can do without) are skipped to leave the rest to critical ones.
+ */
+public class GitHubRateLimits implements GitHubAuthDiagnostics {
+    static final String APP_CREDENTIALS = "app";
+    static final String IMPORT = "import";
+    static final String CORE = "core";
+    static final String GRAPHQL = "graphql";
+    private static final String USER_PREFIX = "user/";
+
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final Map<String, Budget> appBudgets = new ConcurrentHashMap<>();
+    @NotNull
+    private final Map<String, Budget> userBudgets = new LinkedHashMap<String, Budget>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Budget> eldest) {
+            return size() > TeamCityProperties.getInteger("teamcity.gitHubAuth.rateLimit.userBudgets", 10000);
+        }
+    };
+
+    /**
+     * @return budget of the requests made with the tokens of the given GitHub user
+     */
+    @NotNull
+    static String user(@NotNull String gitHubUserId) {
+        return USER_PREFIX + gitHubUserId;
+    }
+
+    /**
+     * @param budget   {@link #APP_CREDENTIALS}, {@link #IMPORT} or the {@link #user} budget the call is charged to
+     * @param resource {@link #CORE} or {@link #GRAPHQL}
+     * @throws GitHubRateLimitException if the call shouldn't be made
+     */
+    void checkBudget(@NotNull String host, @NotNull String budget, @NotNull String resource, boolean critical) {
+        if (!isEnabled()) return;
+        checkBudget(getBudget(host + "/" + budget + "/" + resource, budget.startsWith(USER_PREFIX), false), critical);
+    }
+
+    private void checkBudget(@Nullable Budget budget, boolean critical) {
+        if (budget == null) return;
+
+        long now = System.currentTimeMillis();
+        String exhausted = budget.describeExhausted(now);
+        if (exhausted != null) {
+            budget.rejected.incrementAndGet();
+            throw new GitHubRateLimitException(exhausted);
+        }
+        if (!critical && budget.isLow(now, TeamCityProperties.getInteger("teamcity.gitHubAuth.rateLimit.reservePercent", 10))) {
+            budget.skipped.incrementAndGet();
+            throw new GitHubRateLimitException("GitHub API rate limit for " + budget.name + " is nearly exhausted (" +
+                    budget.remaining + " of " + budget.limit + " requests left), non-critical call is skipped");
+        }
+    }
+
+    /**
+     * Updates the state from the response headers.
+     *
+     * @param budgetName budget the call is charged to, null if it isn't known yet and the state shouldn't be kept
+     * @return description of the exhausted limit if the response is a rate limit rejection, null otherwise
+     */
+    @Nullable
+    String update(@NotNull String host, @Nullable String budgetName, @NotNull String resource, int status, @Nullable HttpHeaders headers) {
+        if (headers == null) return null;
+        String name = host + "/" + (budgetName != null ? budgetName : "user") + "/" + resource;
+        Budget budget = budgetName != null ? getBudget(name, budgetName.startsWith(USER_PREFIX), true) : new Budget(name);
+        long now = System.currentTimeMillis();
+
+        Long limit = parseLong(headers.getFirst("X-RateLimit-Limit"));
+        Long remaining = parseLong(headers.getFirst("X-RateLimit-Remaining"));
+        Long reset = parseLong(headers.getFirst("X-RateLimit-Reset"));
+        if (limit != null && remaining != null) {
+            budget.update(limit, remaining, reset != null ? TimeUnit.SECONDS.toMillis(reset) : 0, headers.getFirst("X-RateLimit-Resource"));
+        }
+        if (status != 403 && status != 429) return null;
+
+        Long retryAfter = parseLong(headers.getFirst("Retry-After"));
+        if (retryAfter != null) {
+            budget.blockedUntilMillis = now + TimeUnit.SECONDS.toMillis(retryAfter);
+        } else if (remaining == null || remaining > 0) {
+            return null;
+        }
+        budget.limited.incrementAndGet();
+        String exhausted = budget.describeExhausted(now);
+        if (exhausted == null) {
+            exhausted = "GitHub API rate limit for " + name + " is exhausted";
+        }
+        logger.warn(exhausted);
+        return exhausted;
+    }
+
+    @Nullable
+    private Budget getBudget(@NotNull String name, boolean user, boolean create) {
+        if (!user) {
+            return create ? appBudgets.computeIfAbsent(name, Budget::new) : appBudgets.get(name);
+        }
+        synchronized (userBudgets) {
+            return create ? userBudgets.computeIfAbsent(name, Budget::new) : userBudgets.get(name);
+        }
+    }
+
+    private static boolean isEnabled() {
+        return TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.rateLimit.enabled");
+    }
+
+    @Nullable
+    private static Long parseLong(@Nullable String value) {
+        if (value == null) return null;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "GitHub rate limits";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (Budget budget : appBudgets.values()) {
+            result.put(budget.name, budget.describe(now));
+        }
+        List<Budget> users;
+        synchronized (userBudgets) {
+            users = new ArrayList<>(userBudgets.values());
+        }
+        long exhausted = 0, limited = 0, rejected = 0, skipped = 0;
+        for (Budget budget : users) {
+            if (budget.describeExhausted(now) != null) exhausted++;
+            limited += budget.limited.get();
+            rejected += budget.rejected.get();
+            skipped += budget.skipped.get();
+        }
+        result.put("userBudgets", users.size());
+        result.put("userBudgets.exhausted", exhausted);
+        result.put("userBudgets.limited", limited);
+        result.put("userBudgets.rejected", rejected);
+        result.put("userBudgets.skipped", skipped);
+        return result;
+    }
+
+    private static final class Budget {
+        @NotNull
+        private final String name;
+        private volatile long limit = -1;
+        private volatile long remaining = -1;
+        private volatile long resetAtMillis;
+        private volatile long blockedUntilMillis;
+        @Nullable
+        private volatile String resource;
+        @NotNull
+        private final AtomicLong rejected = new AtomicLong();
+        @NotNull
+        private final AtomicLong skipped = new AtomicLong();
+        @NotNull
+        private final AtomicLong limited = new AtomicLong();
+
+        private Budget(@NotNull String name) {
+            this.name = name;
+        }
+
+        private void update(long limit, long remaining, long resetAtMillis, @Nullable String resource) {
+            this.limit = limit;
+            this.remaining = remaining;
+            this.resetAtMillis = resetAtMillis;
+            this.resource = resource;
+        }
+
+        @Nullable
+        private String describeExhausted(long now) {
+            if (blockedUntilMillis > now) {
+                return "GitHub API rate limit for " + name + " is exceeded, retry in " + secondsUntil(blockedUntilMillis, now) + "s";
+            }
+            if (remaining == 0 && resetAtMillis > now) {
+                return "GitHub API rate limit for " + name + " is exhausted (" + limit + " requests), it resets in " +
+                        secondsUntil(resetAtMillis, now) + "s";
+            }
+            return null;
+        }
+
+        private boolean isLow(long now, int reservePercent) {
+            return limit > 0 && remaining >= 0 && resetAtMillis > now && remaining * 100 < limit * reservePercent;
+        }
+
+        @NotNull
+        private String describe(long now) {
+            return "remaining=" + remaining + ", limit=" + limit +
+                    (resetAtMillis > now ? ", resetInSec=" + secondsUntil(resetAtMillis, now) : "") +
+                    (blockedUntilMillis > now ? ", blockedForSec=" + secondsUntil(blockedUntilMillis, now) : "") +
+                    (resource != null ? ", resource=" + resource : "") +
+                    ", limited=" + limited.get() + ", rejected=" + rejected.get() + ", skipped=" + skipped.get();
+        }
+
+        private static long secondsUntil(long millis, long now) {
+            return TimeUnit.MILLISECONDS.toSeconds(millis - now + 999);
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.serverSide.oauth.OAuthToken;
+import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates GitHub tokens remembered for the Root Project GitHub connections with the OAuth application check-token API,
+ * so tokens revoked on GitHub don't break VCS roots and commit status publishing at build time.
+ * <p>
+ * Every {@code teamcity.gitHubAuth.tokenSweeper.intervalHours} all users are checked in batches of
+ * {@code teamcity.gitHubAuth.tokenSweeper.batchSize} spread evenly over the interval, tokens of a batch are checked by
+ * {@code teamcity.gitHubAuth.tokenSweeper.parallelism} threads. The checks are non-critical calls, so they stop while
+ * the rate limit of the application is nearly exhausted and the deferred users are retried with the next batch.
+ * <p>
+ * Invalid tokens are reported in the diagnostics, with {@code teamcity.gitHubAuth.tokenSweeper.evict=true} they are
+ * removed. GitHub also answers 404 when the application credentials are wrong, so a token is removed only once a token
+ * of the same connection was confirmed valid during the sweep, which proves the credentials. The sweep is aborted when
+ * the first {@code teamcity.gitHubAuth.tokenSweeper.minChecks} checks of a connection are all invalid or when more than
+ * {@code teamcity.gitHubAuth.tokenSweeper.maxInvalidPercent} of its checked tokens are invalid.
+ * <p>
+ * The sweeper is started by the server startup. While the GitHub auth module isn't configured it only checks the
+ * module every minute, so enabling the module in the UI starts the sweeps after
+ * {@code teamcity.gitHubAuth.tokenSweeper.initialDelayMin} and removing it stops them.
+ */
+public class GitHubTokenSweeper implements GitHubAuthDiagnostics {
+    private static final int MAX_FLAGGED = 100;
+
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final TeamCityCoreFacade teamCityCore;
+    @NotNull
+    private final GitHubClients clients;
+    @NotNull
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("GitHub token sweeper"));
+    @NotNull
+    private final ExecutorService checkers = Executors.newFixedThreadPool(
+            Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenSweeper.parallelism", 2)), new NamedThreadFactory("GitHub token check"));
+    @NotNull
+    private final Object lock = new Object();
+    @NotNull
+    private final Deque<SUser> queue = new ArrayDeque<>();
+    @NotNull
+    private final Deque<String> flagged = new ArrayDeque<>();
+    @NotNull
+    private final Map<String, ConnectionStats> sweepStats = new HashMap<>();
+    private boolean scheduled;
+    private boolean active;
+    @Nullable
+    private String lastAbort;
+    private int sweepSize;
+    private long sweepStartedAtNanos;
+    private long sweepTokensChecked;
+    private long nextSweepAtNanos = System.nanoTime();
+    private long batchDelayMs;
+
+    @NotNull
+    private final AtomicLong sweeps = new AtomicLong();
+    @NotNull
+    private final AtomicLong tokensChecked = new AtomicLong();
+    @NotNull
+    private final AtomicLong invalid = new AtomicLong();
+    @NotNull
+    private final AtomicLong evicted = new AtomicLong();
+    @NotNull
+    private final AtomicLong deferred = new AtomicLong();
+    @NotNull
+    private final AtomicLong failed = new AtomicLong();
+    @NotNull
+    private final AtomicLong aborted = new AtomicLong();
+
+    public GitHubTokenSweeper(@NotNull TeamCityCoreFacade teamCityCore, @NotNull GitHubClients clients,
+                              @NotNull EventDispatcher<BuildServerListener> buildServerDispatcher) {
+        this(teamCityCore, clients);
+        buildServerDispatcher.addListener(new BuildServerAdapter() {
+            @Override
+            public void serverStartup() {
+                start();
+            }
+
+            @Override
+            public void serverConfigurationReloaded() {
+                start();
+            }
+        });
+    }
+
+    GitHubTokenSweeper(@NotNull TeamCityCoreFacade teamCityCore, @NotNull GitHubClients clients) {
+        this.teamCityCore = teamCityCore;
+        this.clients = clients;
+    }
+
+    /**
+     * Schedules the first tick if the sweeper isn't running yet.
+     */
+    void start() {
+        synchronized (lock) {
+            if (scheduled || scheduler.isShutdown()) return;
+            scheduled = true;
+        }
+        scheduler.execute(this::tickSafely);
+    }
+
+    private void tickSafely() {
+        long delayMs = TimeUnit.MINUTES.toMillis(1);
+        try {
+            delayMs = tickIfConfigured();
+        } catch (Throwable e) {
+            logger.warn("Failed to check remembered GitHub tokens: " + e);
+            logger.debug(e);
+        }
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::tickSafely, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Ticks while the GitHub auth module is configured. The sweeps start {@code teamcity.gitHubAuth.tokenSweeper.initialDelayMin}
+     * after the module is found configured and stop when it is removed.
+     *
+     * @return delay of the next tick in milliseconds
+     */
+    long tickIfConfigured() {
+        boolean configured = teamCityCore.isAuthModuleConfigured(GitHubOAuth.class);
+        synchronized (lock) {
+            if (!configured) {
+                if (active) {
+                    active = false;
+                    queue.clear();
+                    logger.info("GitHub auth module is not configured, remembered GitHub tokens are no longer checked");
+                }
+                return TimeUnit.MINUTES.toMillis(1);
+            }
+            if (!active) {
+                active = true;
+                logger.info("GitHub auth module is configured, remembered GitHub tokens will be checked");
+                return TimeUnit.MINUTES.toMillis(TeamCityProperties.getLong("teamcity.gitHubAuth.tokenSweeper.initialDelayMin", 10));
+            }
+        }
+        return tick();
+    }
+
+    /**
+     * Starts a sweep when the previous one is done and the interval has passed, otherwise checks the next batch.
+     *
+     * @return delay of the next tick in milliseconds
+     */
+    long tick() {
+        if (!TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.tokenSweeper.enabled")) {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+        boolean idle;
+        synchronized (lock) {
+            idle = queue.isEmpty();
+            if (idle && System.nanoTime() - nextSweepAtNanos < 0) {
+                return Math.max(1000, TimeUnit.NANOSECONDS.toMillis(nextSweepAtNanos - System.nanoTime()));
+            }
+        }
+        if (idle) startSweep();
+        checkBatch();
+        synchronized (lock) {
+            return queue.isEmpty() ? Math.max(1000, TimeUnit.NANOSECONDS.toMillis(nextSweepAtNanos - System.nanoTime())) : batchDelayMs;
+        }
+    }
+
+    void startSweep() {
+        Collection<SUser> users = teamCityCore.getAllUsers();
+        long intervalMs = TimeUnit.HOURS.toMillis(TeamCityProperties.getLong("teamcity.gitHubAuth.tokenSweeper.intervalHours", 24));
+        int batches = Math.max(1, (users.size() + getBatchSize() - 1) / getBatchSize());
+        synchronized (lock) {
+            queue.clear();
+            queue.addAll(users);
+            sweepSize = users.size();
+            sweepStartedAtNanos = System.nanoTime();
+            sweepTokensChecked = 0;
+            sweepStats.clear();
+            nextSweepAtNanos = sweepStartedAtNanos + TimeUnit.MILLISECONDS.toNanos(intervalMs);
+            batchDelayMs = Math.max(TeamCityProperties.getLong("teamcity.gitHubAuth.tokenSweeper.minBatchDelayMs", 1000), intervalMs / batches);
+        }
+        sweeps.incrementAndGet();
+        logger.info("Checking remembered GitHub tokens of " + users.size() + " users in " + batches + " batches");
+    }
+
+    /**
+     * Checks tokens of the next batch of users and waits for the checks to finish.
+     */
+    void checkBatch() {
+        GitHubConnections connections = teamCityCore.getRootProjectGitHubConnections();
+        List<SUser> batch = new ArrayList<>();
+        synchronized (lock) {
+            while (batch.size() < getBatchSize() && !queue.isEmpty()) {
+                batch.add(queue.pollFirst());
+            }
+        }
+        if (batch.isEmpty()) return;
+
+        List<TokenCheck> checks = new ArrayList<>();
+        for (OAuthConnectionDescriptor connection : connections.getAll()) {
+            String clientId = connection.getParameters().get(GitHubConstants.CLIENT_ID_PARAM);
+            String clientSecret = connection.getParameters().get(GitHubConstants.CLIENT_SECRET_PARAM);
+            if (clientId == null || clientSecret == null) continue;
+            GitHubOAuthClient client = clients.get(connections.getEndpoint(connection));
+            for (SUser user : batch) {
+                for (OAuthToken token : teamCityCore.getTokens(connection, user)) {
+                    checks.add(new TokenCheck(connection, user, token,
+                            checkers.submit(() -> check(client, clientId, clientSecret, user, token))));
+                }
+            }
+        }
+
+        List<SUser> retry = new ArrayList<>();
+        List<TokenCheck> invalidTokens = new ArrayList<>();
+        long timeoutMs = TeamCityProperties.getLong("teamcity.gitHubAuth.tokenSweeper.checkTimeoutMs", 60000);
+        for (TokenCheck check : checks) {
+            Result result;
+            try {
+                result = check.result.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (TokenCheck pending : checks) {
+                    pending.result.cancel(true);
+                }
+                return;
+            } catch (ExecutionException e) {
+                failed.incrementAndGet();
+                continue;
+            } catch (TimeoutException e) {
+                check.result.cancel(true);
+                failed.incrementAndGet();
+                continue;
+            }
+            if (result == Result.DEFERRED && !retry.contains(check.user)) retry.add(check.user);
+            if (result == Result.VALID || result == Result.INVALID) {
+                synchronized (lock) {
+                    sweepStats.computeIfAbsent(check.connection.getId(), id -> new ConnectionStats()).record(result == Result.VALID);
+                }
+            }
+            if (result == Result.INVALID) invalidTokens.add(check);
+        }
+
+        String abort = findAbnormalConnection();
+        for (TokenCheck check : invalidTokens) {
+            handleInvalid(check, abort == null && isCredentialsConfirmed(check.connection));
+        }
+        synchronized (lock) {
+            if (abort != null) {
+                queue.clear();
+                lastAbort = abort;
+                aborted.incrementAndGet();
+                logger.warn("Checking remembered GitHub tokens is aborted, no tokens are removed until the next sweep: " + abort);
+                return;
+            }
+            for (int i = retry.size() - 1; i >= 0; i--) {
+                queue.addFirst(retry.get(i));
+            }
+        }
+    }
+
+    @NotNull
+    private Result check(@NotNull GitHubOAuthClient client, @NotNull String clientId, @NotNull String clientSecret,
+                         @NotNull SUser user, @NotNull OAuthToken token) {
+        boolean valid;
+        try {
+            valid = client.checkToken(clientId, clientSecret, token.getAccessToken());
+        } catch (GitHubRateLimitException e) {
+            deferred.incrementAndGet();
+            return Result.DEFERRED;
+        } catch (GitHubLoginException e) {
+            failed.incrementAndGet();
+            logger.debug("Failed to check GitHub token of the user " + user.describe(false) + ": " + e);
+            return Result.FAILED;
+        }
+        tokensChecked.incrementAndGet();
+        synchronized (lock) {
+            sweepTokensChecked++;
+        }
+        return valid ? Result.VALID : Result.INVALID;
+    }
+
+    /**
+     * @param evictable whether the token is known to be invalid rather than rejected because of the application credentials
+     */
+    private void handleInvalid(@NotNull TokenCheck check, boolean evictable) {
+        invalid.incrementAndGet();
+        String description = check.user.describe(false) + " (GitHub login " + check.token.getOauthLogin() + ")";
+        if (evictable && TeamCityProperties.getBoolean("teamcity.gitHubAuth.tokenSweeper.evict")) {
+            teamCityCore.removeToken(check.connection, check.token);
+            evicted.incrementAndGet();
+            logger.info("Removed GitHub token of the user " + description + " as it is no longer valid");
+            return;
+        }
+        logger.info("GitHub token of the user " + description + " is no longer valid");
+        synchronized (lock) {
+            if (flagged.size() >= MAX_FLAGGED) flagged.pollFirst();
+            flagged.addLast(description);
+        }
+    }
+
+    private boolean isCredentialsConfirmed(@NotNull OAuthConnectionDescriptor connection) {
+        synchronized (lock) {
+            ConnectionStats stats = sweepStats.get(connection.getId());
+            return stats != null && stats.valid > 0;
+        }
+    }
+
+    /**
+     * @return description of the connection with an abnormal share of invalid tokens, which suggests wrong application
+     * credentials or a GitHub malfunction rather than revoked tokens
+     */
+    @Nullable
+    private String findAbnormalConnection() {
+        int minChecks = Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenSweeper.minChecks", 10));
+        int maxInvalidPercent = TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenSweeper.maxInvalidPercent", 50);
+        synchronized (lock) {
+            for (Map.Entry<String, ConnectionStats> entry : sweepStats.entrySet()) {
+                ConnectionStats stats = entry.getValue();
+                long total = stats.valid + stats.invalid;
+                if (total < minChecks) continue;
+                if (stats.valid == 0 || stats.invalid * 100 > total * maxInvalidPercent) {
+                    return stats.invalid + " of " + total + " tokens of the connection " + entry.getKey() + " are reported invalid";
+                }
+            }
+        }
+        return null;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        checkers.shutdownNow();
+    }
+
+    private static int getBatchSize() {
+        return Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenSweeper.batchSize", 20));
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "GitHub token sweeper";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("sweeps", sweeps.get());
+        synchronized (lock) {
+            result.put("scheduled", scheduled);
+            result.put("active", active);
+            result.put("sweepUsers", sweepSize);
+            result.put("sweepUsersLeft", queue.size());
+            result.put("sweepProgressPercent", sweepSize == 0 ? 100 : (sweepSize - queue.size()) * 100 / sweepSize);
+            result.put("sweepTokensPerMinute", tokensPerMinute());
+            result.put("batchDelayMs", batchDelayMs);
+            result.put("flagged", new ArrayList<>(flagged));
+            result.put("lastAbort", lastAbort);
+        }
+        result.put("tokensChecked", tokensChecked.get());
+        result.put("invalid", invalid.get());
+        result.put("evicted", evicted.get());
+        result.put("deferred", deferred.get());
+        result.put("failed", failed.get());
+        result.put("aborted", aborted.get());
+        return result;
+    }
+
+    private enum Result {
+        VALID, INVALID, DEFERRED, FAILED
+    }
+
+    private static final class TokenCheck {
+        @NotNull
+        private final OAuthConnectionDescriptor connection;
+        @NotNull
+        private final SUser user;
+        @NotNull
+        private final OAuthToken token;
+        @NotNull
+        private final Future<Result> result;
+
+        private TokenCheck(@NotNull OAuthConnectionDescriptor connection, @NotNull SUser user, @NotNull OAuthToken token,
+                           @NotNull Future<Result> result) {
+            this.connection = connection;
+            this.user = user;
+            this.token = token;
+            this.result = result;
+        }
+    }
+
+    private static final class ConnectionStats {
+        private long valid;
+        private long invalid;
+
+        private void record(boolean valid) {
+            if (valid) {
+                this.valid++;
+            } else {
+                invalid++;
+            }
+        }
+    }
+
+    @Nullable
+    private Long tokensPerMinute() {
+        if (sweeps.get() == 0) return null;
+        long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sweepStartedAtNanos));
+        return sweepTokensChecked * TimeUnit.MINUTES.toMillis(1) / elapsedMs;
+    }
+}
@@ -0,0 +1,325 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persists GitHub tokens obtained on login via {@link TeamCityCoreFacade#rememberToken}.
+ * <p>
+ * With {@code teamcity.gitHubAuth.tokenWriter.writeBehind} (default) the login only enqueues the token, writes are
+ * flushed in batches by a background thread every {@code teamcity.gitHubAuth.tokenWriter.flushDelayMs} and on shutdown.
+ * The thread is started by the first queued token, so there is none while GitHub login isn't used.
+ * Writes for the same connection, user and GitHub login are coalesced while queued, and a token equal to the one
+ * written recently (within {@code teamcity.gitHubAuth.tokenWriter.unchangedTtlSec}) isn't written again. When the queue
+ * is full ({@code teamcity.gitHubAuth.tokenWriter.queueSize}) or the writer is shut down the token is written on the calling thread.
+ * <p>
+ * Writes for the same key are serialized with striped locks and a write older than the last written one for its key
+ * is dropped, so a token written on the calling thread is never overwritten by an older one being flushed.
+ */
+public class GitHubTokenWriter implements GitHubAuthDiagnostics {
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final TeamCityCoreFacade teamCityCore;
+    @NotNull
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("GitHub token writer"));
+    @NotNull
+    private final Object lock = new Object();
+    @NotNull
+    private final LinkedHashMap<Key, PendingWrite> pending = new LinkedHashMap<>();
+    @NotNull
+    private final Map<Key, Written> written = new LinkedHashMap<Key, Written>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Written> eldest) {
+            return size() > getQueueSize();
+        }
+    };
+    @NotNull
+    private final StripedLocks writeLocks = new StripedLocks(TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenWriter.lockStripes", 64));
+    @NotNull
+    private final AtomicLong sequence = new AtomicLong();
+    @NotNull
+    private final AtomicBoolean flusherStarted = new AtomicBoolean();
+    /**
+     * Guarded by {@link #lock}, tokens aren't queued once it is set.
+     */
+    private boolean shutdown;
+
+    @NotNull
+    private final AtomicLong writes = new AtomicLong();
+    @NotNull
+    private final AtomicLong batches = new AtomicLong();
+    @NotNull
+    private final AtomicLong coalesced = new AtomicLong();
+    @NotNull
+    private final AtomicLong unchanged = new AtomicLong();
+    @NotNull
+    private final AtomicLong overflow = new AtomicLong();
+    @NotNull
+    private final AtomicLong superseded = new AtomicLong();
+    @NotNull
+    private final AtomicLong failed = new AtomicLong();
+
+    public GitHubTokenWriter(@NotNull TeamCityCoreFacade teamCityCore) {
+        this.teamCityCore = teamCityCore;
+    }
+
+    void rememberToken(@NotNull OAuthConnectionDescriptor connection, @NotNull SUser user, @NotNull String gitHubLogin,
+                       @NotNull String token, @Nullable String scope) {
+        Key key = new Key(connection.getId(), user.getId(), gitHubLogin);
+        PendingWrite write = new PendingWrite(key, connection, user, token, scope, sequence.incrementAndGet());
+        boolean writeBehind = isWriteBehind();
+        synchronized (lock) {
+            Written last = written.get(key);
+            if (last != null && write.fingerprint.equals(last.fingerprint) && !last.isExpired() && !pending.containsKey(key)) {
+                unchanged.incrementAndGet();
+                return;
+            }
+            if (writeBehind && !shutdown) {
+                PendingWrite queued = pending.get(key);
+                if (queued != null) {
+                    if (queued.sequence < write.sequence) pending.put(key, write);
+                    coalesced.incrementAndGet();
+                    return;
+                }
+                pending.put(key, write);
+                if (pending.size() <= getQueueSize()) {
+                    startFlusher();
+                    return;
+                }
+                pending.remove(key);
+                overflow.incrementAndGet();
+            }
+        }
+        write(write);
+    }
+
+    /**
+     * Writes all queued tokens in batches of {@code teamcity.gitHubAuth.tokenWriter.batchSize}.
+     */
+    void flush() {
+        int batchSize = Math.max(1, TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenWriter.batchSize", 100));
+        while (true) {
+            List<PendingWrite> batch = new ArrayList<>();
+            synchronized (lock) {
+                for (Iterator<PendingWrite> it = pending.values().iterator(); it.hasNext() && batch.size() < batchSize; ) {
+                    batch.add(it.next());
+                    it.remove();
+                }
+            }
+            if (batch.isEmpty()) return;
+            batches.incrementAndGet();
+            for (PendingWrite write : batch) {
+                write(write);
+            }
+        }
+    }
+
+    private void startFlusher() {
+        if (flusherStarted.get() || !flusherStarted.compareAndSet(false, true)) return;
+        long delayMs = TeamCityProperties.getLong("teamcity.gitHubAuth.tokenWriter.flushDelayMs", 1000);
+        try {
+            flusher.scheduleWithFixedDelay(this::flushSafely, delayMs, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the queued tokens are written by shutdown()
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Throwable e) {
+            logger.warn("Failed to persist GitHub tokens: " + e);
+            logger.debug(e);
+        }
+    }
+
+    private void write(@NotNull PendingWrite write) {
+        ReentrantLock writeLock = writeLocks.get(write.key);
+        writeLock.lock();
+        try {
+            synchronized (lock) {
+                Written last = written.get(write.key);
+                if (last != null && last.sequence > write.sequence) {
+                    superseded.incrementAndGet();
+                    return;
+                }
+            }
+            teamCityCore.rememberToken(write.connection, write.user, write.key.gitHubLogin, write.token, write.scope);
+            writes.incrementAndGet();
+            synchronized (lock) {
+                written.put(write.key, new Written(write.fingerprint, write.sequence));
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            synchronized (lock) {
+                // no fingerprint, so the same token is written again on the next login
+                written.put(write.key, new Written(null, write.sequence));
+            }
+            logger.warn("Failed to persist GitHub token of the user " + write.user.describe(false) + ": " + e);
+            logger.debug(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes the queued tokens.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(TeamCityProperties.getLong("teamcity.gitHubAuth.tokenWriter.shutdownTimeoutMs", 10000), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private static boolean isWriteBehind() {
+        return TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.tokenWriter.writeBehind");
+    }
+
+    private static int getQueueSize() {
+        return TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenWriter.queueSize", 10000);
+    }
+
+    @NotNull
+    private static String fingerprint(@NotNull String token, @Nullable String scope) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(token.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (scope != null) digest.update(scope.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "GitHub token writer";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("writeBehind", isWriteBehind());
+        synchronized (lock) {
+            result.put("queued", pending.size());
+            result.put("remembered", written.size());
+        }
+        result.put("writes", writes.get());
+        result.put("batches", batches.get());
+        result.put("coalesced", coalesced.get());
+        result.put("unchanged", unchanged.get());
+        result.put("overflow", overflow.get());
+        result.put("superseded", superseded.get());
+        result.put("failed", failed.get());
+        return result;
+    }
+
+    private static final class Key {
+        @NotNull
+        private final String connectionId;
+        private final long userId;
+        @NotNull
+        private final String gitHubLogin;
+
+        private Key(@NotNull String connectionId, long userId, @NotNull String gitHubLogin) {
+            this.connectionId = connectionId;
+            this.userId = userId;
+            this.gitHubLogin = gitHubLogin;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return userId == key.userId && Objects.equals(connectionId, key.connectionId) && Objects.equals(gitHubLogin, key.gitHubLogin);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(connectionId, userId, gitHubLogin);
+        }
+    }
+
+    private static final class PendingWrite {
+        @NotNull
+        private final Key key;
+        @NotNull
+        private final OAuthConnectionDescriptor connection;
+        @NotNull
+        private final SUser user;
+        @NotNull
+        private final String token;
+        @Nullable
+        private final String scope;
+        @NotNull
+        private final String fingerprint;
+        private final long sequence;
+
+        private PendingWrite(@NotNull Key key, @NotNull OAuthConnectionDescriptor connection, @NotNull SUser user,
+                             @NotNull String token, @Nullable String scope, long sequence) {
+            this.key = key;
+            this.connection = connection;
+            this.user = user;
+            this.token = token;
+            this.scope = scope;
+            this.fingerprint = fingerprint(token, scope);
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Written {
+        /**
+         * Null if the write failed
+         */
+        @Nullable
+        private final String fingerprint;
+        private final long sequence;
+        private final long writtenAtNanos = System.nanoTime();
+
+        private Written(@Nullable String fingerprint, long sequence) {
+            this.fingerprint = fingerprint;
+            this.sequence = sequence;
+        }
+
+        private boolean isExpired() {
+            long ttl = TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger("teamcity.gitHubAuth.tokenWriter.unchangedTtlSec", 3600));
+            return System.nanoTime() - writtenAtNanos > ttl;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NonNls;
+
+/**
+ * Thrown when GitHub can't be used for a while: the circuit breaker of the endpoint is open or the rate limit is exhausted.
+ */
+public class GitHubUnavailableException extends GitHubLoginException {
+    public GitHubUnavailableException(@NonNls String message) {
+        super(message);
+    }
+
+    public GitHubUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -2,12 +2,18 @@ package org.jetbrains.teamcity.githubauth;
 
 import jetbrains.buildServer.log.Loggable;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.List;
 
 public class GitHubUser implements Loggable {
     private String id;
     private String login;
     private String email;
     private String name;
+    private Boolean emailVerified;
+    private List<String> organizations;
 
     public String getEmail() {
         return email;
@@ -41,9 +47,34 @@ public class GitHubUser implements Loggable {
         this.name = name;
     }
 
+    /**
+     * @return whether the email is known to be verified, null if {@code /user/emails} wasn't fetched
+     */
+    @Nullable
+    public Boolean getEmailVerified() {
+        return emailVerified;
+    }
+
+    public void setEmailVerified(@Nullable Boolean emailVerified) {
+        this.emailVerified = emailVerified;
+    }
+
+    /**
+     * @return logins of the organizations the user is a member of, null if {@code /user/orgs} wasn't fetched
+     */
+    @Nullable
+    public List<String> getOrganizations() {
+        return organizations;
+    }
+
+    public void setOrganizations(@Nullable List<String> organizations) {
+        this.organizations = organizations != null ? Collections.unmodifiableList(organizations) : null;
+    }
+
     @NotNull
     @Override
     public String describe(boolean verbose) {
-        return login + "(id = " + id + ")";
+        return login + "(id = " + id + ")" +
+                (verbose ? " email: " + email + " (verified: " + emailVerified + "), organizations: " + organizations : "");
     }
 }
@@ -0,0 +1,34 @@
+package org.jetbrains.teamcity.githubauth;
+
+/**
+ * Item of the {@code /user/emails} response.
+ */
+public class GitHubUserEmail {
+    private String email;
+    private boolean primary;
+    private boolean verified;
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    public void setPrimary(boolean primary) {
+        this.primary = primary;
+    }
+
+    public boolean isVerified() {
+        return verified;
+    }
+
+    public void setVerified(boolean verified) {
+        this.verified = verified;
+    }
+}
@@ -0,0 +1,197 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.users.UserModel;
+import jetbrains.buildServer.users.UserModelListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.jetbrains.teamcity.githubauth.GitHubOAuth.GITHUB_USER_ID_PROPERTY_KEY;
+import static org.jetbrains.teamcity.githubauth.LongLongHashMap.NO_VALUE;
+
+/**
+ * In-memory index from GitHub user id to TeamCity user id.
+ * <p>
+ * The index is built on the first lookup and is kept up to date with user model events. Found users are always
+ * verified against the user model and misses fall back to the property search, so a stale index never
+ * leads to a wrong user, it only makes the lookup slower.
+ */
+public class GitHubUserIndex implements GitHubAuthDiagnostics {
+    @NotNull
+    private final Logger logger = Logger.getInstance(Loggers.AUTH_CATEGORY + ".gitHubOAuth");
+    @NotNull
+    private final UserModel userModel;
+    @NotNull
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    @NotNull
+    private final LongLongHashMap gitHubToTeamCity = new LongLongHashMap(1024);
+    @NotNull
+    private final LongLongHashMap teamCityToGitHub = new LongLongHashMap(1024);
+    private volatile boolean initialized;
+
+    @NotNull
+    private final AtomicLong hits = new AtomicLong();
+    @NotNull
+    private final AtomicLong misses = new AtomicLong();
+    @NotNull
+    private final AtomicLong staleEntries = new AtomicLong();
+
+    public GitHubUserIndex(@NotNull UserModel userModel) {
+        this.userModel = userModel;
+        userModel.addListener(new IndexUpdater());
+    }
+
+    @Nullable
+    SUser findUser(@NotNull String gitHubUserId) {
+        long gitHubId = parseId(gitHubUserId);
+        if (gitHubId == NO_VALUE) {
+            return searchByProperty(gitHubUserId);
+        }
+        ensureInitialized();
+
+        long teamCityId;
+        lock.readLock().lock();
+        try {
+            teamCityId = gitHubToTeamCity.get(gitHubId);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (teamCityId != NO_VALUE) {
+            SUser user = userModel.findUserById(teamCityId);
+            if (user != null && gitHubUserId.equals(user.getPropertyValue(GITHUB_USER_ID_PROPERTY_KEY))) {
+                hits.incrementAndGet();
+                return user;
+            }
+            staleEntries.incrementAndGet();
+            logger.debug("Stale GitHub user index entry: GitHub user id " + gitHubUserId + " -> TeamCity user id " + teamCityId);
+            if (user != null) update(user); else remove(teamCityId);
+        }
+
+        misses.incrementAndGet();
+        SUser found = searchByProperty(gitHubUserId);
+        if (found != null) update(found);
+        return found;
+    }
+
+    @Nullable
+    private SUser searchByProperty(@NotNull String gitHubUserId) {
+        Iterator<SUser> found = userModel.findUsersByPropertyValue(GITHUB_USER_ID_PROPERTY_KEY, gitHubUserId, true).getUsers().iterator();
+        return found.hasNext() ? found.next() : null;
+    }
+
+    private void ensureInitialized() {
+        if (initialized) return;
+        lock.writeLock().lock();
+        try {
+            if (initialized) return;
+            long start = System.currentTimeMillis();
+            for (SUser user : userModel.getAllUsers().getUsers()) {
+                long gitHubId = parseId(user.getPropertyValue(GITHUB_USER_ID_PROPERTY_KEY));
+                if (gitHubId != NO_VALUE) {
+                    put(gitHubId, user.getId());
+                }
+            }
+            initialized = true;
+            logger.info("GitHub user index built in " + (System.currentTimeMillis() - start) + "ms, " + gitHubToTeamCity.size() + " users indexed");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void update(@NotNull User user) {
+        long gitHubId = parseId(user.getPropertyValue(GITHUB_USER_ID_PROPERTY_KEY));
+        lock.writeLock().lock();
+        try {
+            removeUnderLock(user.getId());
+            if (gitHubId != NO_VALUE) {
+                put(gitHubId, user.getId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(long teamCityId) {
+        lock.writeLock().lock();
+        try {
+            removeUnderLock(teamCityId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void put(long gitHubId, long teamCityId) {
+        long previousTeamCityId = gitHubToTeamCity.put(gitHubId, teamCityId);
+        if (previousTeamCityId != NO_VALUE && previousTeamCityId != teamCityId) {
+            teamCityToGitHub.remove(previousTeamCityId);
+        }
+        teamCityToGitHub.put(teamCityId, gitHubId);
+    }
+
+    private void removeUnderLock(long teamCityId) {
+        long gitHubId = teamCityToGitHub.remove(teamCityId);
+        if (gitHubId != NO_VALUE && gitHubToTeamCity.get(gitHubId) == teamCityId) {
+            gitHubToTeamCity.remove(gitHubId);
+        }
+    }
+
+    private static long parseId(@Nullable String id) {
+        if (id == null || id.isEmpty()) return NO_VALUE;
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return NO_VALUE;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "GitHub user index";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("initialized", initialized);
+        lock.readLock().lock();
+        try {
+            result.put("size", gitHubToTeamCity.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("staleEntries", staleEntries.get());
+        return result;
+    }
+
+    private class IndexUpdater implements UserModelListener {
+        @Override
+        public void userAccountCreated(@NotNull User user) {
+            if (initialized) update(user);
+        }
+
+        @Override
+        public void userAccountChanged(@NotNull User user) {
+            if (initialized) update(user);
+        }
+
+        @Override
+        public void userAccountRemoved(@NotNull User user) {
+            if (initialized) remove(user.getId());
+        }
+    }
+}
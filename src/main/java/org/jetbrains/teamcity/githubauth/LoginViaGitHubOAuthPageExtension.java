@@ -1,6 +1,7 @@
 package org.jetbrains.teamcity.githubauth;
 
 import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
 import jetbrains.buildServer.web.openapi.PagePlaces;
 import jetbrains.buildServer.web.openapi.PlaceId;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
@@ -8,6 +9,9 @@ import jetbrains.buildServer.web.openapi.SimplePageExtension;
 import org.jetbrains.annotations.NotNull;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class LoginViaGitHubOAuthPageExtension extends SimplePageExtension {
     @NotNull
@@ -24,4 +28,41 @@ public class LoginViaGitHubOAuthPageExtension extends SimplePageExtension {
         return gitHubOAuth.isAuthModuleConfigured() && gitHubOAuth.tryFindSuitableConnection() != null
                 && TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.showLinkOnLoginPage");
     }
+
+    @Override
+    public void fillModel(@NotNull Map<String, Object> model, @NotNull HttpServletRequest request) {
+        List<LoginOption> options = new ArrayList<>();
+        for (OAuthConnectionDescriptor connection : gitHubOAuth.getLoginConnections()) {
+            options.add(new LoginOption(connection.getId(), gitHubOAuth.getEndpoint(connection).describe(), gitHubOAuth.isGitHubAvailable(connection)));
+        }
+        model.put("loginOptions", options);
+    }
+
+    public static final class LoginOption {
+        @NotNull
+        private final String connectionId;
+        @NotNull
+        private final String name;
+        private final boolean available;
+
+        private LoginOption(@NotNull String connectionId, @NotNull String name, boolean available) {
+            this.connectionId = connectionId;
+            this.name = name;
+            this.available = available;
+        }
+
+        @NotNull
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+    }
 }
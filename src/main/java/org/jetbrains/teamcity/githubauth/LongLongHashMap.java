@@ -0,0 +1,140 @@
+package org.jetbrains.teamcity.githubauth;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with primitive {@code long} keys and values, avoids boxing and per-entry objects.
+ * <p>
+ * Not thread-safe.
+ */
+final class LongLongHashMap {
+    static final long NO_VALUE = Long.MIN_VALUE;
+
+    private static final long FREE_KEY = 0;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private boolean hasFreeKey;
+    private long freeKeyValue;
+
+    LongLongHashMap() {
+        this(16);
+    }
+
+    LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * @return value associated with the key or {@link #NO_VALUE}
+     */
+    long get(long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyValue : NO_VALUE;
+        }
+        int mask = keys.length - 1;
+        for (int i = index(key, mask); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == FREE_KEY) return NO_VALUE;
+            if (k == key) return values[i];
+        }
+    }
+
+    /**
+     * @return previous value associated with the key or {@link #NO_VALUE}
+     */
+    long put(long key, long value) {
+        if (key == FREE_KEY) {
+            long previous = hasFreeKey ? freeKeyValue : NO_VALUE;
+            if (!hasFreeKey) size++;
+            hasFreeKey = true;
+            freeKeyValue = value;
+            return previous;
+        }
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (keys[i] != FREE_KEY) {
+            if (keys[i] == key) {
+                long previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+            rehash(keys.length << 1);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return removed value or {@link #NO_VALUE}
+     */
+    long remove(long key) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) return NO_VALUE;
+            hasFreeKey = false;
+            size--;
+            return freeKeyValue;
+        }
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (keys[i] != key) {
+            if (keys[i] == FREE_KEY) return NO_VALUE;
+            i = (i + 1) & mask;
+        }
+        long removed = values[i];
+        size--;
+        // backward shift deletion keeps probe sequences intact without tombstones
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != FREE_KEY; j = (j + 1) & mask) {
+            int home = index(keys[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = FREE_KEY;
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        hasFreeKey = false;
+        size = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[newCapacity];
+        values = new long[newCapacity];
+        int mask = newCapacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key == FREE_KEY) continue;
+            int i = index(key, mask);
+            while (keys[i] != FREE_KEY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,31 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks where a key is mapped to one of them by its hash. Operations on the same key are serialized
+ * while operations on different keys mostly proceed in parallel, without keeping a lock per key.
+ */
+class StripedLocks {
+    @NotNull
+    private final ReentrantLock[] locks;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    StripedLocks(int stripes) {
+        locks = new ReentrantLock[stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @NotNull
+    ReentrantLock get(@NotNull Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return locks[hash & (locks.length - 1)];
+    }
+}
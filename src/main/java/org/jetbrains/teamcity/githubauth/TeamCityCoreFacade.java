@@ -1,26 +1,40 @@
 package org.jetbrains.teamcity.githubauth;
 
 import jetbrains.buildServer.controllers.interceptors.auth.HttpAuthenticationScheme;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.ProjectsModelListener;
+import jetbrains.buildServer.serverSide.ProjectsModelListenerAdapter;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.serverSide.ServerSettings;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.AuthModule;
 import jetbrains.buildServer.serverSide.auth.LoginConfiguration;
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager;
+import jetbrains.buildServer.serverSide.oauth.OAuthToken;
 import jetbrains.buildServer.serverSide.oauth.OAuthTokensStorage;
+import jetbrains.buildServer.serverSide.oauth.github.GHEOAuthProvider;
 import jetbrains.buildServer.serverSide.oauth.github.GitHubOAuthProvider;
 import jetbrains.buildServer.users.PropertyKey;
 import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.users.UserModel;
-import jetbrains.buildServer.users.UserSet;
 import jetbrains.buildServer.users.impl.UserEx;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-public class TeamCityCoreFacade {
+public class TeamCityCoreFacade implements GitHubAuthDiagnostics {
 
     @NotNull
     private final UserModel myUserModel;
@@ -34,29 +48,74 @@ public class TeamCityCoreFacade {
     private final OAuthConnectionsManager oAuthConnectionsManager;
     @NotNull
     private final OAuthTokensStorage oAuthTokensStorage;
+    @NotNull
+    private final GitHubUserIndex gitHubUserIndex;
+    @NotNull
+    private final CachedValue<GitHubConnections> rootProjectGitHubConnections = new CachedValue<>(this::findRootProjectGitHubConnections);
+    /**
+     * LoginConfiguration doesn't notify about changes made via the UI and the settings are saved only after
+     * {@link GitHubOAuth#validate} returns, so the flag is bounded by {@code teamcity.gitHubAuth.authModuleCheckTtlMs}
+     * instead of being dropped on edit.
+     */
+    @NotNull
+    private final CachedValue<Boolean> gitHubAuthModuleConfigured = new CachedValue<>(
+            () -> countConfiguredAuthModules(GitHubOAuth.class) == 1,
+            () -> TeamCityProperties.getLong("teamcity.gitHubAuth.authModuleCheckTtlMs", 5000));
+    /**
+     * Whether the auth module allows members of some organizations or teams only, bounded by the same TTL as {@link #gitHubAuthModuleConfigured}.
+     */
+    @NotNull
+    private final CachedValue<Boolean> gitHubAuthRestricted = new CachedValue<>(
+            () -> GitHubAccessRestriction.fromProperties(getAuthModuleProperties(GitHubOAuth.class)).isRestricted(),
+            () -> TeamCityProperties.getLong("teamcity.gitHubAuth.authModuleCheckTtlMs", 5000));
 
     public TeamCityCoreFacade(@NotNull UserModel myUserModel, @NotNull LoginConfiguration loginConfiguration,
                               @NotNull ServerSettings serverSettings, @NotNull ProjectManager projectManager,
                               @NotNull OAuthConnectionsManager oAuthConnectionsManager,
-                              @NotNull OAuthTokensStorage oAuthTokensStorage) {
+                              @NotNull OAuthTokensStorage oAuthTokensStorage,
+                              @NotNull GitHubUserIndex gitHubUserIndex,
+                              @NotNull EventDispatcher<ProjectsModelListener> projectsModelDispatcher,
+                              @NotNull EventDispatcher<BuildServerListener> buildServerDispatcher) {
         this.myUserModel = myUserModel;
         this.loginConfiguration = loginConfiguration;
         this.serverSettings = serverSettings;
         this.projectManager = projectManager;
         this.oAuthConnectionsManager = oAuthConnectionsManager;
         this.oAuthTokensStorage = oAuthTokensStorage;
+        this.gitHubUserIndex = gitHubUserIndex;
+        projectsModelDispatcher.addListener(new RootProjectConnectionInvalidator());
+        buildServerDispatcher.addListener(new BuildServerAdapter() {
+            @Override
+            public void serverConfigurationReloaded() {
+                gitHubAuthModuleConfigured.invalidate();
+                gitHubAuthRestricted.invalidate();
+            }
+        });
     }
 
-    UserSet<SUser> findUserByPropertyValue(PropertyKey propertyKey, String propertyValue) {
-        return myUserModel.findUsersByPropertyValue(propertyKey, propertyValue, true);
+    @Nullable
+    SUser findUserByGitHubId(String gitHubUserId) {
+        return gitHubUserIndex.findUser(gitHubUserId);
+    }
+
+    @Nullable
+    SUser findUserByUsername(@NotNull String username) {
+        return myUserModel.findUserAccount(null, username);
     }
 
-    SUser createUser(String username, @Nullable String email, @Nullable String name, Map<PropertyKey, String> properties) {
+    void linkUser(@NotNull SUser user, @NotNull String gitHubUserId) {
+        user.setUserProperty(GitHubOAuth.GITHUB_USER_ID_PROPERTY_KEY, gitHubUserId);
+    }
+
+    /**
+     * @param emailVerified false if GitHub reported the email as not verified, otherwise GitHub responds with verified emails only
+     */
+    SUser createUser(String username, @Nullable String email, boolean emailVerified, @Nullable String name, Map<PropertyKey, String> properties) {
         SUser created = myUserModel.createUserAccount(null, username);
         properties.forEach(created::setUserProperty);
         created.updateUserAccount(username, name, email);
-        if (email != null && TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.setEmailIsVerified")) {
-            ((UserEx) created).setEmailIsVerified(email); //looks like GitHub responds with verified emails only.
+        if (email != null && emailVerified && TeamCityProperties.getBooleanOrTrue("teamcity.gitHubAuth.setEmailIsVerified")) {
+            ((UserEx) created).setEmailIsVerified(email);
         }
         return created;
     }
@@ -66,20 +125,141 @@ public class TeamCityCoreFacade {
     }
 
     boolean isAuthModuleConfigured(Class<? extends HttpAuthenticationScheme> schemeType) {
-        return loginConfiguration.getConfiguredAuthModules(schemeType).size() == 1;
+        if (schemeType == GitHubOAuth.class) {
+            return gitHubAuthModuleConfigured.get();
+        }
+        return countConfiguredAuthModules(schemeType) == 1;
+    }
+
+    /**
+     * @return properties of the configured auth module of the given type, empty if it isn't configured
+     */
+    @NotNull
+    Map<String, String> getAuthModuleProperties(Class<? extends HttpAuthenticationScheme> schemeType) {
+        for (AuthModule<? extends HttpAuthenticationScheme> module : loginConfiguration.getConfiguredAuthModules(schemeType)) {
+            return module.getProperties();
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @return true if the GitHub auth module allows members of some organizations or teams only
+     */
+    boolean isGitHubAuthRestricted() {
+        return gitHubAuthRestricted.get();
+    }
+
+    private int countConfiguredAuthModules(Class<? extends HttpAuthenticationScheme> schemeType) {
+        return loginConfiguration.getConfiguredAuthModules(schemeType).size();
     }
 
     String getRootUrl() {
         return serverSettings.getRootUrl();
     }
 
+    /**
+     * @return default connection used for login when no connection is chosen explicitly
+     */
     @Nullable
     OAuthConnectionDescriptor getRootProjectGitHubConnection() {
-        List<OAuthConnectionDescriptor> found = oAuthConnectionsManager.getAvailableConnectionsOfType(projectManager.getRootProject(), GitHubOAuthProvider.TYPE);
-        return found.isEmpty() ? null : found.get(0);
+        return getRootProjectGitHubConnections().getDefault();
+    }
+
+    @NotNull
+    GitHubConnections getRootProjectGitHubConnections() {
+        return rootProjectGitHubConnections.get();
+    }
+
+    @NotNull
+    private GitHubConnections findRootProjectGitHubConnections() {
+        SProject rootProject = projectManager.getRootProject();
+        List<OAuthConnectionDescriptor> found = new ArrayList<>(oAuthConnectionsManager.getAvailableConnectionsOfType(rootProject, GitHubOAuthProvider.TYPE));
+        found.addAll(oAuthConnectionsManager.getAvailableConnectionsOfType(rootProject, GHEOAuthProvider.TYPE));
+        return new GitHubConnections(found);
+    }
+
+    /**
+     * Finds a user of a GitHub Enterprise server, they are not indexed by {@link GitHubUserIndex} which is for GitHub.com users only.
+     */
+    @Nullable
+    SUser findEnterpriseUser(@NotNull GitHubEndpoint endpoint, @NotNull String gitHubUserId) {
+        Iterator<SUser> found = myUserModel.findUsersByPropertyValue(endpoint.getUserIdPropertyKey(), gitHubUserId, true).getUsers().iterator();
+        return found.hasNext() ? found.next() : null;
     }
 
     void rememberToken(OAuthConnectionDescriptor connection, SUser user, String githubLogin, String token, String scope) {
         oAuthTokensStorage.rememberPermanentToken(connection.getId(), user, githubLogin, token, scope);
     }
+
+    @NotNull
+    Collection<SUser> getAllUsers() {
+        return myUserModel.getAllUsers().getUsers();
+    }
+
+    @NotNull
+    List<OAuthToken> getTokens(OAuthConnectionDescriptor connection, SUser user) {
+        return oAuthTokensStorage.getUserTokens(connection.getId(), user);
+    }
+
+    void removeToken(OAuthConnectionDescriptor connection, OAuthToken token) {
+        oAuthTokensStorage.removeToken(connection.getId(), token);
+    }
+
+    @NotNull
+    @Override
+    public String getDiagnosticsTitle() {
+        return "TeamCity caches";
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Object> getDiagnostics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rootProjectGitHubConnections", rootProjectGitHubConnections.describe());
+        result.put("gitHubAuthModuleConfigured", gitHubAuthModuleConfigured.describe());
+        result.put("gitHubAuthRestricted", gitHubAuthRestricted.describe());
+        return result;
+    }
+
+    /**
+     * Connections are stored as features of the Root Project, so any change of its features
+     * or reload of its settings from disk may affect the cached connection.
+     */
+    private class RootProjectConnectionInvalidator extends ProjectsModelListenerAdapter {
+        @Override
+        public void projectFeatureAdded(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
+            invalidateIfRoot(project);
+        }
+
+        @Override
+        public void projectFeatureRemoved(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
+            invalidateIfRoot(project);
+        }
+
+        @Override
+        public void projectFeatureChanged(@NotNull SProject project, @NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
+            invalidateIfRoot(project);
+        }
+
+        @Override
+        public void projectRestored(@NotNull String projectId) {
+            rootProjectGitHubConnections.invalidate();
+        }
+
+        @Override
+        public void projectPersisted(@NotNull String projectId) {
+            rootProjectGitHubConnections.invalidate();
+        }
+
+        @Override
+        public void projectsLoaded() {
+            rootProjectGitHubConnections.invalidate();
+        }
+
+        private void invalidateIfRoot(@NotNull SProject project) {
+            if (project.getParentProject() == null) {
+                rootProjectGitHubConnections.invalidate();
+            }
+        }
+    }
 }
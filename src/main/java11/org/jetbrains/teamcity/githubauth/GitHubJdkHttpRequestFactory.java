@@ -0,0 +1,172 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.AbstractClientHttpRequest;
+import org.springframework.http.client.AbstractClientHttpResponse;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Request factory backed by {@link HttpClient} of the JDK, which negotiates HTTP/2 with GitHub and multiplexes
+ * concurrent requests to a host over a single connection instead of holding a pooled connection per request.
+ * <p>
+ * The class is compiled for Java 11 in a separate source set and is created reflectively by {@link GitHubHttpConnectionPool}
+ * only after checking that {@code java.net.http} is available.
+ */
+class GitHubJdkHttpRequestFactory implements ClientHttpRequestFactory {
+    /**
+     * Headers set by {@link HttpClient} itself, it rejects requests which specify them.
+     */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+
+    @NotNull
+    private final HttpClient httpClient;
+    @NotNull
+    private final Duration readTimeout;
+
+    GitHubJdkHttpRequestFactory(long connectTimeoutMs, long readTimeoutMs) {
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        readTimeout = Duration.ofMillis(readTimeoutMs);
+    }
+
+    @NotNull
+    @Override
+    public ClientHttpRequest createRequest(@NotNull URI uri, @NotNull HttpMethod httpMethod) {
+        return new JdkRequest(uri, httpMethod);
+    }
+
+    /**
+     * Copies the response headers skipping the HTTP/2 pseudo-headers like {@code :status}, which {@link HttpClient}
+     * reports along with the regular ones.
+     */
+    @NotNull
+    static HttpHeaders copyHeaders(@NotNull java.net.http.HttpHeaders responseHeaders) {
+        HttpHeaders result = new HttpHeaders();
+        for (Map.Entry<String, List<String>> header : responseHeaders.map().entrySet()) {
+            if (header.getKey().startsWith(":")) continue;
+            result.put(header.getKey(), header.getValue());
+        }
+        return result;
+    }
+
+    private final class JdkRequest extends AbstractClientHttpRequest {
+        @NotNull
+        private final URI uri;
+        @NotNull
+        private final HttpMethod method;
+        @NotNull
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+
+        private JdkRequest(@NotNull URI uri, @NotNull HttpMethod method) {
+            this.uri = uri;
+            this.method = method;
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        protected OutputStream getBodyInternal(HttpHeaders headers) {
+            return body;
+        }
+
+        @Override
+        protected ClientHttpResponse executeInternal(HttpHeaders headers) throws IOException {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                    .timeout(readTimeout)
+                    .method(method.name(), body.size() == 0 ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()));
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (RESTRICTED_HEADERS.contains(header.getKey().toLowerCase(Locale.ENGLISH))) continue;
+                for (String value : header.getValue()) {
+                    request.header(header.getKey(), value);
+                }
+            }
+            try {
+                return new JdkResponse(httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the response of " + uri);
+            }
+        }
+    }
+
+    private static final class JdkResponse extends AbstractClientHttpResponse {
+        @NotNull
+        private final HttpResponse<InputStream> response;
+        private HttpHeaders headers;
+
+        private JdkResponse(@NotNull HttpResponse<InputStream> response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getRawStatusCode() {
+            return response.statusCode();
+        }
+
+        /**
+         * HTTP/2 has no reason phrase, the standard one is returned for the known status codes.
+         */
+        @Override
+        public String getStatusText() {
+            try {
+                return HttpStatus.valueOf(response.statusCode()).getReasonPhrase();
+            } catch (IllegalArgumentException e) {
+                return "";
+            }
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            if (headers == null) {
+                headers = copyHeaders(response.headers());
+            }
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return response.body();
+        }
+
+        @Override
+        public void close() {
+            try {
+                response.body().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
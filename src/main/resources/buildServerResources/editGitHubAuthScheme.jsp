@@ -19,3 +19,21 @@
         </c:otherwise>
     </c:choose>
 </div>
+<div class="grayNote" style="margin-top: 1em">Restrict login to members of the listed GitHub organizations or teams.
+    Leave both fields empty to allow any GitHub user. A restriction makes the login request the <code>read:org</code> scope.</div>
+<table class="runnerFormTable">
+    <tr>
+        <th><label for="allowedOrganizations">Allowed organizations:</label></th>
+        <td>
+            <prop:textProperty name="allowedOrganizations" className="longField"/>
+            <span class="smallNote">Comma-separated organization names</span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="allowedTeams">Allowed teams:</label></th>
+        <td>
+            <prop:textProperty name="allowedTeams" className="longField"/>
+            <span class="smallNote">Comma-separated teams as <code>organization/team-slug</code></span>
+        </td>
+    </tr>
+</table>
@@ -1,5 +1,17 @@
 <%@ page import="org.jetbrains.teamcity.githubauth.GitHubOAuthLoginController" %>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 <%@ include file="/include-internal.jsp" %>
-<c:url var="path" value="<%=GitHubOAuthLoginController.PATH%>"/>
-<div><a href="${path}">Log in using GitHub account</a></div>
+<%--@elvariable id="loginOptions" type="java.util.List<org.jetbrains.teamcity.githubauth.LoginViaGitHubOAuthPageExtension.LoginOption>"--%>
+<c:forEach items="${loginOptions}" var="option">
+    <c:url var="path" value="<%=GitHubOAuthLoginController.PATH%>">
+        <c:param name="<%=GitHubOAuthLoginController.CONNECTION_ID_PARAM%>" value="${option.connectionId}"/>
+    </c:url>
+    <c:choose>
+        <c:when test="${not option.available}">
+            <div>Log in using <c:out value="${option.name}"/> account is temporarily unavailable</div>
+        </c:when>
+        <c:otherwise>
+            <div><a href="${path}">Log in using <c:out value="${option.name}"/> account</a></div>
+        </c:otherwise>
+    </c:choose>
+</c:forEach>
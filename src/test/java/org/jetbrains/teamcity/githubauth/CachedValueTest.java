@@ -0,0 +1,51 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class CachedValueTest {
+
+    @Test
+    public void should_compute_value_once_until_invalidated() {
+        AtomicInteger loads = new AtomicInteger();
+        CachedValue<Integer> value = new CachedValue<>(loads::incrementAndGet);
+
+        then(value.get()).isEqualTo(1);
+        then(value.get()).isEqualTo(1);
+        then(value.isUpToDate()).isTrue();
+
+        value.invalidate();
+        then(value.isUpToDate()).isFalse();
+        then(value.get()).isEqualTo(2);
+        then(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_not_keep_value_computed_before_invalidation() {
+        AtomicInteger loads = new AtomicInteger();
+        CachedValue<Integer>[] holder = new CachedValue[1];
+        holder[0] = new CachedValue<>(() -> {
+            int result = loads.incrementAndGet();
+            if (result == 1) holder[0].invalidate();
+            return result;
+        });
+
+        then(holder[0].get()).isEqualTo(1);
+        then(holder[0].isUpToDate()).isFalse();
+        then(holder[0].get()).isEqualTo(2);
+    }
+
+    @Test
+    public void should_recompute_expired_value() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger();
+        CachedValue<Integer> value = new CachedValue<>(loads::incrementAndGet, () -> 1);
+
+        then(value.get()).isEqualTo(1);
+        Thread.sleep(5);
+        then(value.get()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,78 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class CircuitBreakerTest {
+
+    @Test
+    public void should_open_when_failure_rate_is_reached() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 4, 50, 10000, 100, 60000, 1);
+
+        success(breaker);
+        failure(breaker);
+        success(breaker);
+        then(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        failure(breaker);
+        then(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        then(breaker.tryAcquirePermission()).isFalse();
+        then(breaker.isCallPermitted()).isFalse();
+    }
+
+    @Test
+    public void should_count_slow_calls() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 2, 50, 100, 50, 60000, 1);
+
+        then(breaker.tryAcquirePermission()).isTrue();
+        breaker.onResult(false, TimeUnit.MILLISECONDS.toNanos(10));
+        then(breaker.tryAcquirePermission()).isTrue();
+        breaker.onResult(false, TimeUnit.MILLISECONDS.toNanos(200));
+
+        then(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void should_close_after_successful_probes() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1, 100, 10000, 100, 1, 2);
+        failure(breaker);
+        then(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        Thread.sleep(5);
+        then(breaker.isCallPermitted()).isTrue();
+        then(breaker.tryAcquirePermission()).isTrue();
+        then(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        then(breaker.tryAcquirePermission()).isTrue();
+        then(breaker.tryAcquirePermission()).isFalse();
+
+        breaker.onResult(false, 0);
+        breaker.onResult(false, 0);
+        then(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void should_open_again_after_failed_probe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1, 100, 10000, 100, 1, 2);
+        failure(breaker);
+
+        Thread.sleep(5);
+        then(breaker.tryAcquirePermission()).isTrue();
+        breaker.onResult(true, 0);
+
+        then(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    private static void success(CircuitBreaker breaker) {
+        then(breaker.tryAcquirePermission()).isTrue();
+        breaker.onResult(false, 0);
+    }
+
+    private static void failure(CircuitBreaker breaker) {
+        then(breaker.tryAcquirePermission()).isTrue();
+        breaker.onResult(true, 0);
+    }
+}
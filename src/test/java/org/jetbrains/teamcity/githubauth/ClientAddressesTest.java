@@ -0,0 +1,48 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class ClientAddressesTest {
+
+    @BeforeMethod
+    public void setUp() {
+        TestInternalProperties.init();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.clearProperty(ClientAddresses.TRUSTED_PROXIES_PROPERTY);
+    }
+
+    @Test
+    public void should_ignore_forwarded_header_of_untrusted_peer() {
+        System.setProperty(ClientAddresses.TRUSTED_PROXIES_PROPERTY, "10.0.0.1");
+
+        then(ClientAddresses.get(request("192.0.2.7", "198.51.100.1"))).isEqualTo("192.0.2.7");
+        System.clearProperty(ClientAddresses.TRUSTED_PROXIES_PROPERTY);
+        then(ClientAddresses.get(request("10.0.0.1", "198.51.100.1"))).isEqualTo("10.0.0.1");
+    }
+
+    @Test
+    public void should_take_last_untrusted_hop_behind_trusted_proxies() {
+        System.setProperty(ClientAddresses.TRUSTED_PROXIES_PROPERTY, "10.0.0.1, 10.0.0.2");
+
+        then(ClientAddresses.get(request("10.0.0.1", "198.51.100.1, 192.0.2.7, 10.0.0.2"))).isEqualTo("192.0.2.7");
+        then(ClientAddresses.get(request("10.0.0.1", "10.0.0.2"))).isEqualTo("10.0.0.1");
+        then(ClientAddresses.get(request("10.0.0.1", null))).isEqualTo("10.0.0.1");
+    }
+
+    private static MockHttpServletRequest request(String remoteAddress, String forwardedFor) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", GitHubOAuth.TOKEN_REDIRECT_URL);
+        request.setRemoteAddr(remoteAddress);
+        if (forwardedFor != null) request.addHeader("X-Forwarded-For", forwardedFor);
+        return request;
+    }
+}
@@ -0,0 +1,177 @@
+package org.jetbrains.teamcity.githubauth;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.TestInternalProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * Runs {@link GitHubJdkHttpRequestFactory} against a local HTTP server. The server speaks HTTP/1.1 only, so the HTTP/2
+ * pseudo-headers are checked on {@link GitHubJdkHttpRequestFactory#copyHeaders} directly.
+ */
+@Test
+public class GitHubJdkHttpRequestFactoryTest {
+    private static final String USER_JSON = "{\"login\":\"octocat\",\"id\":1,\"name\":\"monalisa octocat\",\"email\":\"octocat@github.com\"}";
+
+    private HttpServer server;
+    private volatile HttpHandler handler;
+    private volatile Headers receivedHeaders;
+    private volatile String receivedBody;
+    private final AtomicInteger requests = new AtomicInteger();
+    private String url;
+    private GitHubJdkHttpRequestFactory factory;
+    private GitHubOAuthClient client;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        TestInternalProperties.init();
+        requests.set(0);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            receivedHeaders = exchange.getRequestHeaders();
+            receivedBody = StreamUtils.copyToString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            handler.handle(exchange);
+        });
+        server.start();
+        url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        System.setProperty(GitHubOAuthClient.GITHUB_URL_PROPERTY, url);
+        System.setProperty(GitHubOAuthClient.GITHUB_API_URL_PROPERTY, url);
+
+        factory = new GitHubJdkHttpRequestFactory(5000, 5000);
+        client = new GitHubOAuthClient(new RestTemplate(factory), new GitHubCircuitBreakers(), new GitHubRateLimits());
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop(0);
+        System.clearProperty(GitHubOAuthClient.GITHUB_URL_PROPERTY);
+        System.clearProperty(GitHubOAuthClient.GITHUB_API_URL_PROPERTY);
+    }
+
+    @Test
+    public void should_copy_request_and_response_headers() {
+        handler = exchange -> {
+            exchange.getResponseHeaders().add("X-RateLimit-Limit", "5000");
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", "4999");
+            respond(exchange, 200, USER_JSON);
+        };
+
+        GitHubUser user = client.getUser("token1");
+
+        then(user.getLogin()).isEqualTo("octocat");
+        then(receivedHeaders.getFirst("Authorization")).isEqualTo("token token1");
+        then(receivedHeaders.getFirst("Accept")).contains("application/json");
+    }
+
+    @Test
+    public void should_skip_headers_set_by_http_client() throws IOException {
+        handler = exchange -> {
+            exchange.getResponseHeaders().add("X-Custom", "response");
+            respond(exchange, 200, "ok");
+        };
+        ClientHttpRequest request = factory.createRequest(URI.create(url + "/echo"), HttpMethod.POST);
+        request.getHeaders().set("Connection", "close");
+        request.getHeaders().set("Host", "example.com");
+        request.getHeaders().set("Upgrade", "h2c");
+        request.getHeaders().set("X-Custom", "request");
+        request.getBody().write("body".getBytes(StandardCharsets.UTF_8));
+
+        try (ClientHttpResponse response = request.execute()) {
+            then(response.getRawStatusCode()).isEqualTo(200);
+            then(response.getStatusText()).isEqualTo("OK");
+            then(response.getHeaders().getFirst("X-Custom")).isEqualTo("response");
+            then(StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8)).isEqualTo("ok");
+        }
+        then(receivedHeaders.getFirst("Host")).isNotEqualTo("example.com");
+        then(receivedHeaders.getFirst("X-Custom")).isEqualTo("request");
+        then(receivedBody).isEqualTo("body");
+    }
+
+    @Test
+    public void should_skip_http2_pseudo_headers() {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put(":status", singletonList("200"));
+        headers.put("content-type", singletonList("application/json"));
+        headers.put("x-ratelimit-remaining", singletonList("4999"));
+
+        HttpHeaders result = GitHubJdkHttpRequestFactory.copyHeaders(java.net.http.HttpHeaders.of(headers, (name, value) -> true));
+
+        then(result.keySet()).containsOnly("content-type", "x-ratelimit-remaining");
+        then(result.getFirst("Content-Type")).isEqualTo("application/json");
+    }
+
+    @Test
+    public void should_report_status_text_and_error_body() {
+        handler = exchange -> respond(exchange, 404, "{\"message\":\"Not Found\"}");
+
+        Throwable failure = catchFailure(() -> client.getUserEmails("token1"));
+
+        then(failure).isInstanceOf(GitHubLoginException.class).hasCauseInstanceOf(HttpClientErrorException.class);
+        HttpClientErrorException cause = (HttpClientErrorException) failure.getCause();
+        then(cause.getRawStatusCode()).isEqualTo(404);
+        then(cause.getStatusText()).isEqualTo("Not Found");
+        then(cause.getResponseBodyAsString()).isEqualTo("{\"message\":\"Not Found\"}");
+    }
+
+    @Test
+    public void should_fail_fast_after_rate_limit_response() {
+        long resetSec = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 60;
+        handler = exchange -> {
+            exchange.getResponseHeaders().add("X-RateLimit-Limit", "5000");
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", "0");
+            exchange.getResponseHeaders().add("X-RateLimit-Reset", String.valueOf(resetSec));
+            respond(exchange, 403, "{\"message\":\"API rate limit exceeded\"}");
+        };
+
+        then(catchFailure(() -> client.checkToken("clientId", "clientSecret", "token1")))
+                .isInstanceOf(GitHubRateLimitException.class).hasMessageContaining("resets in");
+        then(catchFailure(() -> client.checkToken("clientId", "clientSecret", "token1")))
+                .isInstanceOf(GitHubRateLimitException.class);
+        then(requests.get()).isEqualTo(1);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().put("Content-Type", singletonList("application/json"));
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Throwable catchFailure(Runnable call) {
+        try {
+            call.run();
+            return null;
+        } catch (Throwable e) {
+            return e;
+        }
+    }
+}
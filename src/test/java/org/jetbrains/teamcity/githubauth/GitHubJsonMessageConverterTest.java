@@ -0,0 +1,64 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class GitHubJsonMessageConverterTest {
+    private final GitHubJsonMessageConverter converter = new GitHubJsonMessageConverter();
+
+    @Test
+    public void should_read_user_skipping_unknown_fields() throws IOException {
+        GitHubUser user = (GitHubUser) converter.read(GitHubUser.class, response("{\"login\":\"octocat\",\"id\":1," +
+                "\"plan\":{\"name\":\"pro\",\"space\":976562499,\"collaborators\":[1,2,{\"x\":null}]},\"site_admin\":false," +
+                "\"name\":null,\"email\":\"octocat@github.com\"}"));
+
+        then(user.getId()).isEqualTo("1");
+        then(user.getLogin()).isEqualTo("octocat");
+        then(user.getName()).isNull();
+        then(user.getEmail()).isEqualTo("octocat@github.com");
+    }
+
+    @Test
+    public void should_read_token_response() throws IOException {
+        GitHubTokenResponse token = (GitHubTokenResponse) converter.read(GitHubTokenResponse.class,
+                response("{\"access_token\":\"token1\",\"scope\":\"user,repo\",\"token_type\":\"bearer\"}"));
+
+        then(token.access_token).isEqualTo("token1");
+        then(token.scope).isEqualTo("user,repo");
+        then(token.error).isNull();
+    }
+
+    @Test
+    public void should_read_emails() throws IOException {
+        GitHubUserEmail[] emails = (GitHubUserEmail[]) converter.read(GitHubUserEmail[].class,
+                response("[{\"email\":\"a@github.com\",\"primary\":true,\"verified\":true,\"visibility\":\"public\"}," +
+                        "{\"email\":\"b@github.com\",\"primary\":false,\"verified\":null}]"));
+
+        then(emails).hasSize(2);
+        then(emails[0].getEmail()).isEqualTo("a@github.com");
+        then(emails[0].isPrimary()).isTrue();
+        then(emails[0].isVerified()).isTrue();
+        then(emails[1].isVerified()).isFalse();
+    }
+
+    @Test
+    public void should_support_only_github_types() {
+        then(converter.canRead(GitHubUser.class, MediaType.APPLICATION_JSON)).isTrue();
+        then(converter.canRead(String.class, MediaType.APPLICATION_JSON)).isFalse();
+        then(converter.canWrite(GitHubUser.class, MediaType.APPLICATION_JSON)).isFalse();
+    }
+
+    private static MockClientHttpResponse response(String json) {
+        MockClientHttpResponse response = new MockClientHttpResponse(json.getBytes(StandardCharsets.UTF_8), HttpStatus.OK);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        return response;
+    }
+}
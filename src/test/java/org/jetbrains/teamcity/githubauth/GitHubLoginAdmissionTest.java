@@ -0,0 +1,124 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.jetbrains.teamcity.githubauth.GitHubLoginAdmission.EntryPoint.CALLBACK;
+import static org.jetbrains.teamcity.githubauth.GitHubLoginAdmission.EntryPoint.LOGIN;
+
+@Test
+public class GitHubLoginAdmissionTest {
+    private GitHubLoginAdmission admission;
+
+    @BeforeMethod
+    public void setUp() {
+        TestInternalProperties.init();
+        System.setProperty("teamcity.gitHubAuth.admission.login.perIp.rate", "1");
+        System.setProperty("teamcity.gitHubAuth.admission.login.perIp.burst", "3");
+        admission = new GitHubLoginAdmission();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.clearProperty("teamcity.gitHubAuth.admission.login.perIp.rate");
+        System.clearProperty("teamcity.gitHubAuth.admission.login.perIp.burst");
+        System.clearProperty("teamcity.gitHubAuth.admission.login.global.rate");
+        System.clearProperty("teamcity.gitHubAuth.admission.login.global.burst");
+        System.clearProperty("teamcity.gitHubAuth.admission.globalStripes");
+        System.clearProperty(ClientAddresses.TRUSTED_PROXIES_PROPERTY);
+    }
+
+    @Test
+    public void should_reject_client_exceeding_burst_with_429() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            then(admission.admit(LOGIN, request("10.0.0.1"), new MockHttpServletResponse())).isTrue();
+        }
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+
+        then(admission.admit(LOGIN, request("10.0.0.1"), rejected)).isFalse();
+        then(rejected.getStatus()).isEqualTo(GitHubLoginAdmission.SC_TOO_MANY_REQUESTS);
+        then(rejected.getHeader("Retry-After")).isEqualTo("1");
+        then(admission.admit(LOGIN, request("10.0.0.2"), new MockHttpServletResponse())).isTrue();
+        then(admission.admit(CALLBACK, request("10.0.0.1"), new MockHttpServletResponse())).isTrue();
+        then(admission.getDiagnostics()).containsEntry("login.admitted", 4L).containsEntry("login.rejectedPerIp", 1L);
+    }
+
+    @Test
+    public void should_limit_clients_behind_trusted_proxy_separately() throws Exception {
+        System.setProperty(ClientAddresses.TRUSTED_PROXIES_PROPERTY, "10.0.0.100");
+        for (int i = 0; i < 3; i++) {
+            then(admission.admit(LOGIN, request("10.0.0.100", "192.0.2.1"), new MockHttpServletResponse())).isTrue();
+        }
+
+        then(admission.admit(LOGIN, request("10.0.0.100", "192.0.2.1"), new MockHttpServletResponse())).isFalse();
+        then(admission.admit(LOGIN, request("10.0.0.100", "192.0.2.2"), new MockHttpServletResponse())).isTrue();
+    }
+
+    @Test
+    public void should_not_take_client_token_when_global_limit_rejects() throws Exception {
+        System.setProperty("teamcity.gitHubAuth.admission.login.global.rate", "1");
+        System.setProperty("teamcity.gitHubAuth.admission.login.global.burst", "1");
+        System.setProperty("teamcity.gitHubAuth.admission.globalStripes", "8");
+        admission = new GitHubLoginAdmission();
+
+        then(admission.admit(LOGIN, request("10.0.0.1"), new MockHttpServletResponse())).isTrue();
+        for (int i = 0; i < 5; i++) {
+            then(admission.admit(LOGIN, request("10.0.0.1"), new MockHttpServletResponse())).isFalse();
+        }
+
+        then(admission.getDiagnostics())
+                .containsEntry("login.admitted", 1L)
+                .containsEntry("login.rejectedGlobal", 5L)
+                .containsEntry("login.rejectedPerIp", 0L);
+    }
+
+    @Test
+    public void should_not_split_small_rate_between_more_stripes() {
+        GitHubLoginAdmission.TokenBuckets buckets = new GitHubLoginAdmission.TokenBuckets(8);
+
+        then(buckets.stripesFor(1)).isEqualTo(1);
+        then(buckets.stripesFor(3)).isEqualTo(2);
+        then(buckets.stripesFor(8)).isEqualTo(8);
+        then(buckets.stripesFor(200)).isEqualTo(8);
+    }
+
+    @Test
+    public void should_check_bucket_without_taking_token() {
+        GitHubLoginAdmission.TokenBuckets buckets = new GitHubLoginAdmission.TokenBuckets(1);
+        long now = System.nanoTime();
+
+        then(buckets.check(0, now, 10, 1)).isZero();
+        then(buckets.check(0, now, 10, 1)).isZero();
+        then(buckets.tryAcquire(0, now, 10, 1)).isZero();
+        then(buckets.check(0, now, 10, 1)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void should_refill_bucket_at_rate() {
+        GitHubLoginAdmission.TokenBuckets buckets = new GitHubLoginAdmission.TokenBuckets(1);
+        long now = System.nanoTime();
+
+        then(buckets.tryAcquire(0, now, 10, 2)).isZero();
+        then(buckets.tryAcquire(0, now, 10, 2)).isZero();
+        then(buckets.tryAcquire(0, now, 10, 2)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+        then(buckets.tryAcquire(0, now + TimeUnit.MILLISECONDS.toNanos(100), 10, 2)).isZero();
+    }
+
+    private static MockHttpServletRequest request(String remoteAddress) {
+        return request(remoteAddress, null);
+    }
+
+    private static MockHttpServletRequest request(String remoteAddress, String forwardedFor) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", GitHubOAuthLoginController.PATH);
+        request.setRemoteAddr(remoteAddress);
+        if (forwardedFor != null) request.addHeader("X-Forwarded-For", forwardedFor);
+        return request;
+    }
+}
@@ -0,0 +1,100 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import jetbrains.buildServer.util.FileUtil;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class GitHubLoginAuditJournalTest {
+    private File dir;
+    private GitHubLoginAuditJournal journal;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        TestInternalProperties.init();
+        System.setProperty("teamcity.gitHubAuth.audit.maxRecordsPerSourcePerMinute", "2");
+        System.setProperty("teamcity.gitHubAuth.audit.dumpSamplePercent", "0");
+        dir = Files.createTempDirectory("gitHubAuthAudit").toFile();
+        journal = new GitHubLoginAuditJournal(new File(dir, GitHubLoginAuditJournal.FILE_NAME));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        journal.shutdown();
+        System.clearProperty("teamcity.gitHubAuth.audit.maxRecordsPerSourcePerMinute");
+        System.clearProperty("teamcity.gitHubAuth.audit.dumpSamplePercent");
+        System.clearProperty("teamcity.gitHubAuth.audit.maxSources");
+        FileUtil.delete(dir);
+    }
+
+    @Test
+    public void should_limit_records_per_source() throws Exception {
+        MockHttpServletRequest scanner = request("10.0.0.1");
+        for (int i = 0; i < 5; i++) {
+            journal.recordRejected("invalid_state", scanner, "invalid state " + i);
+        }
+        journal.record("login", request("10.0.0.2"), null, "octocat");
+        journal.flush();
+
+        then(journal.read(null, "10.0.0.1", 10)).hasSize(2);
+        List<String> logins = journal.read("login", null, 10);
+        then(logins).hasSize(1);
+        then(logins.get(0)).contains("\"source\":\"10.0.0.2\"").contains("\"user\":\"octocat\"").doesNotContain("\"request\"");
+        then(journal.getDiagnostics()).containsEntry("written", 3L).containsEntry("suppressed", 3L);
+    }
+
+    @Test
+    public void should_always_record_authentication_outcomes() throws Exception {
+        MockHttpServletRequest client = request("10.0.0.1");
+        for (int i = 0; i < 5; i++) {
+            journal.record("login", client, null, "octocat");
+        }
+        journal.record("access_denied", client, null, "hubot");
+        journal.flush();
+
+        then(journal.read(null, "10.0.0.1", 10)).hasSize(6);
+        then(journal.getDiagnostics()).containsEntry("suppressed", 0L);
+    }
+
+    @Test
+    public void should_keep_current_source_windows_when_sources_are_full() throws Exception {
+        System.setProperty("teamcity.gitHubAuth.audit.maxSources", "2");
+        MockHttpServletRequest scanner = request("10.0.0.1");
+        journal.recordRejected("invalid_state", scanner, null);
+        journal.recordRejected("invalid_state", scanner, null);
+        journal.recordRejected("invalid_state", request("10.0.0.2"), null);
+        journal.recordRejected("invalid_state", request("10.0.0.3"), null);
+        journal.recordRejected("invalid_state", scanner, null);
+        journal.flush();
+
+        then(journal.read(null, "10.0.0.1", 10)).hasSize(2);
+        then(journal.read(null, "10.0.0.3", 10)).isEmpty();
+        then(journal.getDiagnostics()).containsEntry("sources", 2).containsEntry("suppressed", 2L);
+    }
+
+    @Test
+    public void should_sample_request_dumps() throws Exception {
+        System.setProperty("teamcity.gitHubAuth.audit.dumpSamplePercent", "100");
+        journal.recordRejected("empty_state", request("10.0.0.1"), null);
+        journal.flush();
+
+        List<String> records = journal.read("empty_state", null, 10);
+        then(records).hasSize(1);
+        then(records.get(0)).contains("\"request\"");
+    }
+
+    private static MockHttpServletRequest request(String remoteAddress) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", GitHubOAuth.TOKEN_REDIRECT_URL);
+        request.setRemoteAddr(remoteAddress);
+        return request;
+    }
+}
@@ -0,0 +1,122 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.emptySet;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.springframework.http.HttpMethod.GET;
+import static org.springframework.http.HttpMethod.HEAD;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+@Test
+public class GitHubOAuthClientTest {
+    private static final String USER_JSON = "{\"login\":\"octocat\",\"id\":1,\"name\":\"monalisa octocat\",\"email\":\"octocat@github.com\"}";
+
+    private MockRestServiceServer server;
+    private GitHubRateLimits rateLimits;
+    private GitHubOAuthClient client;
+
+    @BeforeMethod
+    public void setUp() {
+        TestInternalProperties.init();
+        RestTemplate restTemplate = new RestTemplate();
+        server = MockRestServiceServer.bindTo(restTemplate).build();
+        rateLimits = new GitHubRateLimits();
+        client = new GitHubOAuthClient(restTemplate, new GitHubCircuitBreakers(), rateLimits);
+    }
+
+    @Test
+    public void should_fail_fast_when_rate_limit_is_exhausted() {
+        server.expect(requestTo("https://api.github.com/users/octocat"))
+                .andRespond(withStatus(HttpStatus.FORBIDDEN).headers(rateLimitHeaders(5000, 0)));
+
+        then(catchFailure(() -> client.getUserProfile("token1", "octocat"))).isInstanceOf(GitHubRateLimitException.class).hasMessageContaining("resets in");
+        then(catchFailure(() -> client.getUserProfile("token1", "octocat"))).isInstanceOf(GitHubRateLimitException.class);
+
+        server.verify();
+    }
+
+    @Test
+    public void should_keep_rate_limit_per_user() {
+        server.expect(requestTo("https://api.github.com/user")).andExpect(header("Authorization", "token token1"))
+                .andRespond(withSuccess(USER_JSON, APPLICATION_JSON).headers(rateLimitHeaders(5000, 0)));
+        server.expect(requestTo("https://api.github.com/user")).andExpect(header("Authorization", "token token2"))
+                .andRespond(withSuccess(USER_JSON.replace("\"id\":1", "\"id\":2"), APPLICATION_JSON).headers(rateLimitHeaders(5000, 4999)));
+
+        client.getUser("token1");
+        client.getUser("token2");
+
+        then(catchFailure(() -> rateLimits.checkBudget("api.github.com", GitHubRateLimits.user("1"), GitHubRateLimits.CORE, true)))
+                .isInstanceOf(GitHubRateLimitException.class);
+        then(catchFailure(() -> rateLimits.checkBudget("api.github.com", GitHubRateLimits.user("2"), GitHubRateLimits.CORE, true))).isNull();
+        server.verify();
+    }
+
+    @Test
+    public void should_keep_graphql_rate_limit_separately() {
+        server.expect(requestTo("https://api.github.com/user"))
+                .andRespond(withSuccess(USER_JSON, APPLICATION_JSON).headers(rateLimitHeaders(5000, 0)));
+        HttpHeaders graphQlRateLimit = rateLimitHeaders(5000, 4999);
+        graphQlRateLimit.set("X-RateLimit-Resource", "graphql");
+        server.expect(requestTo("https://api.github.com/graphql"))
+                .andRespond(withSuccess("{\"data\":{\"viewer\":{\"organizations\":{\"nodes\":[]}}}}", APPLICATION_JSON).headers(graphQlRateLimit));
+
+        client.getUser("token1");
+        client.getMembership("token1", "1", "octocat", emptySet());
+
+        then(catchFailure(() -> rateLimits.checkBudget("api.github.com", GitHubRateLimits.user("1"), GitHubRateLimits.CORE, true)))
+                .isInstanceOf(GitHubRateLimitException.class);
+        server.verify();
+    }
+
+    @Test
+    public void should_skip_non_critical_calls_when_rate_limit_is_low() {
+        server.expect(requestTo("https://api.github.com/orgs/acme/members?per_page=100"))
+                .andRespond(withSuccess("[]", APPLICATION_JSON).headers(rateLimitHeaders(5000, 10)));
+
+        client.getOrganizationMembers("token1", "acme", null);
+        then(catchFailure(() -> client.getUserProfile("token1", "octocat"))).isInstanceOf(GitHubRateLimitException.class).hasMessageContaining("nearly exhausted");
+
+        server.verify();
+    }
+
+    @Test
+    public void should_open_connection_regardless_of_response_status() {
+        server.expect(requestTo("https://github.com")).andExpect(method(HEAD)).andRespond(withSuccess());
+        server.expect(requestTo("https://api.github.com")).andExpect(method(HEAD)).andRespond(withStatus(HttpStatus.UNAUTHORIZED));
+
+        client.openConnection("https://github.com");
+        client.openConnection("https://api.github.com");
+
+        server.verify();
+        then(client.isGitHubAvailable()).isTrue();
+    }
+
+    private static Throwable catchFailure(Runnable call) {
+        try {
+            call.run();
+            return null;
+        } catch (Throwable e) {
+            return e;
+        }
+    }
+
+    private static HttpHeaders rateLimitHeaders(int limit, int remaining) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-RateLimit-Limit", String.valueOf(limit));
+        headers.set("X-RateLimit-Remaining", String.valueOf(remaining));
+        headers.set("X-RateLimit-Reset", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 600));
+        return headers;
+    }
+}
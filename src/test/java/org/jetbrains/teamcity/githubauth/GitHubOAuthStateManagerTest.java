@@ -0,0 +1,76 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.TestInternalProperties;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Test
+public class GitHubOAuthStateManagerTest {
+    private GitHubOAuthStateManager stateManager;
+    private OAuthConnectionDescriptor connection;
+
+    @BeforeMethod
+    public void setUp() {
+        TestInternalProperties.init();
+        System.setProperty(GitHubOAuthStateManager.MODE_PROPERTY, GitHubOAuthStateManager.SIGNED_MODE);
+        stateManager = new GitHubOAuthStateManager();
+        connection = new OAuthConnectionDescriptor(mock(SProject.class), mock(SProjectFeatureDescriptor.class), mock(ExtensionHolder.class));
+        Map<String, String> connectionParams = new HashMap<>();
+        connectionParams.put(GitHubConstants.CLIENT_SECRET_PARAM, "123");
+        when(connection.getId()).thenReturn("PROJECT_EXT_1");
+        when(connection.getParameters()).thenReturn(connectionParams);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.clearProperty(GitHubOAuthStateManager.MODE_PROPERTY);
+        System.clearProperty("teamcity.gitHubAuth.state.replayFilterSize");
+    }
+
+    @Test
+    public void should_accept_states_of_logins_started_in_several_tabs() {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        String first = stateManager.issueState(new MockHttpServletRequest(), response, connection);
+        String second = stateManager.issueState(new MockHttpServletRequest(), response, connection);
+
+        then(stateManager.verifyState(callback(response), first, connection)).isNull();
+        then(stateManager.verifyState(callback(response), second, connection)).isNull();
+        then(stateManager.verifyState(callback(response), first, connection)).isEqualTo("already used");
+    }
+
+    @Test
+    public void should_reject_states_when_replay_filter_is_full() {
+        System.setProperty("teamcity.gitHubAuth.state.replayFilterSize", "2");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        String[] states = new String[3];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = stateManager.issueState(new MockHttpServletRequest(), response, connection);
+        }
+
+        then(stateManager.verifyState(callback(response), states[0], connection)).isNull();
+        then(stateManager.verifyState(callback(response), states[1], connection)).isNull();
+        then(stateManager.verifyState(callback(response), states[2], connection)).isEqualTo("not accepted, too many recent logins");
+        then(stateManager.getDiagnostics()).containsEntry("replayFilterSize", 2);
+    }
+
+    private static MockHttpServletRequest callback(MockHttpServletResponse response) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(response.getCookies());
+        return request;
+    }
+}
@@ -11,7 +11,7 @@ import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
 import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants;
 import jetbrains.buildServer.users.DuplicateUserAccountException;
 import jetbrains.buildServer.users.SUser;
-import jetbrains.buildServer.users.UserSet;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
@@ -21,19 +21,34 @@ import org.jetbrains.annotations.NotNull;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockHttpSession;
+import org.springframework.test.web.client.ExpectedCount;
 import org.springframework.test.web.client.MockRestServiceServer;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.*;
 import static java.util.stream.Collectors.toMap;
 import static org.assertj.core.api.BDDAssertions.then;
@@ -44,6 +59,7 @@ import static org.springframework.http.HttpMethod.GET;
 import static org.springframework.http.HttpMethod.POST;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
 @Test
@@ -61,20 +77,37 @@ public class GitHubOAuthTest {
     private MockHttpServletRequest request;
     private MockHttpServletResponse response;
     private MockRestServiceServer server;
+    private GitHubOAuthClient gitHubClient;
+    private GitHubHttpConnectionPool connectionPool;
+    private GitHubLoginExecutor loginExecutor;
+    private GitHubLoginMetrics metrics;
+    private GitHubTokenWriter tokenWriter;
+    private GitHubMembershipCache membershipCache;
+    private GitHubOAuthStateManager stateManager;
+    private GitHubCallbackSingleFlight singleFlight;
+    private File auditDir;
+    private GitHubLoginAuditJournal auditJournal;
 
     @BeforeMethod
     public void setUp() throws Exception {
         TestInternalProperties.init();
+        System.setProperty("teamcity.gitHubAuth.tokenWriter.writeBehind", "false");
         RestTemplate restTemplate = new RestTemplate();
-        server = MockRestServiceServer.bindTo(restTemplate).build();
-        GitHubOAuthClient gitHubClient = new GitHubOAuthClient(restTemplate);
+        server = MockRestServiceServer.bindTo(restTemplate).ignoreExpectOrder(true).build();
+        gitHubClient = new GitHubOAuthClient(restTemplate, new GitHubCircuitBreakers(), new GitHubRateLimits());
+        loginExecutor = new GitHubLoginExecutor();
+        metrics = new GitHubLoginMetrics();
 
         teamCityCoreMock = mock(TeamCityCoreFacade.class);
-        gitHubOAuth = new GitHubOAuth(gitHubClient, teamCityCoreMock);
-        Logger logger = Logger.getLogger("oauth");
-        logger.setLevel(Level.DEBUG);
-        logger.addAppender(new ConsoleAppender(new SimpleLayout()));
-        gitHubOAuth.setLogger(new Log4jLogger(logger));
+        tokenWriter = new GitHubTokenWriter(teamCityCoreMock);
+        membershipCache = new GitHubMembershipCache(gitHubClient);
+        stateManager = new GitHubOAuthStateManager();
+        singleFlight = new GitHubCallbackSingleFlight();
+        auditDir = Files.createTempDirectory("gitHubAuthAudit").toFile();
+        auditJournal = new GitHubLoginAuditJournal(new File(auditDir, GitHubLoginAuditJournal.FILE_NAME));
+        connectionPool = mock(GitHubHttpConnectionPool.class);
+        when(connectionPool.createRequestFactory(anyString())).thenReturn(restTemplate.getRequestFactory());
+        gitHubOAuth = createGitHubOAuth(new GitHubProfileFetcher(gitHubClient));
 
         tcUser = mock(SUser.class);
         when(tcUser.describe(anyBoolean())).thenReturn("TeamCity User");
@@ -83,8 +116,10 @@ public class GitHubOAuthTest {
         Map<String, String> connectionParams = new HashMap<>();
         connectionParams.put(GitHubConstants.CLIENT_ID_PARAM, CLIENT_ID);
         connectionParams.put(GitHubConstants.CLIENT_SECRET_PARAM, CLIENT_SECRET);
+        when(rootProjectConnection.getId()).thenReturn("PROJECT_EXT_1");
         when(rootProjectConnection.getParameters()).thenReturn(connectionParams);
         when(teamCityCoreMock.getRootProjectGitHubConnection()).thenReturn(rootProjectConnection);
+        when(teamCityCoreMock.getRootProjectGitHubConnections()).thenReturn(new GitHubConnections(singletonList(rootProjectConnection)));
         when(teamCityCoreMock.getRootUrl()).thenReturn(TC_URL);
         when(teamCityCoreMock.isAuthModuleConfigured(GitHubOAuth.class)).thenReturn(true);
 
@@ -92,17 +127,51 @@ public class GitHubOAuthTest {
         newRequest();
     }
 
+    @AfterMethod
+    public void tearDown() {
+        System.clearProperty(GitHubOAuthStateManager.MODE_PROPERTY);
+        System.clearProperty(GitHubLoginExecutor.ASYNC_MODE_PROPERTY);
+        System.clearProperty("teamcity.gitHubAuth.async.pollWaitMs");
+        System.clearProperty("teamcity.gitHubAuth.tokenWriter.writeBehind");
+        loginExecutor.shutdown();
+        tokenWriter.shutdown();
+        membershipCache.shutdown();
+        auditJournal.shutdown();
+        FileUtil.delete(auditDir);
+    }
+
+    @NotNull
+    private GitHubOAuth createGitHubOAuth(GitHubProfileFetcher profileFetcher) {
+        GitHubOAuth result = new GitHubOAuth(new GitHubClients(gitHubClient, connectionPool), teamCityCoreMock, stateManager, loginExecutor, profileFetcher, metrics, tokenWriter, singleFlight, membershipCache, auditJournal, new GitHubLoginAdmission());
+        Logger logger = Logger.getLogger("oauth");
+        logger.setLevel(Level.DEBUG);
+        logger.addAppender(new ConsoleAppender(new SimpleLayout()));
+        result.setLogger(new Log4jLogger(logger));
+        return result;
+    }
+
     private void setupGitHubApiAnswers(String code, String token, String tokenScope, String userJson) {
+        setupGitHubApiAnswers(code, token, tokenScope, userJson, "[]");
+    }
+
+    private void setupGitHubApiAnswers(String code, String token, String tokenScope, String userJson, String emailsJson) {
+        setupGitHubApiAnswers("https://github.com", "https://api.github.com", code, token, tokenScope, userJson, emailsJson);
+    }
+
+    private void setupGitHubApiAnswers(String gitHubUrl, String apiUrl, String code, String token, String tokenScope, String userJson, String emailsJson) {
         server.reset();
 
         MultiValueMap<String, String> expectedTokenBody = createTokenRequestBody(CLIENT_ID, CLIENT_SECRET, code);
 
-        server.expect(requestTo("https://github.com/login/oauth/access_token")).andExpect(method(POST))
+        server.expect(requestTo(gitHubUrl + "/login/oauth/access_token")).andExpect(method(POST))
                 .andExpect(content().formData(expectedTokenBody))
                 .andRespond(withSuccess(createTokenJson(token, tokenScope), APPLICATION_JSON));
 
-        server.expect(requestTo("https://api.github.com/user")).andExpect(method(GET))
+        server.expect(requestTo(apiUrl + "/user")).andExpect(method(GET))
                 .andRespond(withSuccess(userJson, APPLICATION_JSON));
+
+        server.expect(requestTo(apiUrl + "/user/emails")).andExpect(method(GET))
+                .andRespond(emailsJson != null ? withSuccess(emailsJson, APPLICATION_JSON) : withServerError());
     }
 
     private void setupGitHubApiErrorTokenAnswers(String code, String clientId, String clientSecret) {
@@ -147,8 +216,8 @@ public class GitHubOAuthTest {
         String code = emulateFirstOAuthStep();
         setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
 
-        when(teamCityCoreMock.findUserByPropertyValue(GITHUB_USER_ID_PROPERTY_KEY, "1")).thenReturn(UserSet.EMPTY);
-        when(teamCityCoreMock.createUser("octocat", "octocat@github.com", "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null);
+        when(teamCityCoreMock.createUser("octocat", "octocat@github.com", false, "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
         HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
 
         then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
@@ -161,26 +230,223 @@ public class GitHubOAuthTest {
         String code = emulateFirstOAuthStep();
         setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", null));
 
-        when(teamCityCoreMock.findUserByPropertyValue(GITHUB_USER_ID_PROPERTY_KEY, "1")).thenReturn(UserSet.EMPTY);
-        when(teamCityCoreMock.createUser("octocat", null, "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null);
+        when(teamCityCoreMock.createUser("octocat", null, false, "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+    }
+
+    @Test
+    public void successful_login__new_user_created_with_verified_primary_email() throws Exception {
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", null),
+                "[{\"email\":\"old@github.com\",\"primary\":false,\"verified\":true}," +
+                        "{\"email\":\"octocat@github.com\",\"primary\":true,\"verified\":true}]");
+
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null);
+        when(teamCityCoreMock.createUser("octocat", "octocat@github.com", true, "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+    }
+
+    @Test
+    public void successful_login__emails_request_failed() throws Exception {
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"), null);
+
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null);
+        when(teamCityCoreMock.createUser("octocat", "octocat@github.com", true, "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
         HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
 
         then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
     }
 
+    @Test
+    public void successful_login__optional_calls_skipped_when_busy() throws Exception {
+        System.setProperty("teamcity.gitHubAuth.profile.maxConcurrentOptionalCalls", "0");
+        GitHubProfileFetcher busyFetcher = new GitHubProfileFetcher(gitHubClient);
+        try {
+            gitHubOAuth = createGitHubOAuth(busyFetcher);
+            String code = emulateFirstOAuthStep();
+            setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+
+            when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null);
+            when(teamCityCoreMock.createUser("octocat", "octocat@github.com", true, "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
+            HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+            then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+            then(loginExecutor.getDiagnostics()).containsEntry("rejected", 0L);
+        } finally {
+            busyFetcher.shutdown();
+            System.clearProperty("teamcity.gitHubAuth.profile.maxConcurrentOptionalCalls");
+        }
+    }
+
     @Test
     public void successful_login__user_exists() throws Exception {
         String code = emulateFirstOAuthStep();
         setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
 
-        when(teamCityCoreMock.findUserByPropertyValue(GITHUB_USER_ID_PROPERTY_KEY, "1")).thenReturn(() -> singleton(tcUser));
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(tcUser);
         when(tcUser.getUsername()).thenReturn("octocat");
         HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
 
         then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
         then(result.getPrincipal().getName()).isEqualTo("octocat");
         verify(teamCityCoreMock).rememberToken(rootProjectConnection, tcUser, "octocat", "token1", DEFAULT_SCOPE);
-        verify(teamCityCoreMock, never()).createUser(anyString(), anyString(), anyString(), anyMap());
+        verify(teamCityCoreMock, never()).createUser(anyString(), anyString(), anyBoolean(), anyString(), anyMap());
+    }
+
+    @Test
+    public void successful_login__user_created_by_concurrent_login() throws Exception {
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null, tcUser);
+        when(tcUser.getUsername()).thenReturn("octocat");
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+        then(result.getPrincipal().getName()).isEqualTo("octocat");
+        verify(teamCityCoreMock).rememberToken(rootProjectConnection, tcUser, "octocat", "token1", DEFAULT_SCOPE);
+        verify(teamCityCoreMock, never()).createUser(anyString(), anyString(), anyBoolean(), anyString(), anyMap());
+    }
+
+    @Test
+    public void successful_login__concurrent_first_logins_create_one_user() throws Exception {
+        List<MockHttpServletRequest> callbacks = new ArrayList<>();
+        server.reset();
+        for (int i = 1; i <= 2; i++) {
+            session = new MockHttpSession();
+            newRequest();
+            String code = emulateFirstOAuthStep();
+            callbacks.add(request);
+            server.expect(requestTo("https://github.com/login/oauth/access_token")).andExpect(method(POST))
+                    .andExpect(content().formData(createTokenRequestBody(CLIENT_ID, CLIENT_SECRET, code)))
+                    .andRespond(withSuccess(createTokenJson("token" + i, DEFAULT_SCOPE), APPLICATION_JSON));
+        }
+        server.expect(ExpectedCount.times(2), requestTo("https://api.github.com/user")).andExpect(method(GET))
+                .andRespond(withSuccess(createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"), APPLICATION_JSON));
+        server.expect(ExpectedCount.between(0, 2), requestTo("https://api.github.com/user/emails")).andExpect(method(GET))
+                .andRespond(withSuccess("[]", APPLICATION_JSON));
+
+        AtomicReference<SUser> created = new AtomicReference<>();
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenAnswer(invocation -> created.get());
+        when(teamCityCoreMock.createUser(eq("octocat"), anyString(), anyBoolean(), anyString(), anyMap())).thenAnswer(invocation -> {
+            Thread.sleep(200);
+            if (!created.compareAndSet(null, tcUser)) throw new DuplicateUserAccountException("octocat");
+            return tcUser;
+        });
+        when(tcUser.getUsername()).thenReturn("octocat");
+
+        CyclicBarrier start = new CyclicBarrier(callbacks.size());
+        ExecutorService executor = Executors.newFixedThreadPool(callbacks.size());
+        try {
+            List<Future<HttpAuthenticationResult>> results = new ArrayList<>();
+            for (MockHttpServletRequest callback : callbacks) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return gitHubOAuth.processAuthenticationRequest(callback, new MockHttpServletResponse(), emptyMap());
+                }));
+            }
+            for (Future<HttpAuthenticationResult> result : results) {
+                then(result.get(30, TimeUnit.SECONDS).getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(teamCityCoreMock, times(1)).createUser(anyString(), anyString(), anyBoolean(), anyString(), anyMap());
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.SUCCESS)).isEqualTo(2);
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.DUPLICATE_USER)).isZero();
+    }
+
+    @Test
+    public void restricted_login__member_of_allowed_team() throws Exception {
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", RESTRICTED_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+        server.expect(requestTo("https://api.github.com/graphql")).andExpect(method(POST))
+                .andRespond(withSuccess("{\"data\":{\"viewer\":{\"organizations\":{\"nodes\":[{\"login\":\"github\"}]}}," +
+                        "\"t0\":{\"teams\":{\"nodes\":[{\"slug\":\"core\"}]}}}}", APPLICATION_JSON));
+
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(tcUser);
+        when(tcUser.getUsername()).thenReturn("octocat");
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitHubAccessRestriction.ALLOWED_ORGANIZATIONS_PROPERTY, "acme");
+        properties.put(GitHubAccessRestriction.ALLOWED_TEAMS_PROPERTY, "GitHub/core");
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, properties);
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+        server.verify();
+    }
+
+    @Test
+    public void restricted_login__redirect_requests_org_scope() {
+        when(teamCityCoreMock.isGitHubAuthRestricted()).thenReturn(true);
+
+        String redirect = gitHubOAuth.getUserRedirect(request, response);
+
+        then(verifyRedirectUrlAndFetchQueryParams(redirect)).containsEntry("scope", RESTRICTED_SCOPE);
+        verify(teamCityCoreMock, never()).getAuthModuleProperties(GitHubOAuth.class);
+    }
+
+    @Test
+    public void restricted_login__not_a_member() throws Exception {
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", RESTRICTED_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+        server.expect(requestTo("https://api.github.com/graphql")).andExpect(method(POST))
+                .andRespond(withSuccess("{\"data\":{\"viewer\":{\"organizations\":{\"nodes\":[{\"login\":\"github\"}]}}}}", APPLICATION_JSON));
+
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response,
+                singletonMap(GitHubAccessRestriction.ALLOWED_ORGANIZATIONS_PROPERTY, "acme"));
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.UNAUTHENTICATED);
+        then(HttpAuthUtil.getUnauthenticatedReason(request))
+                .isEqualTo("GitHub login error: user 'octocat' is not a member of the GitHub organizations or teams allowed to log in");
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.ACCESS_DENIED)).isEqualTo(1);
+        verify(teamCityCoreMock, never()).createUser(anyString(), anyString(), anyBoolean(), anyString(), anyMap());
+    }
+
+    @Test
+    public void successful_login__github_enterprise_connection() throws Exception {
+        OAuthConnectionDescriptor enterpriseConnection = mock(OAuthConnectionDescriptor.class);
+        Map<String, String> enterpriseParams = new HashMap<>();
+        enterpriseParams.put(GitHubConstants.CLIENT_ID_PARAM, CLIENT_ID);
+        enterpriseParams.put(GitHubConstants.CLIENT_SECRET_PARAM, CLIENT_SECRET);
+        enterpriseParams.put(GitHubEndpoint.SERVER_URL_PARAM, "https://ghe.example.com/");
+        when(enterpriseConnection.getId()).thenReturn("PROJECT_EXT_2");
+        when(enterpriseConnection.getParameters()).thenReturn(enterpriseParams);
+        when(teamCityCoreMock.getRootProjectGitHubConnections()).thenReturn(new GitHubConnections(asList(rootProjectConnection, enterpriseConnection)));
+
+        String code = emulateFirstOAuthStep("PROJECT_EXT_2");
+        setupGitHubApiAnswers("https://ghe.example.com", "https://ghe.example.com/api/v3", code, "token1", DEFAULT_SCOPE,
+                createUserJson("1", "octocat", "monalisa octocat", "octocat@ghe.example.com"), "[]");
+
+        GitHubEndpoint endpoint = GitHubEndpoint.enterprise("https://ghe.example.com");
+        when(teamCityCoreMock.createUser("octocat", "octocat@ghe.example.com", false, "monalisa octocat", singletonMap(endpoint.getUserIdPropertyKey(), "1"))).thenReturn(tcUser);
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+        server.verify();
+        verify(teamCityCoreMock, never()).findUserByGitHubId(anyString());
+        verify(teamCityCoreMock).rememberToken(enterpriseConnection, tcUser, "octocat", "token1", DEFAULT_SCOPE);
+    }
+
+    @Test
+    public void successful_login__metrics_recorded() throws Exception {
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null);
+        when(teamCityCoreMock.createUser("octocat", "octocat@github.com", false, "monalisa octocat", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "1"))).thenReturn(tcUser);
+        gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.SUCCESS)).isEqualTo(1);
+        for (GitHubLoginMetrics.Phase phase : GitHubLoginMetrics.Phase.values()) {
+            then(metrics.getHistogram(phase).getCount()).as(phase.displayName).isEqualTo(1);
+        }
     }
 
     @Test
@@ -188,12 +454,13 @@ public class GitHubOAuthTest {
         String code = emulateFirstOAuthStep();
         setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
 
-        when(teamCityCoreMock.findUserByPropertyValue(GITHUB_USER_ID_PROPERTY_KEY, "1")).thenReturn(UserSet.EMPTY);
-        when(teamCityCoreMock.createUser(eq("octocat"), anyString(), anyString(), anyMap())).thenThrow(new DuplicateUserAccountException("octocat"));
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(null);
+        when(teamCityCoreMock.createUser(eq("octocat"), anyString(), anyBoolean(), anyString(), anyMap())).thenThrow(new DuplicateUserAccountException("octocat"));
         HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
 
         then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.UNAUTHENTICATED);
         then(HttpAuthUtil.getUnauthenticatedReason(request)).isEqualTo("User with username 'octocat' already exist");
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.DUPLICATE_USER)).isEqualTo(1);
         verify(teamCityCoreMock, never()).rememberToken(any(), any(), anyString(), anyString(), anyString());
     }
 
@@ -207,6 +474,9 @@ public class GitHubOAuthTest {
         then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.UNAUTHENTICATED);
         then(HttpAuthUtil.getUnauthenticatedReason(request)).isEqualTo("GitHub login error: 'state' parameter is invalid");
         then(response.getStatus()).isEqualTo(HttpServletResponse.SC_UNAUTHORIZED);
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.INVALID_STATE)).isEqualTo(1);
+        auditJournal.flush();
+        then(auditJournal.read("invalid_state", null, 10)).hasSize(1);
     }
 
     @Test
@@ -259,12 +529,227 @@ public class GitHubOAuthTest {
         then(HttpAuthUtil.getUnauthenticatedReason(request)).isEqualTo("GitHub login error: The client_id and/or client_secret passed are incorrect.");
     }
 
+    @Test
+    public void signed_state__successful_login_without_session() throws Exception {
+        System.setProperty(GitHubOAuthStateManager.MODE_PROPERTY, GitHubOAuthStateManager.SIGNED_MODE);
+        String code = emulateFirstOAuthStep();
+        then(session.getAttributeNames().hasMoreElements()).isFalse();
+        request.setSession(new MockHttpSession());
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(tcUser);
+        when(tcUser.getUsername()).thenReturn("octocat");
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+    }
+
+    @Test
+    public void signed_state__should_not_accept_state_without_cookie() throws IOException {
+        System.setProperty(GitHubOAuthStateManager.MODE_PROPERTY, GitHubOAuthStateManager.SIGNED_MODE);
+        emulateFirstOAuthStep();
+
+        request.setCookies(new Cookie(GitHubOAuthStateManager.STATE_COOKIE_NAME, "foreign"));
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.UNAUTHENTICATED);
+        then(HttpAuthUtil.getUnauthenticatedReason(request)).isEqualTo("GitHub login error: 'state' parameter is invalid");
+    }
+
+    @Test
+    public void signed_state__should_not_accept_tampered_state() throws IOException {
+        System.setProperty(GitHubOAuthStateManager.MODE_PROPERTY, GitHubOAuthStateManager.SIGNED_MODE);
+        emulateFirstOAuthStep();
+
+        String state = request.getParameter("state");
+        request.setParameter("state", state.substring(0, state.lastIndexOf('.') + 1) + "AAAA");
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.UNAUTHENTICATED);
+        then(HttpAuthUtil.getUnauthenticatedReason(request)).isEqualTo("GitHub login error: 'state' parameter is invalid");
+    }
+
+    @Test
+    public void signed_state__should_not_accept_replayed_state() throws Exception {
+        System.setProperty(GitHubOAuthStateManager.MODE_PROPERTY, GitHubOAuthStateManager.SIGNED_MODE);
+        String code = emulateFirstOAuthStep();
+        MockHttpServletRequest callback = request;
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(tcUser);
+        when(tcUser.getUsername()).thenReturn("octocat");
+        then(gitHubOAuth.processAuthenticationRequest(request, response, emptyMap()).getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+
+        newRequest();
+        request.setCookies(callback.getCookies());
+        request.setParameters(callback.getParameterMap());
+        request.setParameter("code", StringUtil.generateUniqueHash());
+        request.setRequestURI(callback.getRequestURI());
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.UNAUTHENTICATED);
+        then(HttpAuthUtil.getUnauthenticatedReason(request)).isEqualTo("GitHub login error: 'state' parameter is already used");
+    }
+
+    @Test
+    public void signed_state__duplicate_callback_shares_result() throws Exception {
+        System.setProperty(GitHubOAuthStateManager.MODE_PROPERTY, GitHubOAuthStateManager.SIGNED_MODE);
+        String code = emulateFirstOAuthStep();
+        MockHttpServletRequest callback = request;
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(tcUser);
+        when(tcUser.getUsername()).thenReturn("octocat");
+        then(gitHubOAuth.processAuthenticationRequest(request, response, emptyMap()).getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+
+        newRequest();
+        request.setCookies(callback.getCookies());
+        request.setParameters(callback.getParameterMap());
+        request.setRequestURI(callback.getRequestURI());
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+        then(result.getPrincipal().getName()).isEqualTo("octocat");
+        server.verify();
+    }
+
+    @Test
+    public void signed_state__concurrent_duplicate_callback_does_not_consume_state() throws Exception {
+        System.setProperty(GitHubOAuthStateManager.MODE_PROPERTY, GitHubOAuthStateManager.SIGNED_MODE);
+        String code = emulateFirstOAuthStep();
+        MockHttpServletRequest callback = request;
+        String state = callback.getParameter("state");
+        // the first callback is registered, but hasn't verified the state yet
+        GitHubCallbackSingleFlight.Flight first = singleFlight.register(GitHubCallbackSingleFlight.getKey(code, state));
+        then(first.owner).isTrue();
+
+        newRequest();
+        request.setCookies(callback.getCookies());
+        request.setParameters(callback.getParameterMap());
+        request.setRequestURI(callback.getRequestURI());
+        MockHttpServletRequest duplicate = request;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<HttpAuthenticationResult> duplicateResult = executor.submit(() -> gitHubOAuth.processAuthenticationRequest(duplicate, new MockHttpServletResponse(), emptyMap()));
+            while (!Long.valueOf(1).equals(singleFlight.getDiagnostics().get("joined"))) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+
+            then(stateManager.verifyState(callback, state, rootProjectConnection)).isNull();
+            singleFlight.abandon(first, new GitHubLocalLoginException("test"));
+            GitHubLoginException failure = null;
+            try {
+                duplicateResult.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failure = (GitHubLoginException) e.getCause();
+            }
+            then(failure).hasMessage("test");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void async_mode__successful_login() throws Exception {
+        System.setProperty(GitHubLoginExecutor.ASYNC_MODE_PROPERTY, "true");
+        System.setProperty("teamcity.gitHubAuth.async.pollWaitMs", "10000");
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenReturn(tcUser);
+        when(tcUser.getUsername()).thenReturn("octocat");
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.AUTHENTICATED);
+        verify(teamCityCoreMock).rememberToken(rootProjectConnection, tcUser, "octocat", "token1", DEFAULT_SCOPE);
+    }
+
+    @Test
+    public void async_mode__failed_login_reported_once() throws Exception {
+        System.setProperty(GitHubLoginExecutor.ASYNC_MODE_PROPERTY, "true");
+        System.setProperty("teamcity.gitHubAuth.async.pollWaitMs", "10000");
+        String code = emulateFirstOAuthStep();
+        server.expect(requestTo("https://github.com/login/oauth/access_token")).andExpect(method(POST))
+                .andRespond(withSuccess(createTokenJson("token1", DEFAULT_SCOPE), APPLICATION_JSON));
+        server.expect(requestTo("https://api.github.com/user")).andExpect(method(GET)).andRespond(withServerError());
+        server.expect(requestTo("https://api.github.com/user/emails")).andExpect(method(GET)).andRespond(withSuccess("[]", APPLICATION_JSON));
+
+        String state = request.getParameter("state");
+        GitHubLoginException failure = null;
+        try {
+            gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+        } catch (GitHubLoginException e) {
+            failure = e;
+        }
+
+        then(failure).isNotNull();
+        then(loginExecutor.getPending(state)).isNull();
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.REMOTE_FAILURE)).isEqualTo(1);
+    }
+
+    @Test
+    public void failed_login__local_failure_recorded_separately() throws Exception {
+        emulateFirstOAuthStep();
+        when(teamCityCoreMock.isAuthModuleConfigured(GitHubOAuth.class)).thenReturn(false);
+
+        GitHubLoginException failure = null;
+        try {
+            gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+        } catch (GitHubLoginException e) {
+            failure = e;
+        }
+
+        then(failure).isInstanceOf(GitHubLocalLoginException.class);
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.LOCAL_FAILURE)).isEqualTo(1);
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.REMOTE_FAILURE)).isZero();
+    }
+
+    @Test
+    public void failed_login__unexpected_error_recorded_as_local_failure() throws Exception {
+        String code = emulateFirstOAuthStep();
+        setupGitHubApiAnswers(code, "token1", DEFAULT_SCOPE, createUserJson("1", "octocat", "monalisa octocat", "octocat@github.com"));
+        when(teamCityCoreMock.findUserByGitHubId("1")).thenThrow(new IllegalStateException("user model is not available"));
+
+        RuntimeException failure = null;
+        try {
+            gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        then(failure).isInstanceOf(IllegalStateException.class);
+        then(metrics.getOutcomeCount(GitHubLoginMetrics.Outcome.LOCAL_FAILURE)).isEqualTo(1);
+    }
+
+    @Test
+    public void async_mode__login_in_progress_response_committed() throws Exception {
+        System.setProperty(GitHubLoginExecutor.ASYNC_MODE_PROPERTY, "true");
+        System.setProperty("teamcity.gitHubAuth.async.pollWaitMs", "0");
+        String code = emulateFirstOAuthStep();
+        GitHubLoginExecutor.PendingLogin pending = loginExecutor.register(request.getParameter("state"), code);
+        then(pending.claim()).isTrue();
+
+        HttpAuthenticationResult result = gitHubOAuth.processAuthenticationRequest(request, response, emptyMap());
+
+        then(result.getType()).isEqualTo(HttpAuthenticationResult.Type.UNAUTHENTICATED);
+        then(response.getStatus()).isEqualTo(HttpServletResponse.SC_ACCEPTED);
+        then(response.isCommitted()).isTrue();
+        then(loginExecutor.getPending(request.getParameter("state"))).isSameAs(pending);
+    }
+
     private String emulateFirstOAuthStep() {
-        String redirect = gitHubOAuth.getUserRedirect(request);
+        return emulateFirstOAuthStep(null);
+    }
+
+    private String emulateFirstOAuthStep(String connectionId) {
+        String redirect = gitHubOAuth.getUserRedirect(request, response, connectionId);
         Map<String, String> params = verifyRedirectUrlAndFetchQueryParams(redirect);
+        Cookie[] cookies = response.getCookies();
 
         String code = StringUtil.generateUniqueHash();
         newRequest();
+        if (cookies.length > 0) {
+            request.setCookies(cookies);
+        }
         request.addParameter("code", code);
         request.addParameter("state", params.get("state"));
         request.setRequestURI(params.get("redirect_uri"));
@@ -0,0 +1,151 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import jetbrains.buildServer.users.DuplicateUserAccountException;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.FileUtil;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.jetbrains.teamcity.githubauth.GitHubOAuth.GITHUB_USER_ID_PROPERTY_KEY;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+@Test
+public class GitHubOrganizationImporterTest {
+    private static final String FIRST_PAGE = "https://api.github.com/orgs/acme/members?per_page=100";
+    private static final String SECOND_PAGE = "https://api.github.com/organizations/7/members?per_page=100&page=2";
+
+    private MockRestServiceServer server;
+    private TeamCityCoreFacade teamCityCore;
+    private File checkpointDir;
+    private GitHubOrganizationImporter importer;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        TestInternalProperties.init();
+        RestTemplate restTemplate = new RestTemplate();
+        server = MockRestServiceServer.bindTo(restTemplate).ignoreExpectOrder(true).build();
+        GitHubOAuthClient client = new GitHubOAuthClient(restTemplate, new GitHubCircuitBreakers(), new GitHubRateLimits());
+        teamCityCore = mock(TeamCityCoreFacade.class);
+        GitHubOAuth gitHubOAuth = mock(GitHubOAuth.class);
+        when(gitHubOAuth.lockProvisioning(anyString())).thenAnswer(invocation -> {
+            ReentrantLock lock = new ReentrantLock();
+            lock.lock();
+            return lock;
+        });
+        checkpointDir = Files.createTempDirectory("gitHubAuthImport").toFile();
+        importer = new GitHubOrganizationImporter(client, teamCityCore, gitHubOAuth, checkpointDir);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        importer.shutdown();
+        FileUtil.delete(checkpointDir);
+    }
+
+    @Test
+    public void should_create_missing_users_page_by_page() throws Exception {
+        HttpHeaders link = new HttpHeaders();
+        link.set("Link", "<" + SECOND_PAGE + ">; rel=\"next\", <" + SECOND_PAGE + ">; rel=\"last\"");
+        server.expect(requestTo(FIRST_PAGE))
+                .andRespond(withSuccess("[{\"login\":\"octocat\",\"id\":1},{\"login\":\"hubot\",\"id\":2}]", APPLICATION_JSON).headers(link));
+        server.expect(requestTo(SECOND_PAGE))
+                .andRespond(withSuccess("[{\"login\":\"monalisa\",\"id\":3}]", APPLICATION_JSON));
+        server.expect(requestTo("https://api.github.com/users/hubot"))
+                .andRespond(withSuccess("{\"login\":\"hubot\",\"id\":2,\"name\":\"Hubot\",\"email\":null}", APPLICATION_JSON));
+        server.expect(requestTo("https://api.github.com/users/monalisa"))
+                .andRespond(withSuccess("{\"login\":\"monalisa\",\"id\":3,\"name\":\"Mona Lisa\",\"email\":\"mona@github.com\"}", APPLICATION_JSON));
+        when(teamCityCore.findUserByGitHubId("1")).thenReturn(mock(SUser.class));
+
+        GitHubOrganizationImporter.Progress progress = importer.start("acme", "token1", emptyMap(), false);
+        awaitFinished(progress);
+
+        server.verify();
+        then(progress.state).isEqualTo("completed");
+        then(progress.describe()).containsEntry("pages", 2).containsEntry("existing", 1).containsEntry("created", 2);
+        verify(teamCityCore).createUser("hubot", null, false, "Hubot", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "2"));
+        verify(teamCityCore).createUser("monalisa", "mona@github.com", false, "Mona Lisa", singletonMap(GITHUB_USER_ID_PROPERTY_KEY, "3"));
+    }
+
+    @Test
+    public void should_continue_from_checkpoint() throws Exception {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("nextPageUrl", SECOND_PAGE);
+        checkpoint.setProperty("pages", "1");
+        checkpoint.setProperty("created", "2");
+        try (OutputStream out = new FileOutputStream(new File(checkpointDir, "import-acme.properties"))) {
+            checkpoint.store(out, null);
+        }
+        server.expect(requestTo(SECOND_PAGE))
+                .andRespond(withSuccess("[{\"login\":\"monalisa\",\"id\":3}]", APPLICATION_JSON));
+        server.expect(requestTo("https://api.github.com/users/monalisa"))
+                .andRespond(withSuccess("{\"login\":\"monalisa\",\"id\":3}", APPLICATION_JSON));
+
+        GitHubOrganizationImporter.Progress progress = importer.start("acme", "token1", emptyMap(), false);
+        awaitFinished(progress);
+
+        server.verify();
+        then(progress.describe()).containsEntry("state", "completed").containsEntry("pages", 2).containsEntry("created", 3);
+    }
+
+    @Test
+    public void should_link_existing_users_by_mapping_only() throws Exception {
+        server.expect(requestTo(FIRST_PAGE))
+                .andRespond(withSuccess("[{\"login\":\"Octocat\",\"id\":1},{\"login\":\"hubot\",\"id\":2}]", APPLICATION_JSON));
+        server.expect(requestTo("https://api.github.com/users/Octocat"))
+                .andRespond(withSuccess("{\"login\":\"Octocat\",\"id\":1}", APPLICATION_JSON));
+        server.expect(requestTo("https://api.github.com/users/hubot"))
+                .andRespond(withSuccess("{\"login\":\"hubot\",\"id\":2}", APPLICATION_JSON));
+        SUser mapped = mock(SUser.class);
+        when(teamCityCore.findUserByUsername("jdoe")).thenReturn(mapped);
+        when(teamCityCore.createUser(eq("hubot"), any(), anyBoolean(), any(), anyMap())).thenThrow(new DuplicateUserAccountException("hubot"));
+
+        GitHubOrganizationImporter.Progress progress = importer.start("acme", "token1", GitHubOrganizationImporter.parseLinks("octocat = jdoe\n"), false);
+        awaitFinished(progress);
+
+        server.verify();
+        then(progress.describe()).containsEntry("state", "completed").containsEntry("linked", 1).containsEntry("conflicts", 1).containsEntry("created", 0);
+        verify(teamCityCore).linkUser(mapped, "1");
+        verify(teamCityCore, never()).findUserByUsername("hubot");
+        verify(teamCityCore, never()).linkUser(any(SUser.class), eq("2"));
+        verify(teamCityCore, never()).createUser(eq("Octocat"), any(), anyBoolean(), any(), anyMap());
+    }
+
+    @Test
+    public void should_reject_malformed_links() {
+        then(GitHubOrganizationImporter.parseLinks("octocat=jdoe\r\n\nhubot=bot")).containsEntry("octocat", "jdoe").containsEntry("hubot", "bot");
+        for (String links : new String[]{"octocat", "=jdoe", "octocat=", "octocat=jdoe\nOctocat=admin"}) {
+            try {
+                GitHubOrganizationImporter.parseLinks(links);
+                throw new AssertionError("Links accepted: " + links);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private static void awaitFinished(GitHubOrganizationImporter.Progress progress) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!progress.isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        then(progress.isFinished()).isTrue();
+    }
+}
@@ -0,0 +1,170 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.serverSide.oauth.OAuthToken;
+import jetbrains.buildServer.serverSide.oauth.github.GitHubConstants;
+import jetbrains.buildServer.users.SUser;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.HttpMethod.POST;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+@Test
+public class GitHubTokenSweeperTest {
+    private static final String CHECK_URL = "https://api.github.com/applications/clientId/token";
+
+    private MockRestServiceServer server;
+    private TeamCityCoreFacade teamCityCore;
+    private OAuthConnectionDescriptor connection;
+    private SUser validUser;
+    private SUser revokedUser;
+    private OAuthToken revokedToken;
+    private GitHubTokenSweeper sweeper;
+
+    @BeforeMethod
+    public void setUp() {
+        TestInternalProperties.init();
+        RestTemplate restTemplate = new RestTemplate();
+        server = MockRestServiceServer.bindTo(restTemplate).ignoreExpectOrder(true).build();
+        GitHubOAuthClient client = new GitHubOAuthClient(restTemplate, new GitHubCircuitBreakers(), new GitHubRateLimits());
+
+        teamCityCore = mock(TeamCityCoreFacade.class);
+        connection = mock(OAuthConnectionDescriptor.class);
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(GitHubConstants.CLIENT_ID_PARAM, "clientId");
+        parameters.put(GitHubConstants.CLIENT_SECRET_PARAM, "clientSecret");
+        when(connection.getId()).thenReturn("PROJECT_EXT_1");
+        when(connection.getParameters()).thenReturn(parameters);
+        when(teamCityCore.getRootProjectGitHubConnections()).thenReturn(new GitHubConnections(singletonList(connection)));
+
+        validUser = mock(SUser.class);
+        revokedUser = mock(SUser.class);
+        OAuthToken validToken = mock(OAuthToken.class);
+        when(validToken.getAccessToken()).thenReturn("token1");
+        revokedToken = mock(OAuthToken.class);
+        when(revokedToken.getAccessToken()).thenReturn("token2");
+        when(revokedToken.getOauthLogin()).thenReturn("hubot");
+        when(teamCityCore.getAllUsers()).thenReturn(Arrays.asList(validUser, revokedUser));
+        when(teamCityCore.getTokens(connection, validUser)).thenReturn(singletonList(validToken));
+        when(teamCityCore.getTokens(connection, revokedUser)).thenReturn(singletonList(revokedToken));
+
+        server.expect(requestTo(CHECK_URL)).andExpect(method(POST))
+                .andExpect(content().string("{\"access_token\":\"token1\"}"))
+                .andRespond(withSuccess("{\"token\":\"token1\"}", APPLICATION_JSON));
+        server.expect(requestTo(CHECK_URL)).andExpect(method(POST))
+                .andExpect(content().string("{\"access_token\":\"token2\"}"))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+        sweeper = new GitHubTokenSweeper(teamCityCore, new GitHubClients(client, mock(GitHubHttpConnectionPool.class)));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        sweeper.shutdown();
+        System.clearProperty("teamcity.gitHubAuth.tokenSweeper.evict");
+        System.clearProperty("teamcity.gitHubAuth.tokenSweeper.minChecks");
+    }
+
+    @Test
+    public void should_remove_revoked_tokens() {
+        System.setProperty("teamcity.gitHubAuth.tokenSweeper.evict", "true");
+
+        sweeper.startSweep();
+        sweeper.checkBatch();
+
+        server.verify();
+        verify(teamCityCore).removeToken(connection, revokedToken);
+        verify(teamCityCore, times(1)).removeToken(any(), any());
+        then(sweeper.getDiagnostics())
+                .containsEntry("sweepUsersLeft", 0)
+                .containsEntry("tokensChecked", 2L)
+                .containsEntry("invalid", 1L)
+                .containsEntry("evicted", 1L);
+    }
+
+    @Test
+    public void should_only_flag_revoked_tokens_by_default() {
+        sweeper.startSweep();
+        sweeper.checkBatch();
+
+        server.verify();
+        verify(teamCityCore, never()).removeToken(any(), any());
+        then(sweeper.getDiagnostics()).containsEntry("invalid", 1L).containsEntry("evicted", 0L);
+        then(sweeper.getDiagnostics().get("flagged").toString()).contains("hubot");
+    }
+
+    @Test
+    public void should_not_remove_tokens_until_application_credentials_are_confirmed() {
+        System.setProperty("teamcity.gitHubAuth.tokenSweeper.evict", "true");
+        when(teamCityCore.getAllUsers()).thenReturn(singletonList(revokedUser));
+
+        sweeper.startSweep();
+        sweeper.checkBatch();
+
+        verify(teamCityCore, never()).removeToken(any(), any());
+        then(sweeper.getDiagnostics()).containsEntry("invalid", 1L).containsEntry("evicted", 0L);
+    }
+
+    @Test
+    public void should_abort_sweep_when_all_checked_tokens_are_invalid() {
+        System.setProperty("teamcity.gitHubAuth.tokenSweeper.evict", "true");
+        System.setProperty("teamcity.gitHubAuth.tokenSweeper.minChecks", "2");
+        SUser otherUser = mock(SUser.class);
+        OAuthToken otherToken = mock(OAuthToken.class);
+        when(otherToken.getAccessToken()).thenReturn("token3");
+        when(teamCityCore.getTokens(connection, otherUser)).thenReturn(singletonList(otherToken));
+        SUser uncheckedUser = mock(SUser.class);
+        when(teamCityCore.getAllUsers()).thenReturn(Arrays.asList(revokedUser, otherUser, uncheckedUser));
+        server.expect(requestTo(CHECK_URL)).andExpect(method(POST))
+                .andExpect(content().string("{\"access_token\":\"token3\"}"))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+        System.setProperty("teamcity.gitHubAuth.tokenSweeper.batchSize", "2");
+        try {
+            sweeper.startSweep();
+            sweeper.checkBatch();
+        } finally {
+            System.clearProperty("teamcity.gitHubAuth.tokenSweeper.batchSize");
+        }
+
+        verify(teamCityCore, never()).removeToken(any(), any());
+        verify(teamCityCore, never()).getTokens(connection, uncheckedUser);
+        then(sweeper.getDiagnostics())
+                .containsEntry("sweepUsersLeft", 0)
+                .containsEntry("invalid", 2L)
+                .containsEntry("aborted", 1L);
+    }
+
+    @Test
+    public void should_start_checking_when_auth_module_is_configured_later() {
+        then(sweeper.tickIfConfigured()).isEqualTo(TimeUnit.MINUTES.toMillis(1));
+        then(sweeper.getDiagnostics()).containsEntry("active", false).containsEntry("sweeps", 0L);
+
+        when(teamCityCore.isAuthModuleConfigured(GitHubOAuth.class)).thenReturn(true);
+        then(sweeper.tickIfConfigured()).isEqualTo(TimeUnit.MINUTES.toMillis(10));
+        then(sweeper.getDiagnostics()).containsEntry("active", true);
+
+        sweeper.tickIfConfigured();
+        then(sweeper.getDiagnostics()).containsEntry("sweeps", 1L).containsEntry("tokensChecked", 2L);
+        server.verify();
+
+        when(teamCityCore.isAuthModuleConfigured(GitHubOAuth.class)).thenReturn(false);
+        sweeper.tickIfConfigured();
+        then(sweeper.getDiagnostics()).containsEntry("active", false);
+    }
+}
@@ -0,0 +1,125 @@
+package org.jetbrains.teamcity.githubauth;
+
+import jetbrains.buildServer.TestInternalProperties;
+import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
+import jetbrains.buildServer.users.SUser;
+import org.mockito.InOrder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.mockito.Mockito.*;
+
+@Test
+public class GitHubTokenWriterTest {
+    private TeamCityCoreFacade teamCityCore;
+    private OAuthConnectionDescriptor connection;
+    private SUser user;
+    private GitHubTokenWriter tokenWriter;
+
+    @BeforeMethod
+    public void setUp() {
+        TestInternalProperties.init();
+        System.setProperty("teamcity.gitHubAuth.tokenWriter.flushDelayMs", "3600000");
+        teamCityCore = mock(TeamCityCoreFacade.class);
+        connection = mock(OAuthConnectionDescriptor.class);
+        when(connection.getId()).thenReturn("PROJECT_EXT_1");
+        user = mock(SUser.class);
+        when(user.getId()).thenReturn(1L);
+        tokenWriter = new GitHubTokenWriter(teamCityCore);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.clearProperty("teamcity.gitHubAuth.tokenWriter.flushDelayMs");
+        System.clearProperty("teamcity.gitHubAuth.tokenWriter.queueSize");
+        tokenWriter.shutdown();
+    }
+
+    @Test
+    public void should_coalesce_queued_writes() {
+        tokenWriter.rememberToken(connection, user, "octocat", "token1", "user");
+        tokenWriter.rememberToken(connection, user, "octocat", "token2", "user");
+        verifyZeroInteractions(teamCityCore);
+
+        tokenWriter.flush();
+
+        verify(teamCityCore).rememberToken(connection, user, "octocat", "token2", "user");
+        verifyNoMoreInteractions(teamCityCore);
+        then(tokenWriter.getDiagnostics()).containsEntry("writes", 1L).containsEntry("coalesced", 1L);
+    }
+
+    @Test
+    public void should_skip_unchanged_token() {
+        tokenWriter.rememberToken(connection, user, "octocat", "token1", "user");
+        tokenWriter.flush();
+        tokenWriter.rememberToken(connection, user, "octocat", "token1", "user");
+        tokenWriter.flush();
+        tokenWriter.rememberToken(connection, user, "octocat", "token1", "user,repo");
+        tokenWriter.flush();
+
+        verify(teamCityCore).rememberToken(connection, user, "octocat", "token1", "user");
+        verify(teamCityCore).rememberToken(connection, user, "octocat", "token1", "user,repo");
+        then(tokenWriter.getDiagnostics()).containsEntry("unchanged", 1L);
+    }
+
+    @Test
+    public void should_flush_on_shutdown() {
+        tokenWriter.rememberToken(connection, user, "octocat", "token1", "user");
+
+        tokenWriter.shutdown();
+
+        verify(teamCityCore).rememberToken(connection, user, "octocat", "token1", "user");
+    }
+
+    @Test
+    public void should_write_on_calling_thread_after_shutdown() {
+        tokenWriter.shutdown();
+
+        tokenWriter.rememberToken(connection, user, "octocat", "token1", "user");
+
+        verify(teamCityCore).rememberToken(connection, user, "octocat", "token1", "user");
+    }
+
+    @Test
+    public void should_not_write_overflow_token_while_older_one_is_flushed() throws Exception {
+        System.setProperty("teamcity.gitHubAuth.tokenWriter.queueSize", "1");
+        SUser other = mock(SUser.class);
+        when(other.getId()).thenReturn(2L);
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            flushing.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return null;
+        }).when(teamCityCore).rememberToken(connection, user, "octocat", "token1", "user");
+        tokenWriter.rememberToken(connection, user, "octocat", "token1", "user");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> flush = executor.submit(tokenWriter::flush);
+            then(flushing.await(10, TimeUnit.SECONDS)).isTrue();
+            tokenWriter.rememberToken(connection, other, "hubot", "token3", "user");
+            Future<?> overflow = executor.submit(() -> tokenWriter.rememberToken(connection, user, "octocat", "token2", "user"));
+            Thread.sleep(100);
+            verify(teamCityCore, never()).rememberToken(connection, user, "octocat", "token2", "user");
+
+            release.countDown();
+            flush.get(10, TimeUnit.SECONDS);
+            overflow.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        InOrder inOrder = inOrder(teamCityCore);
+        inOrder.verify(teamCityCore).rememberToken(connection, user, "octocat", "token1", "user");
+        inOrder.verify(teamCityCore).rememberToken(connection, user, "octocat", "token2", "user");
+        then(tokenWriter.getDiagnostics()).containsEntry("overflow", 1L);
+    }
+}
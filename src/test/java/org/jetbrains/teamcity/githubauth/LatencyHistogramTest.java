@@ -0,0 +1,43 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class LatencyHistogramTest {
+
+    @Test
+    public void should_map_values_to_buckets_with_bounded_error() {
+        for (long value = 0; value < 1_000_000; value += 7) {
+            long upper = LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexOf(value));
+            then(upper).isGreaterThanOrEqualTo(value);
+            then(upper - value).isLessThanOrEqualTo(value / 32);
+        }
+    }
+
+    @Test
+    public void should_report_percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        then(histogram.getCount()).isEqualTo(1000);
+        then(histogram.getMaxMicros()).isEqualTo(1_000_000);
+        then(histogram.getMeanMicros()).isEqualTo(500_500);
+        then(histogram.getValueAtPercentile(50)).isBetween(500_000L, 500_000L + 500_000 / 32);
+        then(histogram.getValueAtPercentile(99)).isBetween(990_000L, 990_000L + 990_000 / 32);
+        then(histogram.getValueAtPercentile(100)).isEqualTo(1_000_000);
+    }
+
+    @Test
+    public void should_reset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(5_000_000);
+        histogram.reset();
+
+        then(histogram.getCount()).isEqualTo(0);
+        then(histogram.getValueAtPercentile(99)).isEqualTo(0);
+    }
+}
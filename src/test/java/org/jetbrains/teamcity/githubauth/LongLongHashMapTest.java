@@ -0,0 +1,57 @@
+package org.jetbrains.teamcity.githubauth;
+
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.jetbrains.teamcity.githubauth.LongLongHashMap.NO_VALUE;
+
+@Test
+public class LongLongHashMapTest {
+
+    @Test
+    public void should_put_get_and_remove() {
+        LongLongHashMap map = new LongLongHashMap(2);
+
+        then(map.put(1, 10)).isEqualTo(NO_VALUE);
+        then(map.put(0, 20)).isEqualTo(NO_VALUE);
+        then(map.put(1, 11)).isEqualTo(10);
+        then(map.get(1)).isEqualTo(11);
+        then(map.get(0)).isEqualTo(20);
+        then(map.get(2)).isEqualTo(NO_VALUE);
+        then(map.size()).isEqualTo(2);
+
+        then(map.remove(1)).isEqualTo(11);
+        then(map.remove(0)).isEqualTo(20);
+        then(map.remove(3)).isEqualTo(NO_VALUE);
+        then(map.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void should_behave_like_hash_map_on_random_operations() {
+        Random random = new Random(42);
+        LongLongHashMap map = new LongLongHashMap();
+        Map<Long, Long> expected = new HashMap<>();
+
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(2000);
+            long value = random.nextLong();
+            if (random.nextInt(3) == 0) {
+                Long removed = expected.remove(key);
+                then(map.remove(key)).isEqualTo(removed == null ? NO_VALUE : removed);
+            } else {
+                Long previous = expected.put(key, value);
+                then(map.put(key, value)).isEqualTo(previous == null ? NO_VALUE : previous);
+            }
+        }
+
+        then(map.size()).isEqualTo(expected.size());
+        for (long key = 0; key < 2000; key++) {
+            Long value = expected.get(key);
+            then(map.get(key)).isEqualTo(value == null ? NO_VALUE : value);
+        }
+    }
+}